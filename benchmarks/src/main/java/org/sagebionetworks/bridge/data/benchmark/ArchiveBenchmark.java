@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.Archive;
+import org.sagebionetworks.bridge.data.ByteSourceArchiveFile;
+
+/**
+ * Archive.writeTo across mixes of file count and file size, from a single small survey answer up to many sensor
+ * recordings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    @Param({"1", "10", "100"})
+    public int fileCount;
+
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+
+    private Archive archive;
+
+    @Setup
+    public void setup() {
+        Archive.Builder builder = Archive.Builder.forActivity("benchmark-activity", 1)
+                .withAppVersionName("version 1.0, build 1")
+                .withPhoneInfo("benchmark");
+        DateTime endDate = DateTime.now();
+        for (int i = 0; i < fileCount; i++) {
+            byte[] bytes = BenchmarkData.compressiblePayload(fileSize, i);
+            builder.addDataFile(new ByteSourceArchiveFile("file" + i, endDate, ByteSource.wrap(bytes)));
+        }
+        archive = builder.build();
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException {
+        archive.writeTo(ByteStreams.nullOutputStream());
+    }
+}
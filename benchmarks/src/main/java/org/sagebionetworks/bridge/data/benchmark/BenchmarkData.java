@@ -0,0 +1,67 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Random;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Test data shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private static final long ONE_DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return self-signed certificate for a fresh RSA 2048 key, like the ones studies upload with
+     */
+    static X509Certificate newCertificate() throws GeneralSecurityException, OperatorCreationException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name name = new X500Name("CN=benchmark");
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(now - ONE_DAY_MILLIS), new Date(now + ONE_DAY_MILLIS), name, keyPair.getPublic());
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    /**
+     * @return certificate in PEM format, as taken by StudyUploadEncryptor.writeTo
+     */
+    static String toPem(X509Certificate certificate) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JcaPEMWriter pemWriter = new JcaPEMWriter(writer)) {
+            pemWriter.writeObject(certificate);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return bytes drawn from a small alphabet, so they deflate roughly as well as sensor CSV or JSON does
+     */
+    static byte[] compressiblePayload(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) ('0' + random.nextInt(12));
+        }
+        return bytes;
+    }
+}
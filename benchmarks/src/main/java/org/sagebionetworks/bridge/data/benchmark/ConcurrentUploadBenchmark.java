@@ -0,0 +1,173 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.Archive;
+import org.sagebionetworks.bridge.data.ByteSourceArchiveFile;
+import org.sagebionetworks.bridge.data.StudyUploadEncryptor;
+
+/**
+ * Load test for how many uploads one JVM keeps going at once. Each operation writes concurrentUploads encrypted
+ * archives to sinks that stall for {@link #SINK_STALL_MILLIS} after every {@link #SINK_CHUNK_SIZE} bytes, like a slow
+ * network connection, and waits for all of them. Uploads per second is ops/s times concurrentUploads.
+ * <p>
+ * blocking calls writeEncryptedTo on a fixed pool of {@link #PLATFORM_THREADS_PER_CORE} platform threads per core,
+ * the way a server sized for blocking io would, so uploads past the pool's size queue behind stalled ones. async calls
+ * writeEncryptedToAsync on one virtual thread per upload when the JVM has them (Java 21 and later), or on a cached
+ * pool of platform threads otherwise, so every upload is in flight at once and the CPU only does the encryption.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentUploadBenchmark {
+    static final int PLATFORM_THREADS_PER_CORE = 4;
+    static final int SINK_CHUNK_SIZE = 4 * 1024;
+    static final int SINK_STALL_MILLIS = 2;
+
+    @Param({"blocking", "async"})
+    public String api;
+
+    @Param({"64", "1024"})
+    public int concurrentUploads;
+
+    @Param({"65536"})
+    public int payloadSize;
+
+    private Archive archive;
+    private StudyUploadEncryptor encryptor;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, OperatorCreationException {
+        byte[] payload = BenchmarkData.compressiblePayload(payloadSize, 42);
+        archive = Archive.Builder.forActivity("benchmark")
+                .withAppVersionName("version 1.0, build 1")
+                .withPhoneInfo("benchmark-phone")
+                .addDataFile(new ByteSourceArchiveFile("payload.json", DateTime.now(), ByteSource.wrap(payload)))
+                .build();
+        encryptor = new StudyUploadEncryptor(BenchmarkData.newCertificate());
+        if ("blocking".equals(api)) {
+            executor = Executors.newFixedThreadPool(
+                    PLATFORM_THREADS_PER_CORE * Runtime.getRuntime().availableProcessors());
+        } else {
+            executor = newVirtualThreadExecutor();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void upload() throws ExecutionException, InterruptedException {
+        if ("blocking".equals(api)) {
+            uploadBlocking();
+        } else {
+            uploadAsync();
+        }
+    }
+
+    private void uploadBlocking() throws ExecutionException, InterruptedException {
+        List<Future<Void>> futures = Lists.newArrayListWithCapacity(concurrentUploads);
+        for (int i = 0; i < concurrentUploads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    archive.writeEncryptedTo(new SlowOutputStream(), encryptor);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private void uploadAsync() throws ExecutionException, InterruptedException {
+        List<ListenableFuture<Void>> futures = Lists.newArrayListWithCapacity(concurrentUploads);
+        for (int i = 0; i < concurrentUploads; i++) {
+            futures.add(archive.writeEncryptedToAsync(new SlowOutputStream(), encryptor, executor));
+        }
+        Futures.allAsList(futures).get();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection, since the library builds for Java 7
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return Executors.newCachedThreadPool();
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // stands in for a socket to a slow client or a throttled upload, parking the writer rather than using CPU
+    private static final class SlowOutputStream extends FilterOutputStream {
+        private int unstalledBytes;
+
+        SlowOutputStream() {
+            super(ByteStreams.nullOutputStream());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+
+        private void written(int len) throws IOException {
+            unstalledBytes += len;
+            while (unstalledBytes >= SINK_CHUNK_SIZE) {
+                unstalledBytes -= SINK_CHUNK_SIZE;
+                try {
+                    Thread.sleep(SINK_STALL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
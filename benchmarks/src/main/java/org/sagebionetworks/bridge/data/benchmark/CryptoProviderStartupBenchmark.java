@@ -0,0 +1,59 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.StudyUploadEncryptor;
+
+/**
+ * Cold start cost of the encryptors, measured once in each of many fresh JVMs. loadEncryptorClass only loads and
+ * initializes StudyUploadEncryptor, which no longer loads Bouncy Castle's provider or touches the JVM's provider list.
+ * firstEncryption is what the first upload pays: building the provider on first use, setting up CMS and encrypting a
+ * small payload.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+@State(Scope.Benchmark)
+public class CryptoProviderStartupBenchmark {
+    private X509Certificate certificate;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, OperatorCreationException {
+        certificate = BenchmarkData.newCertificate();
+        payload = BenchmarkData.compressiblePayload(1024, 42);
+    }
+
+    @Benchmark
+    public Class<?> loadEncryptorClass() throws ClassNotFoundException {
+        return Class.forName("org.sagebionetworks.bridge.data.StudyUploadEncryptor", true,
+                CryptoProviderStartupBenchmark.class.getClassLoader());
+    }
+
+    @Benchmark
+    public void firstEncryption() throws IOException, CMSException {
+        try (OutputStream os = new StudyUploadEncryptor(certificate).encrypt(ByteStreams.nullOutputStream())) {
+            os.write(payload);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.AndroidStudyUploadEncryptor;
+import org.sagebionetworks.bridge.data.StudyUploadEncryptor;
+
+/**
+ * Throughput of encrypting a payload with StudyUploadEncryptor and AndroidStudyUploadEncryptor. Small payloads
+ * measure per-message CMS setup, large ones measure bulk AES throughput. Each benchmark runs on one thread, so ops/s
+ * times payloadSize is MB/s per core.
+ * <p>
+ * encryptPlatformCipher runs the AES content cipher on the JDK's SunJCE provider instead of Bouncy Castle's, which
+ * lets the JIT use the CPU's AES instructions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptorBenchmark {
+    @Param({"1024", "1048576", "16777216"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private StudyUploadEncryptor encryptor;
+    private StudyUploadEncryptor platformCipherEncryptor;
+    private AndroidStudyUploadEncryptor androidEncryptor;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, OperatorCreationException {
+        X509Certificate certificate = BenchmarkData.newCertificate();
+        payload = BenchmarkData.compressiblePayload(payloadSize, 42);
+        encryptor = new StudyUploadEncryptor(certificate);
+        platformCipherEncryptor = new StudyUploadEncryptor(certificate,
+                StudyUploadEncryptor.PLATFORM_CONTENT_CIPHER_PROVIDER);
+        androidEncryptor = new AndroidStudyUploadEncryptor(certificate);
+    }
+
+    @Benchmark
+    public void encrypt() throws IOException, CMSException {
+        try (OutputStream os = encryptor.encrypt(ByteStreams.nullOutputStream())) {
+            os.write(payload);
+        }
+    }
+
+    @Benchmark
+    public void encryptPlatformCipher() throws IOException, CMSException {
+        try (OutputStream os = platformCipherEncryptor.encrypt(ByteStreams.nullOutputStream())) {
+            os.write(payload);
+        }
+    }
+
+    @Benchmark
+    public void encryptAndroid() throws IOException, org.spongycastle.cms.CMSException {
+        try (OutputStream os = androidEncryptor.encrypt(ByteStreams.nullOutputStream())) {
+            os.write(payload);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.AndroidStudyUploadEncryptor;
+import org.sagebionetworks.bridge.data.StudyUploadEncryptor;
+
+/**
+ * Throughput of JCA operations that have nothing to do with uploads, as a server runs them, with and without this
+ * library's encryptors in use in the same JVM. Each call looks its algorithm up by name, the way application and TLS
+ * code does, so it gets whichever installed provider comes first. The encryptors used to install Bouncy Castle ahead
+ * of the JDK's providers, which moved all of these onto it. Now that they keep their providers to themselves, both
+ * values of libraryInUse should measure the same.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JcaThroughputBenchmark {
+    @Param({"false", "true"})
+    public boolean libraryInUse;
+
+    private final byte[] payload = BenchmarkData.compressiblePayload(1024, 42);
+    private final SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+    private final SecureRandom random = new SecureRandom();
+    private SSLContext sslContext;
+    private ByteBuffer tlsOutput;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, OperatorCreationException, IOException, CMSException,
+            org.spongycastle.cms.CMSException {
+        if (libraryInUse) {
+            X509Certificate certificate = BenchmarkData.newCertificate();
+            try (OutputStream os = new StudyUploadEncryptor(certificate).encrypt(ByteStreams.nullOutputStream())) {
+                os.write(payload);
+            }
+            try (OutputStream os = new AndroidStudyUploadEncryptor(certificate)
+                    .encrypt(ByteStreams.nullOutputStream())) {
+                os.write(payload);
+            }
+        }
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, null, null);
+        tlsOutput = ByteBuffer.allocate(sslContext.createSSLEngine().getSession().getPacketBufferSize());
+    }
+
+    @Benchmark
+    public byte[] sha256() throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(payload);
+    }
+
+    @Benchmark
+    public byte[] aesGcm() throws GeneralSecurityException {
+        byte[] iv = new byte[12];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        return cipher.doFinal(payload);
+    }
+
+    @Benchmark
+    public int tlsClientHello() throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine("upload.example.org", 443);
+        engine.setUseClientMode(true);
+        tlsOutput.clear();
+        engine.wrap(ByteBuffer.allocate(0), tlsOutput);
+        return tlsOutput.position();
+    }
+}
@@ -0,0 +1,83 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.JsonArchiveFile;
+
+/**
+ * JsonArchiveFile construction from an object, which runs Gson, and reading its contents through getByteSource().
+ * The payload is a list of boxed accelerometer samples, the way step history reaches the library today. The lazy
+ * benchmark serializes the same samples straight into an output stream, as Archive.writeTo does for lazy files.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonArchiveFileBenchmark {
+    public static class Sample {
+        Long timestamp;
+        Double x;
+        Double y;
+        Double z;
+    }
+
+    @Param({"10", "1000", "100000"})
+    public int sampleCount;
+
+    private final DateTime endDate = DateTime.now();
+    private List<Sample> samples;
+    private JsonArchiveFile archiveFile;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        samples = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            Sample sample = new Sample();
+            sample.timestamp = 1_500_000_000_000L + i * 10L;
+            sample.x = random.nextGaussian();
+            sample.y = random.nextGaussian();
+            sample.z = random.nextGaussian();
+            samples.add(sample);
+        }
+        archiveFile = new JsonArchiveFile("accelerometer.json", endDate, samples);
+    }
+
+    @Benchmark
+    public JsonArchiveFile construct() {
+        return new JsonArchiveFile("accelerometer.json", endDate, samples);
+    }
+
+    @Benchmark
+    public byte[] getByteSource() throws IOException {
+        ByteSource byteSource = archiveFile.getByteSource();
+        return byteSource.read();
+    }
+
+    @Benchmark
+    public long constructAndWriteLazy() throws IOException {
+        JsonArchiveFile lazyFile = JsonArchiveFile.lazy("accelerometer.json", endDate, samples);
+        return lazyFile.getByteSource().copyTo(ByteStreams.nullOutputStream());
+    }
+}
@@ -0,0 +1,109 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.JsonArchiveFile;
+import org.sagebionetworks.bridge.data.SensorArchiveFile;
+
+/**
+ * Collecting and deflating accelerometer samples, the boxed way through JsonArchiveFile against SensorArchiveFile in
+ * both of its encodings. Each benchmark appends every sample and then deflates the file's contents, as Archive does
+ * for a compressed entry. Run with -prof gc to compare allocation per sample.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SensorArchiveFileBenchmark {
+    @Param({"1000", "100000"})
+    public int sampleCount;
+
+    private final DateTime endDate = DateTime.now();
+    private long[] timestamps;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        timestamps = new long[sampleCount];
+        x = new double[sampleCount];
+        y = new double[sampleCount];
+        z = new double[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            timestamps[i] = 1_500_000_000_000L + i * 10L;
+            x[i] = random.nextGaussian();
+            y[i] = random.nextGaussian();
+            z[i] = random.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    public long boxedJson() throws IOException {
+        List<JsonArchiveFileBenchmark.Sample> samples = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            JsonArchiveFileBenchmark.Sample sample = new JsonArchiveFileBenchmark.Sample();
+            sample.timestamp = timestamps[i];
+            sample.x = x[i];
+            sample.y = y[i];
+            sample.z = z[i];
+            samples.add(sample);
+        }
+        return deflate(JsonArchiveFile.lazy("accelerometer.json", endDate, samples).getByteSource());
+    }
+
+    @Benchmark
+    public long sensorJson() throws IOException {
+        return deflate(fill(SensorArchiveFile.Encoding.JSON).getByteSource());
+    }
+
+    @Benchmark
+    public long sensorBinary() throws IOException {
+        return deflate(fill(SensorArchiveFile.Encoding.BINARY).getByteSource());
+    }
+
+    private SensorArchiveFile fill(SensorArchiveFile.Encoding encoding) {
+        SensorArchiveFile file = new SensorArchiveFile("accelerometer", endDate, encoding, "x", "y", "z");
+        for (int i = 0; i < sampleCount; i++) {
+            file.append(timestamps[i], x[i], y[i], z[i]);
+        }
+        return file;
+    }
+
+    private static long deflate(ByteSource source) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            try (OutputStream os = new DeflaterOutputStream(ByteStreams.nullOutputStream(), deflater)) {
+                source.copyTo(os);
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+    }
+}
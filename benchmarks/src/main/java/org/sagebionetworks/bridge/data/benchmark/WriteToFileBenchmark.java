@@ -0,0 +1,96 @@
+package org.sagebionetworks.bridge.data.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.data.StudyUploadEncryptor;
+
+/**
+ * File-to-file encryption: the static StudyUploadEncryptor.writeTo with its certificate parsing, the Path variant on a
+ * shared encryptor, and the 1 KB stream copy writeTo used to do, as a baseline. The 1 GB case needs that much free
+ * space in the temp directory, twice.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteToFileBenchmark {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({"1048576", "1073741824"})
+    public long fileSize;
+
+    private String certificatePem;
+    private StudyUploadEncryptor encryptor;
+    private File inputFile;
+    private File outputFile;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException, OperatorCreationException {
+        X509Certificate certificate = BenchmarkData.newCertificate();
+        certificatePem = BenchmarkData.toPem(certificate);
+        encryptor = new StudyUploadEncryptor(certificate);
+        inputFile = File.createTempFile("WriteToFileBenchmark", ".in");
+        outputFile = File.createTempFile("WriteToFileBenchmark", ".out");
+
+        // written a chunk at a time, so the 1 GB case doesn't need a 1 GB heap
+        byte[] chunk = BenchmarkData.compressiblePayload(CHUNK_SIZE, 42);
+        try (OutputStream os = new FileOutputStream(inputFile)) {
+            for (long written = 0; written < fileSize; written += CHUNK_SIZE) {
+                os.write(chunk, 0, (int) Math.min(CHUNK_SIZE, fileSize - written));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        inputFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void writeTo() throws GeneralSecurityException, IOException, CMSException {
+        StudyUploadEncryptor.writeTo(certificatePem, inputFile.getPath(), outputFile.getPath());
+    }
+
+    @Benchmark
+    public void writeToPath() throws IOException, CMSException {
+        encryptor.writeTo(inputFile.toPath(), outputFile.toPath());
+    }
+
+    @Benchmark
+    public void streamCopyBaseline() throws IOException, CMSException {
+        byte[] buffer = new byte[1024];
+        try (FileOutputStream fos = new FileOutputStream(outputFile);
+                OutputStream os = encryptor.encrypt(fos);
+                FileInputStream fis = new FileInputStream(inputFile)) {
+            int length;
+            while ((length = fis.read(buffer)) > 0) {
+                os.write(buffer, 0, length);
+            }
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package org.sagebionetworks.bridge.data;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.security.Security;
+import java.security.Provider;
+import java.security.SecureRandom;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.cms.CMSAlgorithm;
@@ -17,34 +25,122 @@ import org.spongycastle.cms.CMSEnvelopedDataStreamGenerator;
 import org.spongycastle.cms.CMSException;
 import org.spongycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.spongycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
-import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.operator.OutputEncryptor;
 
 /**
  * Encrypts data using a Study's public key, so Bridge can decrypt it after upload.
+ * <p>
+ * Instances are thread safe, and meant to be shared by every thread that encrypts for the same study. Each
+ * message gets its own content key and IV, whichever thread encrypts it. Unlike {@link StudyUploadEncryptor}, it has
+ * no {@code ...Async} methods: {@link #encrypt} only wraps a stream and does no io of its own, so the caller's writes
+ * run wherever the app already does its background work.
+ * <p>
+ * SpongyCastle runs as a provider instance private to this library, and is never installed in
+ * {@link java.security.Security}. Provider names passed to the constructors are looked up the same way: "SC" means
+ * that instance, and any other name must be an installed provider.
  */
 public class AndroidStudyUploadEncryptor {
     private static final Logger LOG = LoggerFactory.getLogger(AndroidStudyUploadEncryptor.class);
 
-    private static final String JCE_PROVIDER = "SC"; // SpongyCastle
+    private static final String JCE_PROVIDER = CryptoProviders.SPONGY_CASTLE_NAME;
 
-    private final Supplier<JceKeyTransRecipientInfoGenerator> recipientInfoGeneratorSupplier;
+    /**
+     * Android's built-in OpenSSL-backed provider, whose AES uses the device's AES instructions where it has them.
+     */
+    public static final String PLATFORM_CONTENT_CIPHER_PROVIDER = "AndroidOpenSSL";
 
-    static {
-        // Dynamically register Cryptographic Service Provider
-        Security.insertProviderAt(new BouncyCastleProvider(), 1);
-    }
+    // one per recipient certificate, or null if any of them couldn't be created
+    private final Supplier<List<JceKeyTransRecipientInfoGenerator>> recipientInfoGeneratorSupplier;
+    private final Provider contentCipherProvider;
+
+    // The CMS generator and content encryptor builder are reused from message to message, since setting them up and
+    // seeding their SecureRandom costs more than encrypting a small archive. The builder still generates a fresh
+    // content key and IV for every message. Idle states are pooled in a lock-free queue, as in StudyUploadEncryptor,
+    // rather than kept per thread, so they don't outlive the encryptor on every thread of a long-lived pool.
+    private final Queue<EncryptorState> idleStates = new ConcurrentLinkedQueue<>();
 
     public AndroidStudyUploadEncryptor(final X509Certificate publicKey) {
+        this(ImmutableList.of(publicKey), JCE_PROVIDER);
+    }
+
+    /**
+     * @param publicKey
+     *         study's certificate
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES content cipher, such as
+     *         {@link #PLATFORM_CONTENT_CIPHER_PROVIDER}. SpongyCastle still builds the CMS structure and wraps the
+     *         content key either way, so the output is the same format.
+     */
+    public AndroidStudyUploadEncryptor(final X509Certificate publicKey, String contentCipherProvider) {
+        this(ImmutableList.of(publicKey), contentCipherProvider);
+    }
+
+    /**
+     * Same as {@link #AndroidStudyUploadEncryptor(X509Certificate, String)}, with a provider instance, which doesn't
+     * need to be installed in {@link java.security.Security}.
+     *
+     * @param publicKey
+     *         study's certificate
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES content cipher
+     */
+    public AndroidStudyUploadEncryptor(final X509Certificate publicKey, Provider contentCipherProvider) {
+        this(ImmutableList.of(publicKey), contentCipherProvider);
+    }
+
+    /**
+     * Encrypts for several recipients at once, such as two studies, or a study plus an escrow key. The content is
+     * encrypted once under a single content key, and only that key is wrapped separately for each certificate, so
+     * adding recipients doesn't add to the cost of encrypting the content.
+     *
+     * @param publicKeys
+     *         certificates of every recipient, any of whose private keys can decrypt the output
+     */
+    public AndroidStudyUploadEncryptor(List<X509Certificate> publicKeys) {
+        this(publicKeys, JCE_PROVIDER);
+    }
+
+    /**
+     * Same as {@link #AndroidStudyUploadEncryptor(List)}, with the content cipher on the given JCA provider.
+     *
+     * @param publicKeys
+     *         certificates of every recipient
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES content cipher
+     */
+    public AndroidStudyUploadEncryptor(List<X509Certificate> publicKeys, String contentCipherProvider) {
+        this(publicKeys, CryptoProviders.forName(contentCipherProvider));
+    }
+
+    /**
+     * Same as {@link #AndroidStudyUploadEncryptor(List, String)}, with a provider instance, which doesn't need to be
+     * installed in {@link java.security.Security}.
+     *
+     * @param publicKeys
+     *         certificates of every recipient
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES content cipher
+     */
+    public AndroidStudyUploadEncryptor(List<X509Certificate> publicKeys, Provider contentCipherProvider) {
+        checkArgument(!publicKeys.isEmpty(), "at least one recipient certificate is required");
+        checkNotNull(contentCipherProvider);
+
+        final List<X509Certificate> recipients = ImmutableList.copyOf(publicKeys);
+        this.contentCipherProvider = contentCipherProvider;
         this.recipientInfoGeneratorSupplier = Suppliers.memoize(
-                new Supplier<JceKeyTransRecipientInfoGenerator>() {
-                    @Override public JceKeyTransRecipientInfoGenerator get() {
-                        try {
-                            return new JceKeyTransRecipientInfoGenerator(publicKey).setProvider(JCE_PROVIDER);
-                        } catch (CertificateEncodingException e) {
-                            LOG.error("Unable to create recipient archiveInfo generator from public key", e);
+                new Supplier<List<JceKeyTransRecipientInfoGenerator>>() {
+                    @Override public List<JceKeyTransRecipientInfoGenerator> get() {
+                        List<JceKeyTransRecipientInfoGenerator> generators = Lists.newArrayList();
+                        for (X509Certificate publicKey : recipients) {
+                            try {
+                                generators.add(new JceKeyTransRecipientInfoGenerator(publicKey)
+                                        .setProvider(CryptoProviders.spongyCastle()));
+                            } catch (CertificateEncodingException e) {
+                                LOG.error("Unable to create recipient archiveInfo generator from public key", e);
+                                return null;
+                            }
                         }
-                        return null;
+                        return generators;
                     }
                 });
     }
@@ -59,18 +155,65 @@ public class AndroidStudyUploadEncryptor {
      *         problem with stream
      */
     public OutputStream encrypt(OutputStream stream) throws CMSException, IOException {
-        JceKeyTransRecipientInfoGenerator recipientInfoGenerator = recipientInfoGeneratorSupplier
-                .get();
-        checkState(recipientInfoGenerator != null, "RecipientInfoGenerator was not initialized successfully");
+        return encrypt(stream, ArchiveMetrics.NO_OP);
+    }
+
+    /**
+     * Same as {@link #encrypt(OutputStream)}, reporting how long the CMS header took to set up, and how long
+     * encryption took once the returned stream is closed.
+     *
+     * @param stream
+     *         plaintext stream
+     * @param metrics
+     *         listener for the timings
+     * @return encrypted stream
+     * @throws CMSException
+     *         problem with encryption
+     * @throws IOException
+     *         problem with stream
+     */
+    public OutputStream encrypt(OutputStream stream, ArchiveMetrics metrics) throws CMSException, IOException {
+        checkNotNull(metrics);
+        List<JceKeyTransRecipientInfoGenerator> recipientInfoGenerators = recipientInfoGeneratorSupplier.get();
+        checkState(recipientInfoGenerators != null, "RecipientInfoGenerator was not initialized successfully");
+
+        long start = metrics != ArchiveMetrics.NO_OP ? System.nanoTime() : 0;
+        EncryptorState state = idleStates.poll();
+        if (state == null) {
+            state = new EncryptorState(recipientInfoGenerators, contentCipherProvider);
+        }
+        OutputStream encryptedStream;
+        try {
+            // builds a new content key and IV
+            OutputEncryptor encryptor = state.contentEncryptorBuilder.build();
+            // the opened stream keeps its own copy of everything it needs from the generator
+            encryptedStream = state.generator.open(stream, encryptor);
+        } finally {
+            idleStates.offer(state);
+        }
+        if (metrics == ArchiveMetrics.NO_OP) {
+            return encryptedStream;
+        }
+
+        metrics.cmsSetUp(System.nanoTime() - start);
+        return EncryptionMeteringOutputStream.wrap(encryptedStream, metrics);
+    }
 
-        CMSEnvelopedDataStreamGenerator gen = new CMSEnvelopedDataStreamGenerator();
-        gen.addRecipientInfoGenerator(recipientInfoGenerator);
+    private static class EncryptorState {
+        final CMSEnvelopedDataStreamGenerator generator;
+        final JceCMSContentEncryptorBuilder contentEncryptorBuilder;
 
-        // Generate encrypted input stream in AES-256-CBC format, output is DER, not S/MIME or PEM
-        OutputEncryptor encryptor =
-                new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES256_CBC).setProvider(JCE_PROVIDER)
-                        .build();
+        EncryptorState(List<JceKeyTransRecipientInfoGenerator> recipientInfoGenerators,
+                Provider contentCipherProvider) {
+            generator = new CMSEnvelopedDataStreamGenerator();
+            for (JceKeyTransRecipientInfoGenerator recipientInfoGenerator : recipientInfoGenerators) {
+                generator.addRecipientInfoGenerator(recipientInfoGenerator);
+            }
 
-        return gen.open(stream, encryptor);
+            // Generate encrypted input stream in AES-256-CBC format, output is DER, not S/MIME or PEM
+            contentEncryptorBuilder = new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES256_CBC)
+                    .setProvider(contentCipherProvider)
+                    .setSecureRandom(new SecureRandom());
+        }
     }
 }
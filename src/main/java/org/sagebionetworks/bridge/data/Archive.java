@@ -1,52 +1,576 @@
 package org.sagebionetworks.bridge.data;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bouncycastle.cms.CMSException;
 import org.joda.time.DateTime;
 
-import org.sagebionetworks.bridge.rest.RestUtils;
-
 public class Archive {
-    private static final String ARCHIVE_INFO_FILE_NAME = "info.json";
+    static final String ARCHIVE_INFO_FILE_NAME = "info.json";
+
+    // Data files are streamed into the zip through a single buffer of this size, taken from CopyBuffers and reused
+    // across every entry and every archive, so peak memory does not depend on how large the data files are.
+    static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    // In parallel mode, files known to be smaller than this are compressed on the calling thread, since handing them
+    // to the executor costs more than compressing them.
+    static final long INLINE_COMPRESSION_SIZE = 16 * 1024;
 
     private final List<ArchiveFile> dataFiles;
+    // compression policy for each data file, in the same order as dataFiles
+    private final List<CompressionPolicy> compressionPolicies;
     private final ArchiveInfo archiveInfo;
+    // whether info.json records the SHA-256 of each data file
+    private final boolean fileDigests;
+    // only a listener, so it isn't part of equals
+    private final ArchiveMetrics metrics;
 
-    private Archive(List<ArchiveFile> dataFiles, ArchiveInfo archiveInfo) {
+    private Archive(List<ArchiveFile> dataFiles, List<CompressionPolicy> compressionPolicies,
+            ArchiveInfo archiveInfo, boolean fileDigests, ArchiveMetrics metrics) {
         this.dataFiles = dataFiles;
+        this.compressionPolicies = compressionPolicies;
         this.archiveInfo = archiveInfo;
+        this.fileDigests = fileDigests;
+        this.metrics = metrics;
     }
 
     public ZipOutputStream writeTo(OutputStream os) throws IOException {
         ZipOutputStream zos = new ZipOutputStream(os);
+        writeZip(zos, fileDigests);
+        return zos;
+    }
+
+    /**
+     * Same as {@link #writeTo(OutputStream)}, also computing the SHA-256 of each data file, and the MD5 and SHA-256
+     * of the zip, in the same pass.
+     *
+     * @param os
+     *         stream to receive the zipped archive
+     * @return digests of the data files and of the zip
+     * @throws IOException
+     *         problem reading a data file or writing the stream
+     */
+    public UploadDigests writeWithDigestsTo(OutputStream os) throws IOException {
+        UploadDigests.Recorder recorder = new UploadDigests.Recorder(os);
+        List<HashCode> sha256s = writeZip(new ZipOutputStream(recorder.stream()), true);
+        return recorder.finish(fileSha256Map(sha256s));
+    }
+
+    // writes and closes the zip, returning the SHA-256 of each data file if asked for, or null otherwise
+    private List<HashCode> writeZip(ZipOutputStream zos, boolean computeSha256s) throws IOException {
+        byte[] buffer = CopyBuffers.acquire();
+        List<HashCode> sha256s = computeSha256s ? Lists.<HashCode>newArrayListWithCapacity(dataFiles.size()) : null;
+        boolean metered = metrics != ArchiveMetrics.NO_OP;
         try {
-            for (ArchiveFile dataFile : dataFiles) {
-                ZipEntry entry = new ZipEntry(dataFile.getFilename());
+            for (int i = 0; i < dataFiles.size(); i++) {
+                long start = metered ? System.nanoTime() : 0;
+                ByteSource source = getDataFileSource(i);
+                ZipEntry entry = putDataFileEntry(zos, i, source, buffer);
+                if (sha256s != null) {
+                    // not closed, since that would close the zip
+                    HashingOutputStream hos = new HashingOutputStream(Hashing.sha256(), zos);
+                    copy(source, hos, buffer);
+                    sha256s.add(hos.hash());
+                } else {
+                    copy(source, zos, buffer);
+                }
+                closeDataFileEntry(zos, i, entry, source, start);
+            }
+            putArchiveInfoEntry(zos, sha256s);
+        } finally {
+            CopyBuffers.release(buffer);
+            zos.close();
+        }
+        return sha256s;
+    }
+
+    int getDataFileCount() {
+        return dataFiles.size();
+    }
+
+    boolean hasFileDigests() {
+        return fileDigests;
+    }
+
+    ArchiveMetrics getMetrics() {
+        return metrics;
+    }
+
+    ByteSource getDataFileSource(int index) {
+        return dataFiles.get(index).getByteSource();
+    }
+
+    // starts the entry for the data file at the index, ready for its contents
+    ZipEntry putDataFileEntry(ZipOutputStream zos, int index, ByteSource source, byte[] buffer) throws IOException {
+        if (chooseDataFileMethod(index, source, buffer) == ZipEntry.STORED) {
+            // stored entries need their size and CRC up front, which costs an extra read but no deflate
+            CheckedOutputStream cos = new CheckedOutputStream(ByteStreams.nullOutputStream(), new CRC32());
+            long size = copy(source, cos, buffer);
+            return putStoredDataFileEntry(zos, index, size, cos.getChecksum().getValue());
+        }
+        return putDeflatedDataFileEntry(zos, index);
+    }
+
+    // ZipEntry.STORED or ZipEntry.DEFLATED, as the data file's compression policy picks for its contents
+    int chooseDataFileMethod(int index, ByteSource source, byte[] buffer) throws IOException {
+        return compressionPolicies.get(index).chooseMethod(source, buffer);
+    }
+
+    // starts a stored entry for the data file at the index, given the size and CRC-32 of its contents
+    ZipEntry putStoredDataFileEntry(ZipOutputStream zos, int index, long size, long crc) throws IOException {
+        ZipEntry entry = new ZipEntry(dataFiles.get(index).getFilename());
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+        zos.putNextEntry(entry);
+        return entry;
+    }
+
+    // starts a deflated entry for the data file at the index, at its compression policy's level
+    ZipEntry putDeflatedDataFileEntry(ZipOutputStream zos, int index) throws IOException {
+        ZipEntry entry = new ZipEntry(dataFiles.get(index).getFilename());
+        zos.setLevel(compressionPolicies.get(index).getLevel());
+        zos.putNextEntry(entry);
+        return entry;
+    }
+
+    // source is the byte source the entry was written from, and start is when the entry was started, in
+    // System.nanoTime(), or 0 if the archive isn't metered
+    void closeDataFileEntry(ZipOutputStream zos, int index, ZipEntry entry, ByteSource source, long start)
+            throws IOException {
+        zos.closeEntry();
+        if (metrics != ArchiveMetrics.NO_OP) {
+            // closing a deflated entry fills in its sizes
+            metrics.entryWritten(entry.getName(), entry.getSize(), entry.getCompressedSize(),
+                    System.nanoTime() - start);
+            reportJsonSerialized(dataFiles.get(index), source);
+        }
+    }
 
-                zos.putNextEntry(entry);
-                zos.write(dataFile.getByteSource().read());
-                zos.closeEntry();
+    // writes info.json, the last entry, given the SHA-256 of each data file if they were computed, or null
+    void putArchiveInfoEntry(ZipOutputStream zos, List<HashCode> sha256s) throws IOException {
+        zos.setLevel(Deflater.DEFAULT_COMPRESSION);
+        ZipEntry infoFileEntry = new ZipEntry(ARCHIVE_INFO_FILE_NAME);
+        zos.putNextEntry(infoFileEntry);
+        new ArchiveInfoJsonWriter().write(archiveInfoWith(sha256s), zos);
+        zos.closeEntry();
+    }
+
+    /**
+     * Writes the archive, deflating data files in parallel on the given executor. Entries are still written in the
+     * same order as {@link #writeTo(OutputStream)}, and the output is an ordinary zip.
+     * <p>
+     * Each data file is compressed before it is written, and at most one file per available processor is in flight
+     * at a time. A file's compressed data is kept on the heap up to a few megabytes, and moved to a temp file beyond
+     * that, so peak memory is bounded whatever the size of the files, and entries of 4 GB or more get Zip64 headers
+     * as they would from {@link #writeTo(OutputStream)}. Files whose byte source reports a small size are compressed
+     * on the calling thread instead. The given stream is closed when this returns.
+     *
+     * @param os
+     *         stream to receive the zipped archive
+     * @param executor
+     *         executor to compress data files on
+     * @throws IOException
+     *         problem reading a data file or writing the stream
+     */
+    public void writeTo(OutputStream os, ExecutorService executor) throws IOException {
+        writeZip(os, executor, fileDigests);
+    }
+
+    /**
+     * Same as {@link #writeTo(OutputStream, ExecutorService)}, also computing the SHA-256 of each data file, on the
+     * thread that compresses it, and the MD5 and SHA-256 of the zip.
+     *
+     * @param os
+     *         stream to receive the zipped archive
+     * @param executor
+     *         executor to compress data files on
+     * @return digests of the data files and of the zip
+     * @throws IOException
+     *         problem reading a data file or writing the stream
+     */
+    public UploadDigests writeWithDigestsTo(OutputStream os, ExecutorService executor) throws IOException {
+        UploadDigests.Recorder recorder = new UploadDigests.Recorder(os);
+        List<HashCode> sha256s = writeZip(recorder.stream(), executor, true);
+        return recorder.finish(fileSha256Map(sha256s));
+    }
+
+    private List<HashCode> writeZip(OutputStream os, ExecutorService executor, final boolean computeSha256s)
+            throws IOException {
+        int maxInFlight = Runtime.getRuntime().availableProcessors();
+        Deque<Future<CompressedEntry>> inFlight = new ArrayDeque<>();
+        Iterator<ArchiveFile> pendingFiles = dataFiles.iterator();
+        Iterator<CompressionPolicy> pendingPolicies = compressionPolicies.iterator();
+        List<HashCode> sha256s = computeSha256s ? Lists.<HashCode>newArrayListWithCapacity(dataFiles.size()) : null;
+        // compressed on the executor and not yet written, so they can be discarded if the write fails
+        final Set<CompressedEntry> unwritten = Collections.newSetFromMap(
+                new ConcurrentHashMap<CompressedEntry, Boolean>());
+        final AtomicBoolean abandoned = new AtomicBoolean();
+
+        try (RawZipWriter writer = new RawZipWriter(os)) {
+            while (pendingFiles.hasNext() || !inFlight.isEmpty()) {
+                while (pendingFiles.hasNext() && inFlight.size() < maxInFlight) {
+                    final ArchiveFile dataFile = pendingFiles.next();
+                    final CompressionPolicy policy = pendingPolicies.next();
+                    final ByteSource source = dataFile.getByteSource();
+                    Optional<Long> size = source.sizeIfKnown();
+                    if (size.isPresent() && size.get() < INLINE_COMPRESSION_SIZE) {
+                        inFlight.add(Futures.immediateFuture(
+                                CompressedEntry.compress(dataFile.getFilename(), source, policy, computeSha256s)));
+                        reportJsonSerialized(dataFile, source);
+                        continue;
+                    }
+                    inFlight.add(executor.submit(new Callable<CompressedEntry>() {
+                        @Override public CompressedEntry call() throws IOException {
+                            CompressedEntry entry = CompressedEntry.compress(dataFile.getFilename(), source, policy,
+                                    computeSha256s);
+                            reportJsonSerialized(dataFile, source);
+                            unwritten.add(entry);
+                            if (abandoned.get()) {
+                                entry.discard();
+                            }
+                            return entry;
+                        }
+                    }));
+                }
+                CompressedEntry entry = await(inFlight.remove());
+                try {
+                    if (sha256s != null) {
+                        sha256s.add(entry.sha256);
+                    }
+                    writer.writeEntry(entry);
+                } finally {
+                    unwritten.remove(entry);
+                    entry.discard();
+                }
+                if (metrics != ArchiveMetrics.NO_OP) {
+                    metrics.entryWritten(entry.name, entry.size, entry.compressedSize, entry.compressNanos);
+                }
             }
 
-            ZipEntry infoFileEntry = new ZipEntry(ARCHIVE_INFO_FILE_NAME);
-            zos.putNextEntry(infoFileEntry);
-            zos.write(RestUtils.GSON.toJson(archiveInfo).getBytes(StandardCharsets.UTF_8));
-            zos.closeEntry();
+            byte[] infoJson = ArchiveInfoJsonWriter.toJson(archiveInfoWith(sha256s));
+            writer.writeEntry(CompressedEntry.compress(ARCHIVE_INFO_FILE_NAME, ByteSource.wrap(infoJson),
+                    CompressionPolicy.DEFAULT));
+            writer.finish();
         } finally {
-            zos.close();
+            // Entries finished after this point discard themselves, and entries finished before it are discarded
+            // here, so a failed write doesn't leave temp files behind.
+            abandoned.set(true);
+            for (Future<CompressedEntry> future : inFlight) {
+                future.cancel(true);
+            }
+            for (CompressedEntry entry : unwritten) {
+                entry.discard();
+            }
+        }
+        return sha256s;
+    }
+
+    private static CompressedEntry await(Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing archive");
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // lets JSON files report how long they took to serialize, once their entry has been written from the source
+    private void reportJsonSerialized(ArchiveFile dataFile, ByteSource source) {
+        if (dataFile instanceof JsonArchiveFile) {
+            ((JsonArchiveFile) dataFile).reportSerialized(source, metrics);
         }
-        return zos;
+    }
+
+    // sha256s are only recorded in info.json if the archive was built with file digests
+    private ArchiveInfo archiveInfoWith(List<HashCode> sha256s) {
+        ArchiveInfo info = archiveInfo;
+        if (fileDigests && sha256s != null) {
+            List<String> hexSha256s = Lists.newArrayListWithCapacity(sha256s.size());
+            for (HashCode sha256 : sha256s) {
+                hexSha256s.add(sha256.toString());
+            }
+            info = archiveInfo.withFileSha256s(hexSha256s);
+        }
+        return info;
+    }
+
+    private Map<String, HashCode> fileSha256Map(List<HashCode> sha256s) {
+        ImmutableMap.Builder<String, HashCode> builder = ImmutableMap.builder();
+        for (int i = 0; i < dataFiles.size(); i++) {
+            builder.put(dataFiles.get(i).getFilename(), sha256s.get(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Writes the archive straight into an encrypted CMS stream in a single pass, so the zipped archive is never
+     * buffered in memory. The CMS envelope is finished when this returns, but the given stream is left open.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @throws IOException
+     *         problem with stream
+     * @throws CMSException
+     *         problem with encryption
+     */
+    public void writeEncryptedTo(OutputStream os, StudyUploadEncryptor encryptor) throws IOException, CMSException {
+        writeTo(encryptor.encrypt(os, metrics));
+    }
+
+    /**
+     * Same as {@link #writeEncryptedTo(OutputStream, StudyUploadEncryptor)}, also computing the SHA-256 of each
+     * data file, and the MD5 and SHA-256 of the encrypted archive as written to the given stream, in the same pass.
+     * The MD5 is what the upload's Content-MD5 header needs.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @return digests of the data files and of the encrypted archive
+     * @throws IOException
+     *         problem with stream
+     * @throws CMSException
+     *         problem with encryption
+     */
+    public UploadDigests writeEncryptedWithDigestsTo(OutputStream os, StudyUploadEncryptor encryptor)
+            throws IOException, CMSException {
+        UploadDigests.Recorder recorder = new UploadDigests.Recorder(os);
+        List<HashCode> sha256s = writeZip(new ZipOutputStream(encryptor.encrypt(recorder.stream(), metrics)), true);
+        return recorder.finish(fileSha256Map(sha256s));
+    }
+
+    /**
+     * Same as {@link #writeEncryptedTo(OutputStream, StudyUploadEncryptor)}, using SpongyCastle on Android.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @throws IOException
+     *         problem with stream
+     * @throws org.spongycastle.cms.CMSException
+     *         problem with encryption
+     */
+    public void writeEncryptedTo(OutputStream os, AndroidStudyUploadEncryptor encryptor)
+            throws IOException, org.spongycastle.cms.CMSException {
+        writeTo(encryptor.encrypt(os, metrics));
+    }
+
+    /**
+     * Same as {@link #writeEncryptedWithDigestsTo(OutputStream, StudyUploadEncryptor)}, using SpongyCastle on
+     * Android.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @return digests of the data files and of the encrypted archive
+     * @throws IOException
+     *         problem with stream
+     * @throws org.spongycastle.cms.CMSException
+     *         problem with encryption
+     */
+    public UploadDigests writeEncryptedWithDigestsTo(OutputStream os, AndroidStudyUploadEncryptor encryptor)
+            throws IOException, org.spongycastle.cms.CMSException {
+        UploadDigests.Recorder recorder = new UploadDigests.Recorder(os);
+        List<HashCode> sha256s = writeZip(new ZipOutputStream(encryptor.encrypt(recorder.stream(), metrics)), true);
+        return recorder.finish(fileSha256Map(sha256s));
+    }
+
+    /**
+     * Publishes the archive, encrypted, as a stream of byte buffers that are only produced as the subscriber requests
+     * them, using a pool of two {@link DirectBufferPool#DEFAULT_BUFFER_SIZE} buffers of its own.
+     *
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @param executor
+     *         executor to read, compress and encrypt the archive and signal the subscriber on, or
+     *         {@link com.google.common.util.concurrent.MoreExecutors#directExecutor()} to do so on whichever thread
+     *         requests more
+     * @return publisher for a single subscriber
+     * @see EncryptedArchivePublisher
+     */
+    public EncryptedArchivePublisher toEncryptedPublisher(StudyUploadEncryptor encryptor, Executor executor) {
+        return toEncryptedPublisher(encryptor, new DirectBufferPool(DirectBufferPool.DEFAULT_BUFFER_SIZE, 2), executor);
+    }
+
+    /**
+     * Same as {@link #toEncryptedPublisher(StudyUploadEncryptor, Executor)}, taking buffers from the given pool,
+     * which can be shared by every upload the app has in flight. Each buffer holds one chunk.
+     *
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @param pool
+     *         pool to take buffers from
+     * @param executor
+     *         executor to read, compress and encrypt the archive and signal the subscriber on
+     * @return publisher for a single subscriber
+     */
+    public EncryptedArchivePublisher toEncryptedPublisher(StudyUploadEncryptor encryptor, DirectBufferPool pool,
+            Executor executor) {
+        return new EncryptedArchivePublisher(this, encryptor, pool, executor);
+    }
+
+    /**
+     * Same as {@link #writeTo(OutputStream)}, run on the given executor, which also closes the stream. The archive is
+     * written on a single task that holds no long-held locks, so many uploads can be written at once on an executor
+     * that starts a virtual thread per task, with each one only holding a thread while it reads or writes.
+     *
+     * @param os
+     *         stream to receive the zipped archive
+     * @param executor
+     *         executor to write the archive on
+     * @return future that completes when the archive is written, or fails with the {@link IOException} that
+     *         {@link #writeTo(OutputStream)} would have thrown
+     */
+    public ListenableFuture<Void> writeToAsync(final OutputStream os, Executor executor) {
+        checkNotNull(os);
+        return AsyncTasks.submit(executor, new Callable<Void>() {
+            @Override public Void call() throws IOException {
+                writeTo(os);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #writeWithDigestsTo(OutputStream)}, run on the given executor.
+     *
+     * @param os
+     *         stream to receive the zipped archive
+     * @param executor
+     *         executor to write the archive on
+     * @return future for the digests of the data files and of the zip
+     * @see #writeToAsync(OutputStream, Executor)
+     */
+    public ListenableFuture<UploadDigests> writeWithDigestsToAsync(final OutputStream os, Executor executor) {
+        checkNotNull(os);
+        return AsyncTasks.submit(executor, new Callable<UploadDigests>() {
+            @Override public UploadDigests call() throws IOException {
+                return writeWithDigestsTo(os);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #writeEncryptedTo(OutputStream, StudyUploadEncryptor)}, run on the given executor. The given
+     * stream is left open.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @param executor
+     *         executor to write the archive on
+     * @return future that completes when the archive is written, or fails with the {@link IOException} or
+     *         {@link CMSException} that {@link #writeEncryptedTo(OutputStream, StudyUploadEncryptor)} would have thrown
+     * @see #writeToAsync(OutputStream, Executor)
+     */
+    public ListenableFuture<Void> writeEncryptedToAsync(final OutputStream os, final StudyUploadEncryptor encryptor,
+            Executor executor) {
+        checkNotNull(os);
+        checkNotNull(encryptor);
+        return AsyncTasks.submit(executor, new Callable<Void>() {
+            @Override public Void call() throws IOException, CMSException {
+                writeEncryptedTo(os, encryptor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #writeEncryptedWithDigestsTo(OutputStream, StudyUploadEncryptor)}, run on the given executor.
+     *
+     * @param os
+     *         stream to receive the encrypted archive
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @param executor
+     *         executor to write the archive on
+     * @return future for the digests of the data files and of the encrypted archive
+     * @see #writeToAsync(OutputStream, Executor)
+     */
+    public ListenableFuture<UploadDigests> writeEncryptedWithDigestsToAsync(final OutputStream os,
+            final StudyUploadEncryptor encryptor, Executor executor) {
+        checkNotNull(os);
+        checkNotNull(encryptor);
+        return AsyncTasks.submit(executor, new Callable<UploadDigests>() {
+            @Override public UploadDigests call() throws IOException, CMSException {
+                return writeEncryptedWithDigestsTo(os, encryptor);
+            }
+        });
+    }
+
+    /**
+     * Streams the contents of the byte source into the output stream using the given buffer, without ever holding
+     * the whole source in memory. {@link StreamingByteSource}s write themselves directly and don't use the buffer.
+     *
+     * @return number of bytes copied
+     */
+    static long copy(ByteSource source, OutputStream os, byte[] buffer) throws IOException {
+        if (source instanceof StreamingByteSource) {
+            return source.copyTo(os);
+        }
+
+        long total = 0;
+        try (InputStream is = source.openStream()) {
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+                total += length;
+            }
+        }
+        return total;
     }
 
     @Override
@@ -55,25 +579,42 @@ public class Archive {
         if (o == null || !(o instanceof Archive)) return false;
         Archive archive = (Archive) o;
         return Objects.equal(dataFiles, archive.dataFiles)
-                && Objects.equal(archiveInfo, archive.archiveInfo);
+                && Objects.equal(compressionPolicies, archive.compressionPolicies)
+                && Objects.equal(archiveInfo, archive.archiveInfo)
+                && fileDigests == archive.fileDigests;
     }
 
     @Override
     public final int hashCode() {
-        return Objects.hashCode(dataFiles, archiveInfo);
+        return Objects.hashCode(dataFiles, compressionPolicies, archiveInfo, fileDigests);
     }
 
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("dataFiles", dataFiles)
+                .add("compressionPolicies", compressionPolicies)
                 .add("archiveInfo", archiveInfo)
+                .add("fileDigests", fileDigests)
                 .toString();
     }
 
     public static class Builder {
+        // stands in for a file's SHA-256 when working out how large info.json will be
+        private static final String SHA256_HEX_PLACEHOLDER = Strings.repeat("0", 64);
+
         private List<ArchiveFile> files = Lists.newArrayList();
+        // a zip can't have two entries with the same name, and file digests are looked up by name
+        private Set<String> fileNames = Sets.newHashSet();
+        // null means the file uses the builder's default compression policy
+        private List<CompressionPolicy> compressionPolicies = Lists.newArrayList();
+        private CompressionPolicy defaultCompressionPolicy = CompressionPolicy.DEFAULT;
         private ArchiveInfo archiveInfo = new ArchiveInfo();
+        // 0 means no limit
+        private long maxUncompressedSize;
+        private long maxCompressedSize;
+        private boolean fileDigests;
+        private ArchiveMetrics metrics = ArchiveMetrics.NO_OP;
 
         public Builder withAppVersionName(String appVersionName) {
             checkNotNull(appVersionName);
@@ -89,22 +630,217 @@ public class Archive {
             return this;
         }
 
+        /**
+         * Sets the compression policy for data files that weren't added with one of their own.
+         */
+        public Builder withCompressionPolicy(CompressionPolicy compressionPolicy) {
+            checkNotNull(compressionPolicy);
+
+            defaultCompressionPolicy = compressionPolicy;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         *         if the archive already has a data file with the same name
+         */
         public Builder addDataFile(ArchiveFile entry) {
             checkNotNull(entry);
+            checkUniqueFilename(entry);
+
+            files.add(entry);
+            compressionPolicies.add(null);
+            return this;
+        }
+
+        /**
+         * Adds a data file that is compressed according to the given policy, instead of the builder's default.
+         *
+         * @throws IllegalArgumentException
+         *         if the archive already has a data file with the same name
+         */
+        public Builder addDataFile(ArchiveFile entry, CompressionPolicy compressionPolicy) {
+            checkNotNull(entry);
+            checkNotNull(compressionPolicy);
+            checkUniqueFilename(entry);
 
             files.add(entry);
+            compressionPolicies.add(compressionPolicy);
             return this;
         }
 
+        private void checkUniqueFilename(ArchiveFile entry) {
+            checkArgument(fileNames.add(entry.getFilename()), "archive already has a data file named %s",
+                    entry.getFilename());
+        }
+
+        /**
+         * Records the SHA-256 of each data file in info.json. The digests are computed as the archive is written,
+         * since info.json is written after the data files, so this doesn't cost another read of them.
+         */
+        public Builder withFileDigests() {
+            fileDigests = true;
+            return this;
+        }
+
+        /**
+         * Reports per-file sizes and timings, and encryption timings, to the given listener whenever the archive is
+         * written.
+         */
+        public Builder withMetrics(ArchiveMetrics metrics) {
+            checkNotNull(metrics);
+
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Limits the total uncompressed size of each archive built by {@link #buildParts()}, counting data files and
+         * info.json.
+         */
+        public Builder withMaxUncompressedSize(long maxUncompressedSize) {
+            checkArgument(maxUncompressedSize > 0, "maxUncompressedSize must be positive");
+
+            this.maxUncompressedSize = maxUncompressedSize;
+            return this;
+        }
+
+        /**
+         * Limits the size of each zip built by {@link #buildParts()}, before encryption. Encryption adds a CMS header
+         * of about a kilobyte per recipient, and up to a block of padding.
+         */
+        public Builder withMaxCompressedSize(long maxCompressedSize) {
+            checkArgument(maxCompressedSize > 0, "maxCompressedSize must be positive");
+
+            this.maxCompressedSize = maxCompressedSize;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException
+         *         if the archive info is invalid, or a size limit is set, in which case use {@link #buildParts()}
+         */
         public Archive build() {
             checkState(archiveInfo.isValid(), "archive info is invalid");
+            checkState(maxUncompressedSize == 0 && maxCompressedSize == 0,
+                    "archives with a size limit are built with buildParts()");
 
-            archiveInfo.files = Lists.newArrayList();
-            for (ArchiveFile file : files) {
-                archiveInfo.files.add(new ArchiveInfo.FileInfo(file.getFilename(), file.getEndDate()));
+            return buildPart(0, files.size());
+        }
+
+        /**
+         * Builds as many archives as it takes to keep each one within the size limits, with the data files in the
+         * order they were added. Each archive has its own info.json, with the same activity and app details, listing
+         * only that archive's files. A data file that doesn't fit the limits on its own gets an archive to itself,
+         * since files aren't split. Without limits, this builds the same single archive as {@link #build()}.
+         * <p>
+         * Every data file's size is read to do this. With a compressed size limit, every data file is also
+         * compressed once and the output discarded, to find its exact compressed size.
+         *
+         * @return archives, at least one
+         * @throws IOException
+         *         problem reading a data file to find its size
+         */
+        public List<Archive> buildParts() throws IOException {
+            checkState(archiveInfo.isValid(), "archive info is invalid");
+
+            List<Archive> parts = Lists.newArrayList();
+            long emptyInfoSize = ArchiveInfoJsonWriter.jsonSize(
+                    archiveInfo.withFiles(ImmutableList.<ArchiveInfo.FileInfo>of()));
+            int partStart = 0;
+            long partUncompressedSize = 0;
+            long partCompressedSize = 0;
+            long partInfoSize = emptyInfoSize;
+            for (int i = 0; i < files.size(); i++) {
+                ArchiveFile file = files.get(i);
+                // plus the comma between files
+                long fileInfoSize = ArchiveInfoJsonWriter.jsonSize(new ArchiveInfo.FileInfo(file.getFilename(),
+                        file.getEndDate(), fileDigests ? SHA256_HEX_PLACEHOLDER : null)) + 1;
+                long uncompressedSize = 0;
+                if (maxUncompressedSize > 0) {
+                    uncompressedSize = file.getByteSource().size();
+                }
+                long compressedSize = 0;
+                if (maxCompressedSize > 0) {
+                    compressedSize = CompressedEntry.compressedSize(file.getByteSource(), policyAt(i))
+                            + RawZipWriter.maxEntryOverhead(file.getFilename());
+                }
+
+                if (i > partStart && !fitsLimits(partUncompressedSize + uncompressedSize,
+                        partCompressedSize + compressedSize, partInfoSize + fileInfoSize)) {
+                    parts.add(buildPart(partStart, i));
+                    partStart = i;
+                    partUncompressedSize = 0;
+                    partCompressedSize = 0;
+                    partInfoSize = emptyInfoSize;
+                }
+                partUncompressedSize += uncompressedSize;
+                partCompressedSize += compressedSize;
+                partInfoSize += fileInfoSize;
+            }
+            parts.add(buildPart(partStart, files.size()));
+            return parts;
+        }
+
+        private boolean fitsLimits(long dataUncompressedSize, long dataCompressedSize, long infoSize) {
+            if (maxUncompressedSize > 0 && dataUncompressedSize + infoSize > maxUncompressedSize) {
+                return false;
+            }
+            long zipSize = dataCompressedSize + RawZipWriter.maxEntryOverhead(ARCHIVE_INFO_FILE_NAME)
+                    + CompressedEntry.deflateBound(infoSize) + RawZipWriter.MAX_END_OVERHEAD;
+            return maxCompressedSize == 0 || zipSize <= maxCompressedSize;
+        }
+
+        /**
+         * Starts writing the archive to a zip file as the session goes, instead of keeping every data file until the
+         * end. Data files already added are written first. See {@link SpoolingArchiveWriter}.
+         *
+         * @param zipFile
+         *         file to write the zip to, replaced if it exists
+         * @return writer to add the rest of the data files to
+         * @throws IOException
+         *         problem writing the file, or it has an unfinished session that needs
+         *         {@link SpoolingArchiveWriter#recover(Path)}
+         * @throws IllegalStateException
+         *         if the archive info is invalid, or a size limit is set
+         */
+        public SpoolingArchiveWriter spoolTo(Path zipFile) throws IOException {
+            checkNotNull(zipFile);
+            checkState(archiveInfo.isValid(), "archive info is invalid");
+            checkState(maxUncompressedSize == 0 && maxCompressedSize == 0, "spooled archives can't have a size limit");
+
+            SpoolingArchiveWriter writer = SpoolingArchiveWriter.create(zipFile,
+                    archiveInfo.withFiles(ImmutableList.<ArchiveInfo.FileInfo>of()), defaultCompressionPolicy,
+                    fileDigests, metrics);
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    writer.addDataFile(files.get(i), policyAt(i));
+                }
+            } catch (IOException | RuntimeException e) {
+                writer.close();
+                throw e;
+            }
+            return writer;
+        }
+
+        // the archive of data files from start, inclusive, to end, exclusive
+        private Archive buildPart(int start, int end) {
+            List<ArchiveFile> partFiles = ImmutableList.copyOf(files.subList(start, end));
+            List<ArchiveInfo.FileInfo> fileInfos = Lists.newArrayListWithCapacity(partFiles.size());
+            List<CompressionPolicy> policies = Lists.newArrayListWithCapacity(partFiles.size());
+            for (int i = start; i < end; i++) {
+                ArchiveFile file = files.get(i);
+                fileInfos.add(new ArchiveInfo.FileInfo(file.getFilename(), file.getEndDate()));
+                policies.add(policyAt(i));
             }
 
-            return new Archive(files, archiveInfo);
+            return new Archive(partFiles, policies, archiveInfo.withFiles(fileInfos), fileDigests,
+                    metrics);
+        }
+
+        private CompressionPolicy policyAt(int index) {
+            CompressionPolicy policy = compressionPolicies.get(index);
+            return policy != null ? policy : defaultCompressionPolicy;
         }
 
         private Builder() {
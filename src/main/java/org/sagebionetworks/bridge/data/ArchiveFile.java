@@ -20,6 +20,10 @@ public interface ArchiveFile {
     DateTime getEndDate();
 
     /**
+     * Implementations should return a byte source that reports its size through {@link ByteSource#sizeIfKnown()}
+     * whenever it's cheap to know, such as for data already in memory or in a file. Archives use the size to pick
+     * compression strategies and presize buffers.
+     *
      * @return measured data
      */
     ByteSource getByteSource();
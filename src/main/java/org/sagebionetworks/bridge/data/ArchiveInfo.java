@@ -1,18 +1,21 @@
 package org.sagebionetworks.bridge.data;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.isNullOrEmpty;
 
 import java.util.List;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.gson.annotations.SerializedName;
 import org.joda.time.DateTime;
 
 /**
  * This is the model for info.json
  */
-class ArchiveInfo {
+public class ArchiveInfo {
     private static final int DEFAULT_SCHEMA_REVISION = 1;
 
     public static class FileInfo {
@@ -20,10 +23,33 @@ class ArchiveInfo {
         final String filename;
         @SerializedName("timestamp")
         final DateTime timestamp;
+        // hex SHA-256 of the file, only written if the archive was built with file digests
+        @SerializedName("sha256")
+        final String sha256;
 
         FileInfo(String filename, DateTime timestamp) {
+            this(filename, timestamp, null);
+        }
+
+        FileInfo(String filename, DateTime timestamp, String sha256) {
             this.filename = filename;
             this.timestamp = timestamp;
+            this.sha256 = sha256;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public DateTime getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return hex SHA-256 of the file, or null if the archive wasn't built with file digests
+         */
+        public String getSha256() {
+            return sha256;
         }
 
         @Override public boolean equals(Object o) {
@@ -35,17 +61,19 @@ class ArchiveInfo {
             }
             FileInfo fileInfo = (FileInfo) o;
             return Objects.equal(filename, fileInfo.filename) &&
-                    Objects.equal(timestamp, fileInfo.timestamp);
+                    Objects.equal(timestamp, fileInfo.timestamp) &&
+                    Objects.equal(sha256, fileInfo.sha256);
         }
 
         @Override public int hashCode() {
-            return Objects.hashCode(filename, timestamp);
+            return Objects.hashCode(filename, timestamp, sha256);
         }
 
         @Override public String toString() {
             return MoreObjects.toStringHelper(this)
                     .add("filename", filename)
                     .add("timestamp", timestamp)
+                    .add("sha256", sha256)
                     .toString();
         }
     }
@@ -70,6 +98,70 @@ class ArchiveInfo {
     @SerializedName("schemaRevision")
     int schemaRevision = DEFAULT_SCHEMA_REVISION;
 
+    // built by Archive.Builder, or by Gson when reading
+    ArchiveInfo() {
+    }
+
+    public String getAppVersion() {
+        return appVersion;
+    }
+
+    public String getPhoneInfo() {
+        return phoneInfo;
+    }
+
+    /**
+     * @return immutable copy of the files listed, or null if info.json has no file list
+     */
+    public List<FileInfo> getFiles() {
+        return files != null ? ImmutableList.copyOf(files) : null;
+    }
+
+    public String getSurveyGuid() {
+        return surveyGuid;
+    }
+
+    public DateTime getSurveyCreatedOn() {
+        return surveyCreatedOn;
+    }
+
+    public String getItem() {
+        return item;
+    }
+
+    public int getSchemaRevision() {
+        return schemaRevision;
+    }
+
+    /**
+     * @return copy of this info, listing the given files instead
+     */
+    ArchiveInfo withFiles(List<FileInfo> files) {
+        ArchiveInfo copy = new ArchiveInfo();
+        copy.appVersion = appVersion;
+        copy.phoneInfo = phoneInfo;
+        copy.files = files;
+        copy.surveyGuid = surveyGuid;
+        copy.surveyCreatedOn = surveyCreatedOn;
+        copy.item = item;
+        copy.schemaRevision = schemaRevision;
+        return copy;
+    }
+
+    /**
+     * @return copy of this info, with the given hex SHA-256 recorded for each file, in the same order as the files
+     */
+    ArchiveInfo withFileSha256s(List<String> sha256s) {
+        checkArgument(sha256s.size() == files.size(), "expected %s digests, got %s", files.size(), sha256s.size());
+
+        List<FileInfo> digestedFiles = Lists.newArrayListWithCapacity(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            FileInfo fileInfo = files.get(i);
+            digestedFiles.add(new FileInfo(fileInfo.filename, fileInfo.timestamp, sha256s.get(i)));
+        }
+        return withFiles(digestedFiles);
+    }
+
     boolean isSurvey() {
         return !isNullOrEmpty(surveyGuid) && (surveyCreatedOn != null);
     }
@@ -0,0 +1,155 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.DateTime;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+/**
+ * Writes info.json without going through Gson's reflection. The output is byte for byte what
+ * {@code RestUtils.GSON.toJson(archiveInfo)} produces: fields are written in declaration order, nulls are left out,
+ * and strings and timestamps are escaped and formatted by Gson's own writer and {@link DateTime} adapter. Each
+ * distinct timestamp is only formatted once, since the files in an archive often share their end dates.
+ * <p>
+ * Field names must be kept in step with the {@code @SerializedName}s in {@link ArchiveInfo}.
+ */
+final class ArchiveInfoJsonWriter {
+    private static final TypeAdapter<DateTime> DATE_TIME_ADAPTER = RestUtils.GSON.getAdapter(DateTime.class);
+    // Gson.newJsonWriter() doesn't carry over HTML escaping, which toJson() applies, so it's worked out once here
+    private static final boolean HTML_SAFE = RestUtils.GSON.toJson("<").equals("\"\\u003c\"");
+
+    private final Map<DateTime, String> formattedTimestamps = Maps.newHashMap();
+
+    /**
+     * @return info.json for the given info, in UTF-8
+     */
+    static byte[] toJson(ArchiveInfo info) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new ArchiveInfoJsonWriter().write(info, bytes);
+        } catch (IOException e) {
+            // a byte array can't fail to write
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return length of the given info's JSON, in UTF-8 bytes
+     */
+    static long jsonSize(ArchiveInfo info) {
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            new ArchiveInfoJsonWriter().write(info, counter);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * @return length of the given file info's JSON, in UTF-8 bytes, as it appears in the list of files
+     */
+    static long jsonSize(ArchiveInfo.FileInfo fileInfo) {
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            ArchiveInfoJsonWriter infoWriter = new ArchiveInfoJsonWriter();
+            OutputStreamWriter writer = new OutputStreamWriter(counter, StandardCharsets.UTF_8);
+            JsonWriter jsonWriter = newJsonWriter(writer);
+            infoWriter.writeFileInfo(jsonWriter, fileInfo);
+            jsonWriter.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * Writes the info's JSON to the stream in UTF-8. The stream is flushed but not closed, so it can be a zip entry.
+     *
+     * @param info
+     *         archive info to write
+     * @param output
+     *         stream to write to
+     * @throws IOException
+     *         problem writing the stream
+     */
+    void write(ArchiveInfo info, OutputStream output) throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        JsonWriter jsonWriter = newJsonWriter(writer);
+        if (info == null) {
+            jsonWriter.nullValue();
+        } else {
+            jsonWriter.beginObject();
+            jsonWriter.name("appVersion").value(info.appVersion);
+            jsonWriter.name("phoneInfo").value(info.phoneInfo);
+            jsonWriter.name("files");
+            writeFiles(jsonWriter, info.files);
+            jsonWriter.name("surveyGuid").value(info.surveyGuid);
+            jsonWriter.name("surveyCreatedOn");
+            writeTimestamp(jsonWriter, info.surveyCreatedOn);
+            jsonWriter.name("item").value(info.item);
+            jsonWriter.name("schemaRevision").value(info.schemaRevision);
+            jsonWriter.endObject();
+        }
+        jsonWriter.flush();
+    }
+
+    private static JsonWriter newJsonWriter(Writer writer) throws IOException {
+        JsonWriter jsonWriter = RestUtils.GSON.newJsonWriter(writer);
+        jsonWriter.setHtmlSafe(HTML_SAFE);
+        return jsonWriter;
+    }
+
+    private void writeFiles(JsonWriter jsonWriter, List<ArchiveInfo.FileInfo> files) throws IOException {
+        if (files == null) {
+            jsonWriter.nullValue();
+            return;
+        }
+        jsonWriter.beginArray();
+        for (int i = 0; i < files.size(); i++) {
+            writeFileInfo(jsonWriter, files.get(i));
+        }
+        jsonWriter.endArray();
+    }
+
+    private void writeFileInfo(JsonWriter jsonWriter, ArchiveInfo.FileInfo fileInfo) throws IOException {
+        if (fileInfo == null) {
+            jsonWriter.nullValue();
+            return;
+        }
+        jsonWriter.beginObject();
+        jsonWriter.name("filename").value(fileInfo.filename);
+        jsonWriter.name("timestamp");
+        writeTimestamp(jsonWriter, fileInfo.timestamp);
+        jsonWriter.name("sha256").value(fileInfo.sha256);
+        jsonWriter.endObject();
+    }
+
+    // a null value after a name drops the name too, unless the writer serializes nulls, the same as Gson's own
+    private void writeTimestamp(JsonWriter jsonWriter, DateTime timestamp) throws IOException {
+        if (timestamp == null) {
+            jsonWriter.nullValue();
+            return;
+        }
+        String json = formattedTimestamps.get(timestamp);
+        if (json == null) {
+            json = DATE_TIME_ADAPTER.toJson(timestamp);
+            formattedTimestamps.put(timestamp, json);
+        }
+        jsonWriter.jsonValue(json);
+    }
+}
@@ -0,0 +1,82 @@
+package org.sagebionetworks.bridge.data;
+
+/**
+ * Listener for where the time goes when archives are written and encrypted. Set it with
+ * {@link Archive.Builder#withMetrics(ArchiveMetrics)}, or pass it to the encryptors' {@code encrypt} methods.
+ * Listeners are called on whichever thread did the work, so implementations must be thread safe, and should be cheap,
+ * since they're called on the hot path.
+ * <p>
+ * {@link #NO_OP} is the default. With it nothing is timed and no streams are wrapped, so it costs nothing.
+ *
+ * @see InMemoryArchiveMetrics
+ */
+public interface ArchiveMetrics {
+    /**
+     * Ignores everything.
+     */
+    ArchiveMetrics NO_OP = new ArchiveMetrics() {
+        @Override
+        public void entryWritten(String filename, long rawBytes, long compressedBytes, long compressNanos) {
+        }
+
+        @Override
+        public void jsonSerialized(String filename, long bytes, long nanos) {
+        }
+
+        @Override
+        public void cmsSetUp(long nanos) {
+        }
+
+        @Override
+        public void encrypted(long bytes, long nanos) {
+        }
+    };
+
+    /**
+     * Called after each data file is written to the zip.
+     *
+     * @param filename
+     *         data file's name
+     * @param rawBytes
+     *         uncompressed size
+     * @param compressedBytes
+     *         size in the zip, the same as rawBytes for stored entries
+     * @param compressNanos
+     *         time spent reading and compressing the file, which can't be told apart since they're interleaved
+     */
+    void entryWritten(String filename, long rawBytes, long compressedBytes, long compressNanos);
+
+    /**
+     * Called once for each {@link JsonArchiveFile} entry written to an archive. Eager files report the time they took
+     * to serialize when they were created. Lazy files serialize straight into the zip, so their time includes
+     * compressing the JSON; if they were also read for a stored entry's CRC or a compression sample, only the copy
+     * into the zip is reported.
+     *
+     * @param filename
+     *         data file's name
+     * @param bytes
+     *         size of the UTF-8 JSON
+     * @param nanos
+     *         time spent serializing
+     */
+    void jsonSerialized(String filename, long bytes, long nanos);
+
+    /**
+     * Called when an encrypted stream is opened.
+     *
+     * @param nanos
+     *         time spent generating the content key, wrapping it for each recipient and writing the CMS header
+     */
+    void cmsSetUp(long nanos);
+
+    /**
+     * Called when an encrypted stream is closed.
+     *
+     * @param bytes
+     *         plaintext bytes encrypted
+     * @param nanos
+     *         time spent in the encrypted stream, encrypting and writing to the stream underneath, but not producing
+     *         the plaintext
+     */
+    void encrypted(long bytes, long nanos);
+}
@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.bouncycastle.cms.CMSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zips and encrypts many archives concurrently, for server-side jobs that package uploads in bulk.
+ * <p>
+ * Each archive is zipped straight into its encrypted output on the executor, in a single pass, so nothing is buffered
+ * between the zip and encrypt stages. At most maxInFlight archives are processed at a time; {@link #submit} blocks
+ * when that many are in flight, which keeps memory bounded no matter how fast archives are produced. A failure in
+ * one archive is reported to the sink and doesn't affect the others.
+ * <p>
+ * Submitting is thread safe.
+ *
+ * @param <K>
+ *         type of the key that identifies each archive to the sink
+ */
+public class ArchivePipeline<K> {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchivePipeline.class);
+
+    /**
+     * Receives the encrypted archives. Methods are called from the executor's threads, and may be called for
+     * different archives concurrently.
+     *
+     * @param <K>
+     *         type of the key that identifies each archive
+     */
+    public interface Sink<K> {
+        /**
+         * @return stream to write the encrypted archive to, the pipeline closes it when done
+         */
+        OutputStream open(K key) throws IOException;
+
+        /**
+         * Called once the encrypted archive has been written and its stream closed.
+         */
+        void onSuccess(K key);
+
+        /**
+         * Called if zipping, encrypting or writing the archive fails. Whatever was written to the stream is
+         * incomplete and should be discarded.
+         */
+        void onFailure(K key, Exception e);
+    }
+
+    private final Executor executor;
+    private final StudyUploadEncryptor encryptor;
+    private final Sink<K> sink;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    /**
+     * @param executor
+     *         executor to zip and encrypt archives on
+     * @param maxInFlight
+     *         maximum number of archives being processed at once, usually a small multiple of the executor's threads
+     * @param encryptor
+     *         encryptor for the study's public key
+     * @param sink
+     *         receives the encrypted archives
+     */
+    public ArchivePipeline(Executor executor, int maxInFlight, StudyUploadEncryptor encryptor, Sink<K> sink) {
+        checkNotNull(executor);
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        checkNotNull(encryptor);
+        checkNotNull(sink);
+
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.encryptor = encryptor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queues the archive to be zipped and encrypted, waiting first if maxInFlight archives are already in flight.
+     *
+     * @param key
+     *         identifies the archive to the sink
+     * @param archive
+     *         archive to zip and encrypt
+     * @throws InterruptedException
+     *         if interrupted while waiting for room in the pipeline
+     */
+    public void submit(final K key, final Archive archive) throws InterruptedException {
+        checkNotNull(archive);
+
+        inFlight.acquire();
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        process(key, archive);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until every submitted archive has been delivered to the sink. Archives submitted concurrently with this
+     * call may or may not be waited for.
+     *
+     * @throws InterruptedException
+     *         if interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    private void process(K key, Archive archive) {
+        try {
+            try (OutputStream os = sink.open(key)) {
+                archive.writeEncryptedTo(os, encryptor);
+            }
+        } catch (IOException | CMSException | RuntimeException e) {
+            notifyFailure(key, e);
+            return;
+        }
+
+        try {
+            sink.onSuccess(key);
+        } catch (RuntimeException e) {
+            LOG.error("Sink failed to handle success for archive " + key, e);
+        }
+    }
+
+    private void notifyFailure(K key, Exception e) {
+        try {
+            sink.onFailure(key, e);
+        } catch (RuntimeException sinkException) {
+            LOG.error("Sink failed to handle failure for archive " + key, sinkException);
+        }
+    }
+}
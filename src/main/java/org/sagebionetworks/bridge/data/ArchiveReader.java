@@ -0,0 +1,273 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.gson.JsonParseException;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+import org.joda.time.DateTime;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+/**
+ * Reads an archive written by {@link Archive}, one entry at a time, decrypting and unzipping as it goes. Nothing is
+ * buffered beyond the current entry's stream, so memory doesn't depend on the size of the archive, and closing the
+ * reader early skips decrypting the rest of it.
+ * <pre>
+ *     try (ArchiveReader reader = ArchiveReader.openEncrypted(is, cert, privateKey)) {
+ *         ArchiveFile file;
+ *         while ((file = reader.nextFile()) != null) {
+ *             ...
+ *         }
+ *         ArchiveInfo info = reader.getArchiveInfo();
+ *     }
+ * </pre>
+ * Data files are returned in the order they were written. {@link Archive} writes info.json after the data files, so
+ * {@link ArchiveFile#getEndDate()} is null until info.json has been read, by reading past the last data file or by
+ * calling {@link #getArchiveInfo()}; files returned earlier then report their end dates too. Each file's byte source
+ * can only be read while it is the current file, and only once. Readers are not thread safe.
+ */
+public class ArchiveReader implements Closeable {
+    private static final String ARCHIVE_INFO_FILE_NAME = "info.json";
+    private final ZipInputStream zis;
+    private ArchiveInfo archiveInfo;
+    // advances with every entry, so a byte source can tell if it is still the current entry
+    private int entryCount;
+    private boolean finished;
+
+    /**
+     * @param zipStream
+     *         stream of an unencrypted archive, closed when the reader is
+     */
+    public ArchiveReader(InputStream zipStream) {
+        this.zis = new ZipInputStream(checkNotNull(zipStream), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens an archive encrypted for a study by {@link Archive#writeEncryptedTo(java.io.OutputStream,
+     * StudyUploadEncryptor)} or {@link StudyUploadEncryptor}. Only the CMS header is read before this returns; the
+     * content is decrypted as entries are read.
+     *
+     * @param encryptedStream
+     *         stream of the encrypted archive, closed when the reader is
+     * @param certificate
+     *         study's certificate, the archive must have been encrypted for it
+     * @param privateKey
+     *         study's private key
+     * @return reader positioned before the first entry
+     * @throws IOException
+     *         problem reading the CMS header
+     * @throws CMSException
+     *         archive isn't CMS, or wasn't encrypted for this certificate
+     */
+    public static ArchiveReader openEncrypted(InputStream encryptedStream, X509Certificate certificate,
+            PrivateKey privateKey) throws IOException, CMSException {
+        checkNotNull(encryptedStream);
+        checkNotNull(certificate);
+        checkNotNull(privateKey);
+
+        CMSEnvelopedDataParser parser = new CMSEnvelopedDataParser(encryptedStream);
+        RecipientInformation recipient = parser.getRecipientInfos().get(new JceKeyTransRecipientId(certificate));
+        if (recipient == null) {
+            throw new CMSException("archive was not encrypted for this certificate");
+        }
+        InputStream contentStream = recipient.getContentStream(new JceKeyTransEnvelopedRecipient(privateKey)
+                .setProvider(CryptoProviders.bouncyCastle())).getContentStream();
+        return new ArchiveReader(contentStream);
+    }
+
+    /**
+     * Advances to the next data file, skipping whatever is left of the current one. info.json is parsed when it's
+     * reached and isn't returned as a data file.
+     *
+     * @return next data file, or null at the end of the archive
+     * @throws IOException
+     *         problem reading, decrypting or unzipping, or info.json isn't valid
+     */
+    public ArchiveFile nextFile() throws IOException {
+        while (!finished) {
+            ZipEntry entry = zis.getNextEntry();
+            entryCount++;
+            if (entry == null) {
+                finished = true;
+            } else if (entry.isDirectory()) {
+                continue;
+            } else if (ARCHIVE_INFO_FILE_NAME.equals(entry.getName()) && archiveInfo == null) {
+                archiveInfo = readArchiveInfo();
+            } else {
+                return new Entry(entry, entryCount);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the archive's info.json. If it hasn't been reached yet, the data files before it are skipped, and won't
+     * be returned by {@link #nextFile()}.
+     *
+     * @return parsed info.json
+     * @throws IOException
+     *         problem reading, or the archive has no info.json
+     */
+    public ArchiveInfo getArchiveInfo() throws IOException {
+        while (archiveInfo == null && !finished) {
+            ZipEntry entry = zis.getNextEntry();
+            entryCount++;
+            if (entry == null) {
+                finished = true;
+            } else if (ARCHIVE_INFO_FILE_NAME.equals(entry.getName())) {
+                archiveInfo = readArchiveInfo();
+            }
+        }
+        if (archiveInfo == null) {
+            throw new IOException("archive has no " + ARCHIVE_INFO_FILE_NAME);
+        }
+        return archiveInfo;
+    }
+
+    /**
+     * Closes the underlying stream, without reading the rest of the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        zis.close();
+    }
+
+    private ArchiveInfo readArchiveInfo() throws IOException {
+        try {
+            ArchiveInfo info = RestUtils.GSON.fromJson(new InputStreamReader(new EntryInputStream(entryCount),
+                    StandardCharsets.UTF_8), ArchiveInfo.class);
+            if (info == null) {
+                throw new IOException(ARCHIVE_INFO_FILE_NAME + " is empty");
+            }
+            return info;
+        } catch (JsonParseException e) {
+            throw new IOException("unable to parse " + ARCHIVE_INFO_FILE_NAME, e);
+        }
+    }
+
+    private DateTime endDateOf(String filename) {
+        if (archiveInfo == null || archiveInfo.files == null) {
+            return null;
+        }
+        for (ArchiveInfo.FileInfo fileInfo : archiveInfo.files) {
+            if (filename.equals(fileInfo.filename)) {
+                return fileInfo.timestamp;
+            }
+        }
+        return null;
+    }
+
+    // One data file in the archive. Its byte source reads straight from the zip stream.
+    private class Entry implements ArchiveFile {
+        private final ZipEntry zipEntry;
+        private final int entryIndex;
+        private final ByteSource byteSource = new ByteSource() {
+            private boolean opened;
+
+            @Override
+            public InputStream openStream() throws IOException {
+                checkState(entryIndex == entryCount, "%s is no longer the current entry", zipEntry.getName());
+                checkState(!opened, "%s can only be read once", zipEntry.getName());
+                opened = true;
+                return new EntryInputStream(entryIndex);
+            }
+
+            @Override
+            public Optional<Long> sizeIfKnown() {
+                return zipEntry.getSize() >= 0 ? Optional.of(zipEntry.getSize()) : Optional.<Long>absent();
+            }
+        };
+
+        Entry(ZipEntry zipEntry, int entryIndex) {
+            this.zipEntry = zipEntry;
+            this.entryIndex = entryIndex;
+        }
+
+        @Override
+        public String getFilename() {
+            return zipEntry.getName();
+        }
+
+        /**
+         * @return the file's timestamp from info.json, or null if info.json hasn't been read yet
+         */
+        @Override
+        public DateTime getEndDate() {
+            // looked up on every call, since info.json usually comes after the data files
+            return endDateOf(zipEntry.getName());
+        }
+
+        @Override
+        public ByteSource getByteSource() {
+            return byteSource;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("filename", zipEntry.getName())
+                    .add("endDate", getEndDate())
+                    .toString();
+        }
+    }
+
+    // Reads the current zip entry, and fails instead of reading the next one once the reader has moved on. Closing it
+    // leaves the zip stream open, so the next entry can still be read.
+    private class EntryInputStream extends FilterInputStream {
+        private final int entryIndex;
+
+        EntryInputStream(int entryIndex) {
+            super(zis);
+            this.entryIndex = entryIndex;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCurrent();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCurrent();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkCurrent();
+            return super.skip(n);
+        }
+
+        @Override
+        public void close() {
+            // the reader owns the zip stream
+        }
+
+        private void checkCurrent() throws IOException {
+            if (entryIndex != entryCount) {
+                throw new IOException("entry is no longer the current entry");
+            }
+        }
+    }
+}
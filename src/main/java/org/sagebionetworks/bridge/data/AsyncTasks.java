@@ -0,0 +1,37 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+/**
+ * Runs the blocking entry points on a caller's executor for their async variants.
+ */
+final class AsyncTasks {
+    private AsyncTasks() {
+    }
+
+    /**
+     * Runs the task on the executor. The future fails with the task's exception, wrapped in an
+     * {@link java.util.concurrent.ExecutionException} by {@link ListenableFuture#get()}, and cancelling it with
+     * interruption interrupts the task if it has started.
+     *
+     * @param executor
+     *         executor to run the task on, such as one that starts a virtual thread per task
+     * @param task
+     *         blocking work
+     * @return the task's result
+     * @throws java.util.concurrent.RejectedExecutionException
+     *         if the executor won't accept the task
+     */
+    static <T> ListenableFuture<T> submit(Executor executor, Callable<T> task) {
+        checkNotNull(executor);
+        ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+        executor.execute(future);
+        return future;
+    }
+}
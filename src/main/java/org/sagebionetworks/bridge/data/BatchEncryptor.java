@@ -0,0 +1,314 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command line tool that encrypts every file in a directory for a study, in parallel, with one shared
+ * {@link StudyUploadEncryptor}. Each output has the same name as its input. Outputs that are at least as new as their
+ * input are skipped, so an interrupted run can simply be started again.
+ * <pre>
+ *     java org.sagebionetworks.bridge.data.BatchEncryptor cert.pem inputDir outputDir [parallelism]
+ * </pre>
+ */
+public class BatchEncryptor {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchEncryptor.class);
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+    private final StudyUploadEncryptor encryptor;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param encryptor
+     *         encryptor shared by every file
+     * @param pool
+     *         pool to encrypt files on, one task per file
+     */
+    public BatchEncryptor(StudyUploadEncryptor encryptor, ForkJoinPool pool) {
+        this.encryptor = checkNotNull(encryptor);
+        this.pool = checkNotNull(pool);
+    }
+
+    /**
+     * Encrypts every regular file directly in the input directory into the output directory. A file that fails is
+     * logged and counted, and doesn't stop the others. Each output is written to a temp file and moved into place
+     * when complete, so a partial output never looks up to date.
+     *
+     * @param inputDir
+     *         directory of plaintext files
+     * @param outputDir
+     *         directory to write encrypted files to, created if it doesn't exist
+     * @return counts, sizes and timings for the batch
+     * @throws IllegalArgumentException
+     *         if the input and output directories are the same
+     * @throws IOException
+     *         problem listing the input directory or creating the output directory
+     */
+    public Result encryptDirectory(Path inputDir, Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        checkArgument(!Files.isSameFile(inputDir, outputDir), "inputDir and outputDir must be different directories");
+        List<Path> inputFiles = Lists.newArrayList();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(inputDir)) {
+            for (Path inputFile : stream) {
+                if (Files.isRegularFile(inputFile)) {
+                    inputFiles.add(inputFile);
+                }
+            }
+        }
+
+        Result.Builder resultBuilder = new Result.Builder();
+        long startNanos = System.nanoTime();
+        pool.invoke(new DirectoryTask(inputFiles, outputDir, resultBuilder));
+        return resultBuilder.build(System.nanoTime() - startNanos);
+    }
+
+    // Forks one task per file and waits for all of them.
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> inputFiles;
+        private final Path outputDir;
+        private final Result.Builder resultBuilder;
+
+        DirectoryTask(List<Path> inputFiles, Path outputDir, Result.Builder resultBuilder) {
+            this.inputFiles = inputFiles;
+            this.outputDir = outputDir;
+            this.resultBuilder = resultBuilder;
+        }
+
+        @Override
+        protected void compute() {
+            List<FileTask> tasks = Lists.newArrayListWithCapacity(inputFiles.size());
+            for (Path inputFile : inputFiles) {
+                tasks.add(new FileTask(inputFile, outputDir.resolve(inputFile.getFileName()), resultBuilder));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path inputFile;
+        private final Path outputFile;
+        private final Result.Builder resultBuilder;
+
+        FileTask(Path inputFile, Path outputFile, Result.Builder resultBuilder) {
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+            this.resultBuilder = resultBuilder;
+        }
+
+        @Override
+        protected void compute() {
+            Path tempFile = null;
+            try {
+                if (isUpToDate(inputFile, outputFile)) {
+                    resultBuilder.addSkipped();
+                    return;
+                }
+
+                long startNanos = System.nanoTime();
+                // a unique name, so it can't collide with another input's output, such as one named <name>.tmp
+                tempFile = Files.createTempFile(outputFile.getParent(), "." + outputFile.getFileName() + ".",
+                        TEMP_FILE_SUFFIX);
+                encryptor.writeTo(inputFile, tempFile);
+                Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                resultBuilder.addEncrypted(Files.size(inputFile), System.nanoTime() - startNanos);
+            } catch (Exception e) {
+                LOG.error("Unable to encrypt " + inputFile, e);
+                resultBuilder.addFailed();
+                if (tempFile != null) {
+                    try {
+                        Files.deleteIfExists(tempFile);
+                    } catch (IOException deleteException) {
+                        LOG.warn("Unable to delete " + tempFile, deleteException);
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean isUpToDate(Path inputFile, Path outputFile) throws IOException {
+        return Files.isRegularFile(outputFile)
+                && Files.getLastModifiedTime(outputFile).compareTo(Files.getLastModifiedTime(inputFile)) >= 0;
+    }
+
+    /**
+     * Outcome of {@link #encryptDirectory(Path, Path)}.
+     */
+    public static final class Result {
+        private final int encryptedCount;
+        private final int skippedCount;
+        private final int failedCount;
+        private final long encryptedBytes;
+        private final long elapsedNanos;
+        // sorted ascending
+        private final double[] latencyMillis;
+
+        private Result(int encryptedCount, int skippedCount, int failedCount, long encryptedBytes,
+                long elapsedNanos, double[] latencyMillis) {
+            this.encryptedCount = encryptedCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedCount;
+            this.encryptedBytes = encryptedBytes;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public int getEncryptedCount() {
+            return encryptedCount;
+        }
+
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return total plaintext size of the files encrypted in this run
+         */
+        public long getEncryptedBytes() {
+            return encryptedBytes;
+        }
+
+        /**
+         * @return wall clock time for the whole batch, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return plaintext megabytes encrypted per second of wall clock time
+         */
+        public double getThroughputMbPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : encryptedBytes / BYTES_PER_MB / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile
+         *         percentile to return, from 0 to 100
+         * @return nearest-rank percentile of the time taken to encrypt one file, in milliseconds, or 0 if no files were
+         *         encrypted
+         */
+        public double getLatencyPercentileMillis(double percentile) {
+            return Percentiles.nearestRank(latencyMillis, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("encryptedCount", encryptedCount)
+                    .add("skippedCount", skippedCount)
+                    .add("failedCount", failedCount)
+                    .add("encryptedBytes", encryptedBytes)
+                    .add("elapsedMillis", getElapsedMillis())
+                    .toString();
+        }
+
+        // Collects per-file outcomes from the pool's threads.
+        static class Builder {
+            private final AtomicInteger skippedCount = new AtomicInteger();
+            private final AtomicInteger failedCount = new AtomicInteger();
+            private final AtomicLong encryptedBytes = new AtomicLong();
+            private final Queue<Long> latencyNanos = new ConcurrentLinkedQueue<>();
+
+            void addEncrypted(long size, long latencyNanos) {
+                encryptedBytes.addAndGet(size);
+                this.latencyNanos.add(latencyNanos);
+            }
+
+            void addSkipped() {
+                skippedCount.incrementAndGet();
+            }
+
+            void addFailed() {
+                failedCount.incrementAndGet();
+            }
+
+            Result build(long elapsedNanos) {
+                double[] sortedLatencies = new double[latencyNanos.size()];
+                int i = 0;
+                for (long latency : latencyNanos) {
+                    sortedLatencies[i++] = latency / 1e6;
+                }
+                Arrays.sort(sortedLatencies);
+                return new Result(sortedLatencies.length, skippedCount.get(), failedCount.get(), encryptedBytes.get(),
+                        elapsedNanos, sortedLatencies);
+            }
+        }
+    }
+
+    /**
+     * @param args
+     *         certificate PEM file, input directory, output directory, and optionally the number of files to encrypt
+     *         at once, which defaults to the number of processors
+     */
+    public static void main(String[] args) throws CertificateException, IOException {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: BatchEncryptor <certificate.pem> <inputDir> <outputDir> [parallelism]");
+            System.exit(2);
+        }
+        int parallelism = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        X509Certificate cert;
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            cert = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Result result;
+        try {
+            result = new BatchEncryptor(new StudyUploadEncryptor(cert), pool).encryptDirectory(Paths.get(args[1]),
+                    Paths.get(args[2]));
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println(String.format(Locale.US,
+                "Encrypted %d files (%.1f MB) in %.1f s, %.1f MB/s. Skipped %d up to date, %d failed.",
+                result.getEncryptedCount(), result.getEncryptedBytes() / BYTES_PER_MB,
+                result.getElapsedMillis() / 1000.0, result.getThroughputMbPerSecond(), result.getSkippedCount(),
+                result.getFailedCount()));
+        System.out.println(String.format(Locale.US,
+                "Per-file latency: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                result.getLatencyPercentileMillis(50), result.getLatencyPercentileMillis(90),
+                result.getLatencyPercentileMillis(99), result.getLatencyPercentileMillis(100)));
+        if (result.getFailedCount() > 0) {
+            System.exit(1);
+        }
+    }
+}
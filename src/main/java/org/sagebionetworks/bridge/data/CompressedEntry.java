@@ -0,0 +1,302 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A zip entry whose data has already been compressed, along with the CRC and sizes needed to write its headers.
+ * Entries are compressed independently of each other, so they can be built on any thread and later written out
+ * in order by {@link RawZipWriter}.
+ * <p>
+ * Compressed data is kept on the heap up to {@link #SPILL_THRESHOLD}, and moved to a temp file if it grows past that,
+ * so an entry's size isn't limited by the heap or by the largest array, and Zip64 entries can be built too. Call
+ * {@link #discard()} once the entry has been written, to delete the temp file.
+ */
+class CompressedEntry {
+    private static final Logger LOG = LoggerFactory.getLogger(CompressedEntry.class);
+
+    // sensor data and JSON typically deflate to about a quarter of their size
+    private static final int EXPECTED_DEFLATE_RATIO = 4;
+    private static final int MIN_OUTPUT_BUFFER_SIZE = 32;
+
+    /**
+     * Most compressed bytes an entry keeps on the heap before moving them to a temp file.
+     */
+    static final int SPILL_THRESHOLD = 4 * 1024 * 1024;
+
+    final String name;
+    final int method;
+    final long crc;
+    final long size;
+    final long compressedSize;
+    final long time;
+    // SHA-256 of the uncompressed contents, or null if it wasn't asked for
+    final HashCode sha256;
+    // time taken to read and compress the contents
+    final long compressNanos;
+
+    private final SpillingOutputStream data;
+
+    private CompressedEntry(String name, int method, long crc, long size, long compressedSize,
+            SpillingOutputStream data, long time, HashCode sha256, long compressNanos) {
+        this.name = name;
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.compressedSize = compressedSize;
+        this.data = data;
+        this.time = time;
+        this.sha256 = sha256;
+        this.compressNanos = compressNanos;
+    }
+
+    /**
+     * Writes the compressed data, without any headers. Can be called any number of times until the entry is
+     * discarded.
+     */
+    void writeDataTo(OutputStream os) throws IOException {
+        data.writeTo(os);
+    }
+
+    /**
+     * Deletes the entry's temp file, if its data was moved to one. The entry can't be written afterwards. Safe to call
+     * more than once, from any thread.
+     */
+    void discard() {
+        data.delete();
+    }
+
+    /**
+     * Compresses the contents of the byte source in memory according to the policy, the same way
+     * {@link java.util.zip.ZipOutputStream} would.
+     *
+     * @param name
+     *         entry name
+     * @param source
+     *         uncompressed contents
+     * @param policy
+     *         how to compress the contents
+     * @return compressed entry
+     * @throws IOException
+     *         problem reading the source
+     */
+    static CompressedEntry compress(String name, ByteSource source, CompressionPolicy policy) throws IOException {
+        return compress(name, source, policy, false);
+    }
+
+    /**
+     * Same as {@link #compress(String, ByteSource, CompressionPolicy)}, optionally computing the SHA-256 of the
+     * uncompressed contents in the same pass.
+     */
+    static CompressedEntry compress(String name, ByteSource source, CompressionPolicy policy, boolean computeSha256)
+            throws IOException {
+        long start = System.nanoTime();
+        byte[] buffer = CopyBuffers.acquire();
+        try {
+            Optional<Long> sizeHint = source.sizeIfKnown();
+            if (policy.chooseMethod(source, buffer) == ZipEntry.STORED) {
+                SpillingOutputStream compressed = new SpillingOutputStream(expectedSize(sizeHint, 1));
+                try {
+                    CheckedOutputStream cos = new CheckedOutputStream(compressed, new CRC32());
+                    HashingOutputStream hos = computeSha256 ? new HashingOutputStream(Hashing.sha256(), cos) : null;
+                    long size = Archive.copy(source, hos != null ? hos : cos, buffer);
+                    compressed.close();
+                    return new CompressedEntry(name, ZipEntry.STORED, cos.getChecksum().getValue(), size,
+                            compressed.getCount(), compressed, System.currentTimeMillis(),
+                            hos != null ? hos.hash() : null, System.nanoTime() - start);
+                } catch (IOException | RuntimeException e) {
+                    compressed.delete();
+                    throw e;
+                }
+            }
+
+            Deflater deflater = new Deflater(policy.getLevel(), true);
+            SpillingOutputStream compressed = new SpillingOutputStream(expectedSize(sizeHint, EXPECTED_DEFLATE_RATIO));
+            try {
+                DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater, Archive.COPY_BUFFER_SIZE);
+                CheckedOutputStream cos = new CheckedOutputStream(dos, new CRC32());
+                HashingOutputStream hos = computeSha256 ? new HashingOutputStream(Hashing.sha256(), cos) : null;
+
+                long size = Archive.copy(source, hos != null ? hos : cos, buffer);
+                dos.finish();
+                compressed.close();
+
+                return new CompressedEntry(name, ZipEntry.DEFLATED, cos.getChecksum().getValue(), size,
+                        compressed.getCount(), compressed, System.currentTimeMillis(),
+                        hos != null ? hos.hash() : null, System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                compressed.delete();
+                throw e;
+            } finally {
+                deflater.end();
+            }
+        } finally {
+            CopyBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * An entry that claims the given CRC and sizes, but whose data is only the given bytes. Lets tests check the
+     * headers written for entries too large to compress for real; the zip it's written to can't be read back.
+     */
+    static CompressedEntry withHeaderValues(String name, int method, long crc, long size, long compressedSize,
+            byte[] data) throws IOException {
+        SpillingOutputStream stream = new SpillingOutputStream(data.length);
+        stream.write(data);
+        stream.close();
+        return new CompressedEntry(name, method, crc, size, compressedSize, stream, System.currentTimeMillis(), null,
+                0);
+    }
+
+    /**
+     * Works out how large the entry's data would be compressed by {@link #compress} or by {@link Archive}, by
+     * compressing it and discarding the output, so memory doesn't depend on the source's size.
+     *
+     * @param source
+     *         uncompressed contents
+     * @param policy
+     *         how to compress the contents
+     * @return size of the compressed data, without headers
+     * @throws IOException
+     *         problem reading the source
+     */
+    static long compressedSize(ByteSource source, CompressionPolicy policy) throws IOException {
+        byte[] buffer = CopyBuffers.acquire();
+        try {
+            if (policy.chooseMethod(source, buffer) == ZipEntry.STORED) {
+                Optional<Long> size = source.sizeIfKnown();
+                return size.isPresent() ? size.get() : Archive.copy(source, ByteStreams.nullOutputStream(), buffer);
+            }
+
+            Deflater deflater = new Deflater(policy.getLevel(), true);
+            try {
+                CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+                DeflaterOutputStream dos = new DeflaterOutputStream(counter, deflater, Archive.COPY_BUFFER_SIZE);
+                Archive.copy(source, dos, buffer);
+                dos.finish();
+                return counter.getCount();
+            } finally {
+                deflater.end();
+            }
+        } finally {
+            CopyBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * @return most bytes that deflating the given number of bytes can produce, from zlib's compressBound
+     */
+    static long deflateBound(long size) {
+        return size + (size >> 12) + (size >> 14) + (size >> 25) + 13;
+    }
+
+    // how large to presize the heap buffer from the source's size hint, so it doesn't have to grow and copy itself
+    // repeatedly. Entries expected to spill aren't presized, since the heap buffer is dropped once they do.
+    private static int expectedSize(Optional<Long> sizeHint, int ratio) {
+        if (!sizeHint.isPresent()) {
+            return MIN_OUTPUT_BUFFER_SIZE;
+        }
+        long expectedSize = Math.max(MIN_OUTPUT_BUFFER_SIZE, sizeHint.get() / ratio);
+        return expectedSize <= SPILL_THRESHOLD ? (int) expectedSize : MIN_OUTPUT_BUFFER_SIZE;
+    }
+
+    /**
+     * Collects compressed data on the heap, moving it to a temp file once there's more than {@link #SPILL_THRESHOLD}.
+     */
+    private static final class SpillingOutputStream extends OutputStream {
+        private ByteArrayOutputStream memory;
+        private File file;
+        private OutputStream fileStream;
+        private long count;
+        private boolean deleted;
+
+        SpillingOutputStream(int initialSize) {
+            memory = new ByteArrayOutputStream(initialSize);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (file == null && count + len > SPILL_THRESHOLD) {
+                spill();
+            }
+            if (file == null) {
+                memory.write(b, off, len);
+            } else {
+                fileStream.write(b, off, len);
+            }
+            count += len;
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("CompressedEntry", ".tmp");
+            fileStream = new BufferedOutputStream(new FileOutputStream(file), StudyUploadEncryptor.FILE_BUFFER_SIZE);
+            memory.writeTo(fileStream);
+            memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileStream != null) {
+                fileStream.close();
+            }
+        }
+
+        synchronized void writeTo(OutputStream os) throws IOException {
+            if (deleted) {
+                throw new IOException("compressed entry has been discarded");
+            }
+            if (file == null) {
+                memory.writeTo(os);
+            } else {
+                Files.copy(file.toPath(), os);
+            }
+        }
+
+        synchronized void delete() {
+            if (deleted) {
+                return;
+            }
+            deleted = true;
+            memory = null;
+            if (file != null) {
+                try {
+                    if (fileStream != null) {
+                        fileStream.close();
+                    }
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException e) {
+                    LOG.warn("Unable to delete " + file, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * How a data file is compressed in an archive. Already-compressed payloads, such as audio, images and gzipped logs,
+ * should be {@link #STORED} rather than deflated, since deflating them costs CPU for no size gain. When the payload
+ * type isn't known up front, {@link #adaptive(int)} samples the start of the file to decide.
+ */
+public final class CompressionPolicy {
+    // Adaptive mode stores the file if deflate can't shrink its first block to this fraction of its size.
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+    // Adaptive mode stores files known to be smaller than this without sampling them. Deflate saves a few bytes at
+    // best on these, and setting up a deflater costs more than the rest of the entry.
+    static final long SMALL_FILE_SIZE = 128;
+
+    private enum Mode {
+        STORED,
+        DEFLATED,
+        ADAPTIVE
+    }
+
+    /** Deflate at the default level. This is how files were compressed before policies existed. */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(Mode.DEFLATED,
+            Deflater.DEFAULT_COMPRESSION);
+
+    /** Store the file uncompressed. */
+    public static final CompressionPolicy STORED = new CompressionPolicy(Mode.STORED, Deflater.NO_COMPRESSION);
+
+    private final Mode mode;
+    private final int level;
+
+    private CompressionPolicy(Mode mode, int level) {
+        this.mode = mode;
+        this.level = level;
+    }
+
+    /**
+     * @param level
+     *         deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+     *         {@link Deflater#DEFAULT_COMPRESSION}
+     * @return policy that always deflates at the given level
+     */
+    public static CompressionPolicy deflated(int level) {
+        checkLevel(level);
+        return new CompressionPolicy(Mode.DEFLATED, level);
+    }
+
+    /**
+     * @param level
+     *         deflate level used if the file turns out to be compressible
+     * @return policy that deflates the first block of the file, and stores the file if that block doesn't shrink
+     */
+    public static CompressionPolicy adaptive(int level) {
+        checkLevel(level);
+        return new CompressionPolicy(Mode.ADAPTIVE, level);
+    }
+
+    private static void checkLevel(int level) {
+        checkArgument(level == Deflater.DEFAULT_COMPRESSION
+                || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+                "invalid deflate level %s", level);
+    }
+
+    /**
+     * @return deflate level to use when {@link #chooseMethod} picks {@link ZipEntry#DEFLATED}
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Decides whether the source should be stored or deflated. In adaptive mode, this reads the first block of the
+     * source into the given buffer and deflates it to see how well it compresses, unless the source reports that it's
+     * small enough to store outright.
+     *
+     * @param source
+     *         contents of the data file
+     * @param buffer
+     *         scratch buffer, its length is the size of the sampled block
+     * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @throws IOException
+     *         problem reading the source
+     */
+    int chooseMethod(ByteSource source, byte[] buffer) throws IOException {
+        switch (mode) {
+            case STORED:
+                return ZipEntry.STORED;
+            case DEFLATED:
+                return ZipEntry.DEFLATED;
+            default:
+                Optional<Long> size = source.sizeIfKnown();
+                if (size.isPresent() && size.get() < SMALL_FILE_SIZE) {
+                    return ZipEntry.STORED;
+                }
+                return isCompressible(source, buffer) ? ZipEntry.DEFLATED : ZipEntry.STORED;
+        }
+    }
+
+    private boolean isCompressible(ByteSource source, byte[] buffer) throws IOException {
+        int sampleSize;
+        if (source instanceof StreamingByteSource) {
+            // opening a stream would write out the whole contents first
+            sampleSize = ((StreamingByteSource) source).readPrefix(buffer);
+        } else {
+            try (InputStream is = source.openStream()) {
+                sampleSize = ByteStreams.read(is, buffer, 0, buffer.length);
+            }
+        }
+        if (sampleSize == 0) {
+            return true;
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(buffer, 0, sampleSize);
+            deflater.finish();
+            // only the compressed size matters, so the output is repeatedly overwritten in a small scratch array
+            byte[] discard = new byte[512];
+            while (!deflater.finished()) {
+                deflater.deflate(discard);
+            }
+            return deflater.getBytesWritten() < sampleSize * INCOMPRESSIBLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompressionPolicy that = (CompressionPolicy) o;
+        return level == that.level && mode == that.mode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mode, level);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("mode", mode)
+                .add("level", level)
+                .toString();
+    }
+}
@@ -0,0 +1,48 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of the {@link Archive#COPY_BUFFER_SIZE} scratch buffers that data files are copied through on their way into
+ * a zip or a cipher, so writing an archive doesn't allocate a new one every time. The pool is lock-free and shared by
+ * every thread, and keeps at most {@link #MAX_POOLED_BUFFERS} buffers, one for each copy that was running at once.
+ */
+final class CopyBuffers {
+    static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final Queue<byte[]> POOLED = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_COUNT = new AtomicInteger();
+
+    private CopyBuffers() {
+    }
+
+    /**
+     * @return a buffer, reused from the pool if there is one, whose contents are undefined
+     */
+    static byte[] acquire() {
+        byte[] buffer = POOLED.poll();
+        if (buffer == null) {
+            return new byte[Archive.COPY_BUFFER_SIZE];
+        }
+        POOLED_COUNT.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire()}. The caller must not use it afterwards.
+     */
+    static void release(byte[] buffer) {
+        checkNotNull(buffer);
+        checkArgument(buffer.length == Archive.COPY_BUFFER_SIZE, "buffer wasn't acquired from this pool");
+        if (POOLED_COUNT.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            POOLED.offer(buffer);
+        } else {
+            POOLED_COUNT.decrementAndGet();
+        }
+    }
+}
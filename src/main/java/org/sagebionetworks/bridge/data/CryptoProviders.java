@@ -0,0 +1,67 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * The JCA providers the encryptors and decryptors run on. Bouncy Castle and SpongyCastle are created the first time
+ * they're needed and handed to each JCA call as instances. They're never installed with
+ * {@link Security#insertProviderAt}, so using this library doesn't change which provider the rest of the JVM gets for
+ * TLS or any other JCA operation, and loading its classes doesn't load either provider.
+ */
+final class CryptoProviders {
+    static final String BOUNCY_CASTLE_NAME = "BC";
+    static final String SPONGY_CASTLE_NAME = "SC";
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * @return this library's Bouncy Castle provider, created on first use
+     */
+    static Provider bouncyCastle() {
+        return BouncyCastleHolder.INSTANCE;
+    }
+
+    /**
+     * @return this library's SpongyCastle provider, created on first use
+     */
+    static Provider spongyCastle() {
+        return SpongyCastleHolder.INSTANCE;
+    }
+
+    /**
+     * Looks up a provider by name. Bouncy Castle's and SpongyCastle's names give this library's own instances, whether
+     * or not the app has installed them. Any other provider, such as the platform's own, must be installed.
+     *
+     * @param name
+     *         provider name
+     * @return the provider
+     * @throws IllegalArgumentException
+     *         no provider by that name is installed
+     */
+    static Provider forName(String name) {
+        checkNotNull(name);
+        if (BOUNCY_CASTLE_NAME.equals(name)) {
+            return bouncyCastle();
+        }
+        if (SPONGY_CASTLE_NAME.equals(name)) {
+            return spongyCastle();
+        }
+        Provider provider = Security.getProvider(name);
+        checkArgument(provider != null, "no JCA provider named %s is installed", name);
+        return provider;
+    }
+
+    // separate holders, so neither provider is loaded until it's used, and Android apps never load Bouncy Castle
+    private static final class BouncyCastleHolder {
+        static final Provider INSTANCE = new org.bouncycastle.jce.provider.BouncyCastleProvider();
+    }
+
+    private static final class SpongyCastleHolder {
+        static final Provider INSTANCE = new org.spongycastle.jce.provider.BouncyCastleProvider();
+    }
+}
@@ -0,0 +1,100 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Pool of equally sized direct byte buffers backing {@link OffHeapArchiveFile}, and the chunks published by
+ * {@link EncryptedArchivePublisher}. Direct buffers live outside the Java heap, so large recordings held in them don't
+ * add to garbage collection work, but they're expensive to allocate and are only freed when the garbage collector gets
+ * around to their owners. Keeping released buffers for reuse avoids both costs.
+ * <p>
+ * Pools are thread safe, and are meant to be shared by every off-heap file and publisher an app creates.
+ */
+public final class DirectBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final Deque<ByteBuffer> pooled = new ArrayDeque<>();
+    private long allocatedCount;
+
+    /**
+     * @param bufferSize
+     *         size of each buffer, in bytes
+     * @param maxPooledBuffers
+     *         most released buffers to keep for reuse, further released buffers are left to the garbage collector
+     */
+    public DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        checkArgument(maxPooledBuffers >= 0, "maxPooledBuffers must not be negative");
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * @return size of each buffer, in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of released buffers currently kept for reuse
+     */
+    public synchronized int getPooledCount() {
+        return pooled.size();
+    }
+
+    /**
+     * @return number of buffers this pool has had to allocate, because none were pooled
+     */
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    /**
+     * @return a cleared buffer, reused from the pool if there is one
+     */
+    ByteBuffer acquire() {
+        synchronized (this) {
+            ByteBuffer buffer = pooled.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+            allocatedCount++;
+        }
+        // allocated outside the lock, since allocating direct memory can wait on the garbage collector
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a buffer acquired from this pool. The caller must not use the buffer, or any view of it, afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        checkNotNull(buffer);
+        checkArgument(buffer.isDirect() && buffer.capacity() == bufferSize, "buffer wasn't acquired from this pool");
+        buffer.clear();
+        synchronized (this) {
+            if (pooled.size() < maxPooledBuffers) {
+                pooled.addFirst(buffer);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("bufferSize", bufferSize)
+                .add("maxPooledBuffers", maxPooledBuffers)
+                .add("pooledCount", getPooledCount())
+                .add("allocatedCount", getAllocatedCount())
+                .toString();
+    }
+}
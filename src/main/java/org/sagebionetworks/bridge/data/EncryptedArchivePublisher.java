@@ -0,0 +1,476 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Closeables;
+import com.google.common.io.FileBackedOutputStream;
+import org.bouncycastle.cms.CMSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes an encrypted archive as a stream of byte buffers, for non-blocking HTTP clients that take a publisher as
+ * the request body instead of writing to an {@link OutputStream}. The zip and CMS output is only produced as the
+ * subscriber requests it: each request reads a little more of the data files, compresses and encrypts it, and hands
+ * over buffers as they fill. Nothing is read ahead of demand, so a slow connection holds at most a buffer or two of
+ * the archive in memory, and no thread is parked waiting for it. Stored entries need their CRC before their data, so
+ * their contents are read twice, a buffer at a time both times.
+ * <p>
+ * Data files that can only write themselves out in one go, such as lazily serialized JSON and sensor files, are
+ * spooled when their entry starts: onto the heap up to {@link CompressedEntry#SPILL_THRESHOLD}, and to a temp file
+ * beyond that. The spooled copy is then read a buffer at a time like any other file, so one of these costs a single
+ * longer step, but never more than the spill threshold of heap.
+ * <p>
+ * {@link Subscriber} and {@link Subscription} follow the Reactive Streams contract, method for method, so on Java 9
+ * and later they adapt to {@code java.util.concurrent.Flow} with a small wrapper. Each publisher can be subscribed to
+ * once, since it reads its archive's data files as it goes. The subscriber's signals are serialized, and run on the
+ * executor the publisher was created with.
+ * <p>
+ * Buffers come from a {@link DirectBufferPool}, and are full except for the last. Once a buffer's contents have been
+ * written, the subscriber can hand it back with {@link Subscription#release(ByteBuffer)}, so the next chunk reuses
+ * it. Buffers that aren't released are left to the garbage collector.
+ */
+public final class EncryptedArchivePublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(EncryptedArchivePublisher.class);
+
+    /**
+     * Receives the encrypted archive. Mirrors {@code java.util.concurrent.Flow.Subscriber<ByteBuffer>}.
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param chunk
+         *         next part of the encrypted archive, ready to read from its position to its limit
+         */
+        void onNext(ByteBuffer chunk);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * A subscriber's link to the publisher. Mirrors {@code java.util.concurrent.Flow.Subscription}, plus a way to
+     * hand consumed buffers back.
+     */
+    public interface Subscription {
+        /**
+         * Asks for up to n more chunks. Asking for a non-positive number cancels the subscription and signals an
+         * {@link IllegalArgumentException}.
+         */
+        void request(long n);
+
+        /**
+         * Stops producing chunks, and closes the data file being read. No further signals follow, except those
+         * already under way.
+         */
+        void cancel();
+
+        /**
+         * Returns a chunk to the publisher's pool, once its contents have been written. Optional.
+         *
+         * @param chunk
+         *         a buffer passed to {@link Subscriber#onNext(ByteBuffer)}, which mustn't be used afterwards
+         */
+        void release(ByteBuffer chunk);
+    }
+
+    private final Archive archive;
+    private final StudyUploadEncryptor encryptor;
+    private final DirectBufferPool pool;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    // called by Archive.toEncryptedPublisher
+    EncryptedArchivePublisher(Archive archive, StudyUploadEncryptor encryptor, DirectBufferPool pool,
+            Executor executor) {
+        this.archive = checkNotNull(archive);
+        this.encryptor = checkNotNull(encryptor);
+        this.pool = checkNotNull(pool);
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Starts publishing to the subscriber. A second subscriber is given an {@link IllegalStateException}.
+     *
+     * @param subscriber
+     *         subscriber to receive the encrypted archive
+     */
+    public void subscribe(Subscriber subscriber) {
+        checkNotNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override public void request(long n) {
+                }
+
+                @Override public void cancel() {
+                }
+
+                @Override public void release(ByteBuffer chunk) {
+                }
+            });
+            subscriber.onError(new IllegalStateException("an encrypted archive can only be published once"));
+            return;
+        }
+        ArchiveSubscription subscription = new ArchiveSubscription(subscriber);
+        subscription.start();
+    }
+
+    /**
+     * Runs the archive one step at a time. The subscriber's signals and the archive's state are only touched while
+     * draining, which the work-in-progress count lets one thread do at a time, without locks, whichever thread asked
+     * for more. A thread that finds another draining leaves the extra work to it.
+     */
+    private final class ArchiveSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger workInProgress = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;
+
+        // only used while draining
+        private final Deque<ByteBuffer> ready = new ArrayDeque<>();
+        private final byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+        private ChunkOutputStream chunks;
+        private ZipOutputStream zos;
+        private List<HashCode> sha256s;
+        private int fileIndex;
+        // the data file's own source, and what its contents are read from, which differs if it had to be spooled
+        private ByteSource source;
+        private ByteSource contents;
+        private FileBackedOutputStream spool;
+        private InputStream input;
+        // set while a stored entry's contents are read for their size and CRC, before the entry starts
+        private CRC32 storedCrc;
+        private long storedSize;
+        private Hasher sha256;
+        private ZipEntry entry;
+        private long entryStart;
+        private boolean finished;
+        private boolean terminated;
+
+        ArchiveSubscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        // Calls onSubscribe while holding the work-in-progress count, so anything requested from inside it is only
+        // drained once it returns, rather than on the executor alongside it.
+        void start() {
+            workInProgress.set(1);
+            try {
+                subscriber.onSubscribe(this);
+            } finally {
+                if (workInProgress.decrementAndGet() != 0) {
+                    executor.execute(this);
+                }
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("requested " + n + " chunks, which isn't positive");
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n;
+                    if (next < 0) {
+                        // Long.MAX_VALUE means unbounded
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        @Override
+        public void release(ByteBuffer chunk) {
+            pool.release(chunk);
+        }
+
+        private void schedule() {
+            if (workInProgress.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                if (terminated) {
+                    // the count is left above zero, so later requests and cancels don't schedule anything
+                    return;
+                }
+                missed = workInProgress.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            long emitted = 0;
+            long demand = requested.get();
+            try {
+                while (true) {
+                    if (cancelled) {
+                        terminate();
+                        return;
+                    }
+                    if (badRequest != null) {
+                        terminate();
+                        subscriber.onError(badRequest);
+                        return;
+                    }
+                    ByteBuffer chunk = ready.peekFirst();
+                    if (chunk == null && finished) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (emitted == demand) {
+                        // re-read, in case more was asked for while this thread was busy
+                        demand = requested.get();
+                        if (emitted == demand) {
+                            break;
+                        }
+                    }
+                    if (chunk == null) {
+                        step();
+                        continue;
+                    }
+                    ready.removeFirst();
+                    subscriber.onNext(chunk);
+                    emitted++;
+                }
+            } catch (IOException | CMSException | RuntimeException e) {
+                terminate();
+                subscriber.onError(e);
+                return;
+            }
+            if (demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        /**
+         * Writes the next part of the archive: the start of an entry, up to a buffer of a data file, or info.json and
+         * the zip's and CMS envelope's trailers. Each step writes at most about a buffer's worth into the zip, so only
+         * a chunk or two is ready at a time.
+         */
+        private void step() throws IOException, CMSException {
+            if (zos == null) {
+                chunks = new ChunkOutputStream(pool, ready);
+                zos = new ZipOutputStream(encryptor.encrypt(chunks, archive.getMetrics()));
+                sha256s = archive.hasFileDigests()
+                        ? Lists.<HashCode>newArrayListWithCapacity(archive.getDataFileCount()) : null;
+            }
+            if (input != null) {
+                int length = input.read(buffer);
+                if (storedCrc != null) {
+                    if (length < 0) {
+                        input.close();
+                        input = null;
+                        entry = archive.putStoredDataFileEntry(zos, fileIndex, storedSize, storedCrc.getValue());
+                        storedCrc = null;
+                        openContents();
+                    } else {
+                        storedCrc.update(buffer, 0, length);
+                        storedSize += length;
+                    }
+                } else if (length < 0) {
+                    input.close();
+                    input = null;
+                    if (sha256 != null) {
+                        sha256s.add(sha256.hash());
+                        sha256 = null;
+                    }
+                    archive.closeDataFileEntry(zos, fileIndex, entry, source, entryStart);
+                    source = null;
+                    contents = null;
+                    resetSpool();
+                    fileIndex++;
+                } else {
+                    zos.write(buffer, 0, length);
+                    if (sha256 != null) {
+                        sha256.putBytes(buffer, 0, length);
+                    }
+                }
+            } else if (fileIndex < archive.getDataFileCount()) {
+                entryStart = archive.getMetrics() != ArchiveMetrics.NO_OP ? System.nanoTime() : 0;
+                source = archive.getDataFileSource(fileIndex);
+                contents = source;
+                if (source instanceof StreamingByteSource) {
+                    // these can only write themselves out whole, so they're spooled and then read like the rest
+                    spool = new FileBackedOutputStream(CompressedEntry.SPILL_THRESHOLD, true);
+                    try {
+                        Archive.copy(source, spool, buffer);
+                    } finally {
+                        spool.close();
+                    }
+                    contents = spool.asByteSource();
+                }
+                if (archive.chooseDataFileMethod(fileIndex, contents, buffer) == ZipEntry.STORED) {
+                    // the entry starts once the CRC has been read, a buffer per step
+                    storedCrc = new CRC32();
+                    storedSize = 0;
+                    input = contents.openStream();
+                } else {
+                    entry = archive.putDeflatedDataFileEntry(zos, fileIndex);
+                    openContents();
+                }
+            } else {
+                archive.putArchiveInfoEntry(zos, sha256s);
+                // closing the zip closes the CMS stream, which writes the envelope's trailer
+                zos.close();
+                chunks.flushChunk();
+                finished = true;
+            }
+        }
+
+        private void openContents() throws IOException {
+            input = contents.openStream();
+            sha256 = sha256s != null ? Hashing.sha256().newHasher() : null;
+        }
+
+        // deletes the spooled copy of the current data file, if it has one
+        private void resetSpool() throws IOException {
+            if (spool != null) {
+                FileBackedOutputStream reset = spool;
+                spool = null;
+                reset.reset();
+            }
+        }
+
+        // releases everything still held, including the zip's deflater, without finishing the archive
+        private void terminate() {
+            terminated = true;
+            if (input != null) {
+                Closeables.closeQuietly(input);
+                input = null;
+            }
+            try {
+                resetSpool();
+            } catch (IOException e) {
+                LOG.warn("Couldn't delete spooled data file", e);
+            }
+            if (chunks != null) {
+                chunks.discard();
+            }
+            if (zos != null && !finished) {
+                // anything closing writes is dropped
+                try {
+                    zos.close();
+                } catch (IOException e) {
+                    LOG.debug("Couldn't close unfinished archive", e);
+                }
+            }
+            for (ByteBuffer chunk : ready) {
+                pool.release(chunk);
+            }
+            ready.clear();
+            if (cancelled && !finished) {
+                LOG.debug("Encrypted archive publishing was cancelled after {} of {} data files", fileIndex,
+                        archive.getDataFileCount());
+            }
+        }
+    }
+
+    /**
+     * Collects the encrypted output into pooled buffers, queueing each one once it's full.
+     */
+    static final class ChunkOutputStream extends OutputStream {
+        private final DirectBufferPool pool;
+        private final Deque<ByteBuffer> ready;
+        private ByteBuffer current;
+        private boolean discarded;
+
+        ChunkOutputStream(DirectBufferPool pool, Deque<ByteBuffer> ready) {
+            this.pool = pool;
+            this.ready = ready;
+        }
+
+        @Override
+        public void write(int b) {
+            if (discarded) {
+                return;
+            }
+            if (current == null) {
+                current = pool.acquire();
+            }
+            current.put((byte) b);
+            if (!current.hasRemaining()) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (discarded) {
+                return;
+            }
+            while (len > 0) {
+                if (current == null) {
+                    current = pool.acquire();
+                }
+                int length = Math.min(len, current.remaining());
+                current.put(b, off, length);
+                off += length;
+                len -= length;
+                if (!current.hasRemaining()) {
+                    flushChunk();
+                }
+            }
+        }
+
+        /**
+         * Queues the buffer being filled, if it has anything in it.
+         */
+        void flushChunk() {
+            if (current != null && current.position() > 0) {
+                current.flip();
+                ready.addLast(current);
+                current = null;
+            }
+        }
+
+        /**
+         * Returns the buffer being filled to the pool, and drops anything written afterwards.
+         */
+        void discard() {
+            discarded = true;
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+        }
+    }
+}
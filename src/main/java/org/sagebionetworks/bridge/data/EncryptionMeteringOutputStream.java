@@ -0,0 +1,65 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wraps an encrypted stream, timing the calls into it and counting the plaintext, and reports them to
+ * {@link ArchiveMetrics#encrypted(long, long)} when closed.
+ */
+class EncryptionMeteringOutputStream extends FilterOutputStream {
+    private final ArchiveMetrics metrics;
+    private long bytes;
+    private long nanos;
+    private boolean closed;
+
+    EncryptionMeteringOutputStream(OutputStream encryptedStream, ArchiveMetrics metrics) {
+        super(encryptedStream);
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the encrypted stream itself if nothing is listening, or the stream wrapped to meter it
+     */
+    static OutputStream wrap(OutputStream encryptedStream, ArchiveMetrics metrics) {
+        return metrics == ArchiveMetrics.NO_OP ? encryptedStream
+                : new EncryptionMeteringOutputStream(encryptedStream, metrics);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - start;
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - start;
+        bytes += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long start = System.nanoTime();
+        // writes the last block and the CMS trailer
+        out.close();
+        nanos += System.nanoTime() - start;
+        metrics.encrypted(bytes, nanos);
+    }
+}
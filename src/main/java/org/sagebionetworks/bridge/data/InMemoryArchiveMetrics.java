@@ -0,0 +1,187 @@
+package org.sagebionetworks.bridge.data;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * {@link ArchiveMetrics} that keeps every value it's given in histograms, for tests and for profiling a batch of
+ * uploads. Every value is kept, so don't leave it attached to a long-running uploader. Thread safe.
+ */
+public class InMemoryArchiveMetrics implements ArchiveMetrics {
+    private final Histogram entryRawBytes = new Histogram();
+    private final Histogram entryCompressedBytes = new Histogram();
+    private final Histogram compressionRatios = new Histogram();
+    private final Histogram compressNanos = new Histogram();
+    private final Histogram jsonSerializationNanos = new Histogram();
+    private final Histogram cmsSetUpNanos = new Histogram();
+    private final Histogram encryptedBytes = new Histogram();
+    private final Histogram encryptionBytesPerSecond = new Histogram();
+
+    @Override
+    public void entryWritten(String filename, long rawBytes, long compressedBytes, long compressNanos) {
+        entryRawBytes.record(rawBytes);
+        entryCompressedBytes.record(compressedBytes);
+        if (compressedBytes > 0) {
+            compressionRatios.record((double) rawBytes / compressedBytes);
+        }
+        this.compressNanos.record(compressNanos);
+    }
+
+    @Override
+    public void jsonSerialized(String filename, long bytes, long nanos) {
+        jsonSerializationNanos.record(nanos);
+    }
+
+    @Override
+    public void cmsSetUp(long nanos) {
+        cmsSetUpNanos.record(nanos);
+    }
+
+    @Override
+    public void encrypted(long bytes, long nanos) {
+        encryptedBytes.record(bytes);
+        if (nanos > 0) {
+            encryptionBytesPerSecond.record(bytes / (nanos / (double) TimeUnit.SECONDS.toNanos(1)));
+        }
+    }
+
+    /**
+     * @return uncompressed size of each data file
+     */
+    public Histogram getEntryRawBytes() {
+        return entryRawBytes;
+    }
+
+    /**
+     * @return size of each data file in the zip
+     */
+    public Histogram getEntryCompressedBytes() {
+        return entryCompressedBytes;
+    }
+
+    /**
+     * @return uncompressed size over compressed size of each data file, except empty ones
+     */
+    public Histogram getCompressionRatios() {
+        return compressionRatios;
+    }
+
+    public Histogram getCompressNanos() {
+        return compressNanos;
+    }
+
+    public Histogram getJsonSerializationNanos() {
+        return jsonSerializationNanos;
+    }
+
+    public Histogram getCmsSetUpNanos() {
+        return cmsSetUpNanos;
+    }
+
+    /**
+     * @return plaintext size of each encrypted stream
+     */
+    public Histogram getEncryptedBytes() {
+        return encryptedBytes;
+    }
+
+    /**
+     * @return plaintext bytes per second of each encrypted stream, by the time spent in the stream
+     */
+    public Histogram getEncryptionBytesPerSecond() {
+        return encryptionBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("entryRawBytes", entryRawBytes)
+                .add("entryCompressedBytes", entryCompressedBytes)
+                .add("compressionRatios", compressionRatios)
+                .add("compressNanos", compressNanos)
+                .add("jsonSerializationNanos", jsonSerializationNanos)
+                .add("cmsSetUpNanos", cmsSetUpNanos)
+                .add("encryptedBytes", encryptedBytes)
+                .add("encryptionBytesPerSecond", encryptionBytesPerSecond)
+                .toString();
+    }
+
+    /**
+     * Every value recorded for one metric. Thread safe.
+     */
+    public static class Histogram {
+        private double[] values = new double[16];
+        private int count;
+        private double sum;
+
+        Histogram() {
+        }
+
+        synchronized void record(double value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+            sum += value;
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        public synchronized double getSum() {
+            return sum;
+        }
+
+        /**
+         * @return mean of the values, or 0 if there are none
+         */
+        public synchronized double getMean() {
+            return count == 0 ? 0.0 : sum / count;
+        }
+
+        /**
+         * @return smallest value, or 0 if there are none
+         */
+        public double getMin() {
+            return getPercentile(0);
+        }
+
+        /**
+         * @return largest value, or 0 if there are none
+         */
+        public double getMax() {
+            return getPercentile(100);
+        }
+
+        /**
+         * @param percentile
+         *         percentile to return, from 0 to 100
+         * @return nearest-rank percentile of the values, or 0 if there are none
+         */
+        public double getPercentile(double percentile) {
+            double[] sorted = getValues();
+            Arrays.sort(sorted);
+            return Percentiles.nearestRank(sorted, percentile);
+        }
+
+        /**
+         * @return copy of the values, in the order they were recorded
+         */
+        public synchronized double[] getValues() {
+            return Arrays.copyOf(values, count);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("count", getCount())
+                    .add("min", getMin())
+                    .add("median", getPercentile(50))
+                    .add("max", getMax())
+                    .toString();
+        }
+    }
+}
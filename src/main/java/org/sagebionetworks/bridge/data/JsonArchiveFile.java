@@ -1,11 +1,18 @@
 package org.sagebionetworks.bridge.data;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.io.ByteSource;
+import com.google.common.io.CountingOutputStream;
+import com.google.gson.JsonIOException;
 import org.joda.time.DateTime;
 
 import org.sagebionetworks.bridge.rest.RestUtils;
@@ -13,20 +20,55 @@ import org.sagebionetworks.bridge.rest.RestUtils;
 public class JsonArchiveFile implements ArchiveFile {
     private final String filename;
     private final DateTime endDate;
-    private final String json;
+    // UTF-8 encoded once up front, so getByteSource() doesn't re-encode on every call. Exactly one of jsonBytes
+    // and object is set, object is only set in lazy mode.
+    private final byte[] jsonBytes;
+    private final Object object;
+    private final Type objectType;
+    // how long the object took to serialize up front, or -1 if it was lazy or given as JSON. Only a measurement, so
+    // it isn't part of equals.
+    private final long serializeNanos;
 
     public JsonArchiveFile(String filename, DateTime endDate, String json) {
-        this.filename = filename;
-        this.endDate = endDate;
-        this.json = json;
+        this(filename, endDate, json.getBytes(StandardCharsets.UTF_8), null, null, -1);
     }
 
     public JsonArchiveFile(String filename, DateTime endDate, Object object) {
-        this(filename, endDate, RestUtils.GSON.toJson(object));
+        this(filename, endDate, new Serialized(object, null));
     }
 
     public JsonArchiveFile(String filename, DateTime endDate, Object object, Type objectTYpe) {
-        this(filename, endDate, RestUtils.GSON.toJson(object, objectTYpe));
+        this(filename, endDate, new Serialized(object, objectTYpe));
+    }
+
+    private JsonArchiveFile(String filename, DateTime endDate, Serialized serialized) {
+        this(filename, endDate, serialized.jsonBytes, null, null, serialized.nanos);
+    }
+
+    private JsonArchiveFile(String filename, DateTime endDate, byte[] jsonBytes, Object object, Type objectType,
+            long serializeNanos) {
+        this.filename = filename;
+        this.endDate = endDate;
+        this.jsonBytes = jsonBytes;
+        this.object = object;
+        this.objectType = objectType;
+        this.serializeNanos = serializeNanos;
+    }
+
+    /**
+     * Creates a JSON file that keeps the object and only serializes it when the archive is written, straight into the
+     * zip entry, so no String or byte[] copy of the JSON is ever made. Use this for large objects like step history.
+     * The object must not be modified until the archive has been written.
+     */
+    public static JsonArchiveFile lazy(String filename, DateTime endDate, Object object) {
+        return lazy(filename, endDate, object, object != null ? object.getClass() : Object.class);
+    }
+
+    /**
+     * Same as {@link #lazy(String, DateTime, Object)}, for generic objects whose type can't be found from the object.
+     */
+    public static JsonArchiveFile lazy(String filename, DateTime endDate, Object object, Type objectType) {
+        return new JsonArchiveFile(filename, endDate, null, object, objectType, -1);
     }
 
     @Override
@@ -39,9 +81,42 @@ public class JsonArchiveFile implements ArchiveFile {
         return endDate;
     }
 
+    /**
+     * @return contents of the file, which report their size through {@link ByteSource#sizeIfKnown()} unless the file
+     * is lazy
+     */
     @Override
     public ByteSource getByteSource() {
-        return ByteSource.wrap(json.getBytes(StandardCharsets.UTF_8));
+        if (jsonBytes != null) {
+            return ByteSource.wrap(jsonBytes);
+        }
+        return new LazyJsonSource();
+    }
+
+    /**
+     * Reports how long the file took to serialize, once its entry has been written. Eager files report the time they
+     * took when they were created. Lazy files report the last copy of the given byte source, which is the one into
+     * the zip, since a stored entry's CRC or a compression sample may have copied it before.
+     *
+     * @param source
+     *         byte source from {@link #getByteSource()} that the entry was written from
+     * @param metrics
+     *         listener to report to
+     */
+    void reportSerialized(ByteSource source, ArchiveMetrics metrics) {
+        if (metrics == ArchiveMetrics.NO_OP) {
+            return;
+        }
+        if (jsonBytes != null) {
+            if (serializeNanos >= 0) {
+                metrics.jsonSerialized(filename, jsonBytes.length, serializeNanos);
+            }
+        } else if (source instanceof LazyJsonSource) {
+            LazyJsonSource lazySource = (LazyJsonSource) source;
+            if (lazySource.lastBytes >= 0) {
+                metrics.jsonSerialized(filename, lazySource.lastBytes, lazySource.lastNanos);
+            }
+        }
     }
 
     @Override
@@ -51,19 +126,61 @@ public class JsonArchiveFile implements ArchiveFile {
         JsonArchiveFile that = (JsonArchiveFile) o;
         return Objects.equal(filename, that.filename) &&
                 Objects.equal(endDate, that.endDate) &&
-                Objects.equal(json, that.json);
+                Arrays.equals(jsonBytes, that.jsonBytes) &&
+                Objects.equal(object, that.object) &&
+                Objects.equal(objectType, that.objectType);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(filename, endDate, json);
+        return 31 * Objects.hashCode(filename, endDate, object, objectType) + Arrays.hashCode(jsonBytes);
     }
 
     @Override public String toString() {
         return MoreObjects.toStringHelper(this)
                 .add("filename", filename)
                 .add("endDate", endDate)
-                .add("json", json)
+                .add("json", jsonBytes != null ? new String(jsonBytes, StandardCharsets.UTF_8) : null)
+                .add("object", object)
+                .add("objectType", objectType)
                 .toString();
     }
-}
\ No newline at end of file
+
+    // Serializes the object on every copy, straight into the output, and remembers how the last complete copy went.
+    private final class LazyJsonSource extends StreamingByteSource {
+        // -1 until a copy has completed
+        private long lastBytes = -1;
+        private long lastNanos;
+
+        @Override
+        public long copyTo(OutputStream output) throws IOException {
+            long start = System.nanoTime();
+            CountingOutputStream countingOutput = new CountingOutputStream(output);
+            // the writer is flushed but not closed, so the zip entry stays open
+            Writer writer = new OutputStreamWriter(countingOutput, StandardCharsets.UTF_8);
+            try {
+                RestUtils.GSON.toJson(object, objectType, writer);
+            } catch (JsonIOException e) {
+                throw new IOException(e);
+            }
+            writer.flush();
+            lastNanos = System.nanoTime() - start;
+            lastBytes = countingOutput.getCount();
+            return lastBytes;
+        }
+    }
+
+    // JSON serialized up front, and how long it took
+    private static class Serialized {
+        final byte[] jsonBytes;
+        final long nanos;
+
+        Serialized(Object object, Type objectType) {
+            long start = System.nanoTime();
+            String json = objectType != null ? RestUtils.GSON.toJson(object, objectType)
+                    : RestUtils.GSON.toJson(object);
+            jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+            nanos = System.nanoTime() - start;
+        }
+    }
+}
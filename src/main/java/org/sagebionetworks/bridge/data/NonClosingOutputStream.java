@@ -0,0 +1,26 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes writes through, but only flushes on close. Used to hand a caller's stream to wrappers such as cipher streams
+ * that have to be closed to finish their output.
+ */
+class NonClosingOutputStream extends FilterOutputStream {
+    NonClosingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    // FilterOutputStream writes arrays one byte at a time
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+    }
+}
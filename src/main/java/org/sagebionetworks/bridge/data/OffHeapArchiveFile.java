@@ -0,0 +1,486 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Data file whose contents are held outside the Java heap, either in direct buffers from a {@link DirectBufferPool}
+ * or in a memory-mapped temp file. Large recordings can be kept this way while they wait to be archived and uploaded
+ * without growing the heap or the garbage collector's pause times.
+ * <p>
+ * Producers write the contents through a {@link Writer}, from {@link #newWriter} or {@link #newMappedWriter}, and
+ * {@link Writer#finish} turns it into the file. Archives read the contents a block at a time into their copy
+ * buffer, so the whole file is never copied onto the heap. Written in parallel, an archive holds at most
+ * {@link CompressedEntry#SPILL_THRESHOLD} of each file's compressed data on the heap, and moves the rest to a temp
+ * file. Once the archive has been written, {@link #close} returns the buffers to the pool, or deletes the temp file.
+ * <p>
+ * The file's byte source can be read any number of times, from any number of threads, until the file is closed. A
+ * stream opened before then keeps the contents until the stream is closed too.
+ */
+public final class OffHeapArchiveFile implements ArchiveFile, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapArchiveFile.class);
+
+    // a single mapping can't be larger than Integer.MAX_VALUE, so large files are mapped a gigabyte at a time
+    static final int MAX_MAPPING_SIZE = 1 << 30;
+
+    private final String filename;
+    private final DateTime endDate;
+    // read-only views of the contents, in order, each positioned at its start
+    private final List<ByteBuffer> chunks;
+    private final long size;
+    private final ByteSource byteSource = new OffHeapByteSource();
+    // the pool the chunks came from, or null for a mapped file
+    private final DirectBufferPool pool;
+    // the buffers to return to the pool on close
+    private final List<ByteBuffer> pooledBuffers;
+    // the mapped temp file, or null for pooled buffers
+    private final Path mappedFile;
+
+    private volatile boolean closed;
+    // one for the file itself until it's closed, plus one per open stream, so the contents are only released once
+    // nothing can read them
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private OffHeapArchiveFile(String filename, DateTime endDate, List<ByteBuffer> chunks, long size,
+            DirectBufferPool pool, List<ByteBuffer> pooledBuffers, Path mappedFile) {
+        this.filename = filename;
+        this.endDate = endDate;
+        this.chunks = chunks;
+        this.size = size;
+        this.pool = pool;
+        this.pooledBuffers = pooledBuffers;
+        this.mappedFile = mappedFile;
+    }
+
+    /**
+     * Starts writing a file into direct buffers from the pool.
+     *
+     * @param filename
+     *         name of the file in the archive
+     * @param endDate
+     *         when the file's data was measured
+     * @param pool
+     *         pool of direct buffers to write into
+     * @return writer for the file's contents
+     */
+    public static Writer newWriter(String filename, DateTime endDate, DirectBufferPool pool) {
+        checkNotNull(filename);
+        checkNotNull(endDate);
+        checkNotNull(pool);
+        return new PooledWriter(filename, endDate, pool);
+    }
+
+    /**
+     * Starts writing a file into a new temp file, which is memory-mapped once it's finished. The contents then live
+     * in the operating system's page cache, which can hold far more than the heap and can page them out under memory
+     * pressure.
+     *
+     * @param filename
+     *         name of the file in the archive
+     * @param endDate
+     *         when the file's data was measured
+     * @param tempFile
+     *         file to write to, which must not exist yet, and is deleted when the archive file is closed
+     * @return writer for the file's contents
+     * @throws IOException
+     *         problem creating the temp file
+     */
+    public static Writer newMappedWriter(String filename, DateTime endDate, Path tempFile) throws IOException {
+        checkNotNull(filename);
+        checkNotNull(endDate);
+        checkNotNull(tempFile);
+        return new MappedWriter(filename, endDate, tempFile);
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public DateTime getEndDate() {
+        return endDate;
+    }
+
+    /**
+     * The byte source knows its size, and fails with {@link IllegalStateException} once the file is closed.
+     */
+    @Override
+    public ByteSource getByteSource() {
+        return byteSource;
+    }
+
+    /**
+     * @return size of the contents, in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Releases the contents, returning the buffers to the pool or deleting the temp file. Neither this file's byte
+     * source nor any stream opened from it can be used afterwards. Streams that are still open keep the contents
+     * until they're closed, so one being read on another thread never sees a buffer that's gone back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (references) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        releaseReference();
+    }
+
+    // fails if the file is closed, so no stream can be opened once the contents may have been released
+    private void acquireReference() {
+        int count;
+        do {
+            count = references.get();
+            checkState(count > 0 && !closed, "file is closed");
+        } while (!references.compareAndSet(count, count + 1));
+    }
+
+    private void releaseReference() {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+        if (pool != null) {
+            for (ByteBuffer buffer : pooledBuffers) {
+                pool.release(buffer);
+            }
+        }
+        if (mappedFile != null) {
+            deleteMappedFile(mappedFile);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("filename", filename)
+                .add("endDate", endDate)
+                .add("size", size)
+                .add("mappedFile", mappedFile)
+                .add("closed", closed)
+                .toString();
+    }
+
+    // Some platforms won't delete a file while it's mapped, and Java can only unmap it by garbage collecting the
+    // buffers, so failing to delete is logged rather than thrown.
+    private static void deleteMappedFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Couldn't delete mapped temp file " + file, e);
+        }
+    }
+
+    /**
+     * Writes the contents of an {@link OffHeapArchiveFile}. Call {@link #finish} once all the contents are written.
+     * Closing a writer without finishing it discards what was written, so writers can be used in try-with-resources
+     * blocks that finish them as their last statement.
+     */
+    public abstract static class Writer extends OutputStream {
+        final String filename;
+        final DateTime endDate;
+        long size;
+        private boolean finished;
+        private boolean closed;
+
+        Writer(String filename, DateTime endDate) {
+            this.filename = filename;
+            this.endDate = endDate;
+        }
+
+        /**
+         * @return number of bytes written so far
+         */
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            writeByte((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkPositionIndexes(off, off + len, b.length);
+            checkOpen();
+            writeBytes(b, off, len);
+            size += len;
+        }
+
+        /**
+         * Finishes writing and closes this writer.
+         *
+         * @return file with the contents written
+         * @throws IOException
+         *         problem mapping the temp file
+         */
+        public OffHeapArchiveFile finish() throws IOException {
+            checkOpen();
+            finished = true;
+            closed = true;
+            return toArchiveFile();
+        }
+
+        /**
+         * Discards the contents if the writer wasn't finished, otherwise does nothing.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!finished) {
+                discard();
+            }
+        }
+
+        private void checkOpen() {
+            checkState(!closed, "writer is closed");
+        }
+
+        abstract void writeByte(byte b) throws IOException;
+
+        abstract void writeBytes(byte[] b, int off, int len) throws IOException;
+
+        abstract OffHeapArchiveFile toArchiveFile() throws IOException;
+
+        abstract void discard() throws IOException;
+    }
+
+    private static final class PooledWriter extends Writer {
+        private final DirectBufferPool pool;
+        private final List<ByteBuffer> buffers = Lists.newArrayList();
+        private ByteBuffer current;
+
+        PooledWriter(String filename, DateTime endDate, DirectBufferPool pool) {
+            super(filename, endDate);
+            this.pool = pool;
+        }
+
+        @Override
+        void writeByte(byte b) {
+            nextBufferIfFull();
+            current.put(b);
+        }
+
+        @Override
+        void writeBytes(byte[] b, int off, int len) {
+            while (len > 0) {
+                nextBufferIfFull();
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void nextBufferIfFull() {
+            if (current == null || !current.hasRemaining()) {
+                current = pool.acquire();
+                buffers.add(current);
+            }
+        }
+
+        @Override
+        OffHeapArchiveFile toArchiveFile() {
+            ImmutableList.Builder<ByteBuffer> chunks = ImmutableList.builder();
+            for (ByteBuffer buffer : buffers) {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.flip();
+                chunks.add(chunk.asReadOnlyBuffer());
+            }
+            return new OffHeapArchiveFile(filename, endDate, chunks.build(), size, pool,
+                    ImmutableList.copyOf(buffers), null);
+        }
+
+        @Override
+        void discard() {
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+            buffers.clear();
+        }
+    }
+
+    private static final class MappedWriter extends Writer {
+        private final Path tempFile;
+        private final OutputStream os;
+
+        MappedWriter(String filename, DateTime endDate, Path tempFile) throws IOException {
+            super(filename, endDate);
+            this.tempFile = tempFile;
+            // small writes are batched on the heap, so each one isn't a system call
+            this.os = new BufferedOutputStream(Files.newOutputStream(tempFile,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), Archive.COPY_BUFFER_SIZE);
+        }
+
+        @Override
+        void writeByte(byte b) throws IOException {
+            os.write(b);
+        }
+
+        @Override
+        void writeBytes(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+        }
+
+        @Override
+        OffHeapArchiveFile toArchiveFile() throws IOException {
+            try {
+                os.close();
+                ImmutableList.Builder<ByteBuffer> chunks = ImmutableList.builder();
+                // the mappings stay valid after the channel is closed
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.READ)) {
+                    for (long position = 0; position < size; position += MAX_MAPPING_SIZE) {
+                        long length = Math.min(MAX_MAPPING_SIZE, size - position);
+                        chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                    }
+                }
+                return new OffHeapArchiveFile(filename, endDate, chunks.build(), size, null, null, tempFile);
+            } catch (IOException | RuntimeException e) {
+                deleteMappedFile(tempFile);
+                throw e;
+            }
+        }
+
+        @Override
+        void discard() throws IOException {
+            try {
+                os.close();
+            } finally {
+                deleteMappedFile(tempFile);
+            }
+        }
+    }
+
+    private final class OffHeapByteSource extends ByteSource {
+        @Override
+        public InputStream openStream() {
+            acquireReference();
+            return new ChunkInputStream();
+        }
+
+        @Override
+        public Optional<Long> sizeIfKnown() {
+            return Optional.of(size);
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "OffHeapArchiveFile.getByteSource(" + filename + ")";
+        }
+    }
+
+    // Reads the chunks through views of its own, so streams don't disturb each other, and holds a reference to the
+    // contents until it's closed.
+    private final class ChunkInputStream extends InputStream {
+        private int chunkIndex = -1;
+        private ByteBuffer current;
+        private boolean streamClosed;
+
+        @Override
+        public int read() {
+            if (!nextChunkIfEmpty()) {
+                return -1;
+            }
+            return current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            checkPositionIndexes(off, off + len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunkIfEmpty()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            while (skipped < n && nextChunkIfEmpty()) {
+                int count = (int) Math.min(n - skipped, current.remaining());
+                current.position(current.position() + count);
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return current != null ? current.remaining() : 0;
+        }
+
+        @Override
+        public void close() {
+            if (!streamClosed) {
+                streamClosed = true;
+                current = null;
+                releaseReference();
+            }
+        }
+
+        // moves on to the next chunk with anything left in it, returning false at the end of the contents
+        private boolean nextChunkIfEmpty() {
+            checkState(!streamClosed, "stream is closed");
+            // the contents are still held by this stream, but reading after the file is closed is a mistake
+            checkState(!closed, "file is closed");
+            while (current == null || !current.hasRemaining()) {
+                if (chunkIndex + 1 >= chunks.size()) {
+                    return false;
+                }
+                chunkIndex++;
+                current = chunks.get(chunkIndex).duplicate();
+            }
+            return true;
+        }
+    }
+}
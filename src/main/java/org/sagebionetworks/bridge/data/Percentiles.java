@@ -0,0 +1,28 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Percentiles of recorded timings, for {@link InMemoryArchiveMetrics} and {@link BatchEncryptor}.
+ */
+final class Percentiles {
+    private Percentiles() {
+    }
+
+    /**
+     * @param sorted
+     *         values, sorted ascending
+     * @param percentile
+     *         percentile to return, from 0 to 100
+     * @return nearest-rank percentile of the values, or 0 if there are none
+     */
+    static double nearestRank(double[] sorted, double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile must be from 0 to 100");
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        // the rank of the 0th percentile rounds down to 0, but it's the smallest value like the 1st
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
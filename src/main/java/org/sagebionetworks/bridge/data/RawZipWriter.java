@@ -0,0 +1,276 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.ZipEntry;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Writes a zip file out of entries that have already been compressed. Unlike {@link java.util.zip.ZipOutputStream},
+ * this does no compression itself, so entries can be compressed elsewhere and stitched together here in order.
+ * Sizes and CRCs are known up front, so they go in the local headers and no data descriptors are needed. Zip64
+ * extensions are added where sizes, offsets or the number of entries don't fit the original format, the same way
+ * {@link java.util.zip.ZipOutputStream} does.
+ * <p>
+ * Not thread safe. Entries must be written from one thread, in archive order.
+ */
+class RawZipWriter implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+    private static final int ZIP64_END_LOCATOR_SIZE = 20;
+    // header and data size of the zip64 extra field in a local header, which always has both sizes
+    private static final int ZIP64_LOCAL_EXTRA_SIZE = 4 + 16;
+    // the central header's zip64 extra field can also have the local header offset
+    private static final int ZIP64_CENTRAL_EXTRA_SIZE = 4 + 24;
+    // ZipOutputStream writes a data descriptor with zip64 sizes after deflated entries
+    private static final int ZIP64_DATA_DESCRIPTOR_SIZE = 24;
+    // extended timestamp extra fields, which ZipOutputStream may add to the local and central headers
+    private static final int EXTENDED_TIMESTAMP_EXTRA_SIZE = 17 + 9;
+
+    /**
+     * Most bytes a zip can add after its last entry, whether written by this or by
+     * {@link java.util.zip.ZipOutputStream}, central directory headers aside.
+     */
+    static final int MAX_END_OVERHEAD = ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE + ZIP64_END_LOCATOR_SIZE
+            + END_OF_CENTRAL_DIRECTORY_SIZE;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // general purpose flag bit 11, entry names are UTF-8
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+    private static final int MAX_UINT16 = 0xFFFF;
+
+    private final CountingOutputStream out;
+    // where the stream starts in the zip, which isn't the start when appending to a partly written zip
+    private final long startOffset;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private int entryCount;
+    private boolean finished;
+
+    RawZipWriter(OutputStream os) {
+        this(os, 0);
+    }
+
+    /**
+     * Appends to a zip whose entries up to the given offset have already been written. Call
+     * {@link #addWrittenEntry} for each of them, so they're in the central directory.
+     */
+    RawZipWriter(OutputStream os, long startOffset) {
+        this.out = new CountingOutputStream(os);
+        this.startOffset = startOffset;
+    }
+
+    /**
+     * @return offset in the zip that the next entry will be written at
+     */
+    long getOffset() {
+        return startOffset + out.getCount();
+    }
+
+    /**
+     * Most bytes a zip adds for an entry besides its compressed data, whether written by this or by
+     * {@link java.util.zip.ZipOutputStream}, counting its local header, data descriptor and central directory header.
+     */
+    static long maxEntryOverhead(String name) {
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        return LOCAL_HEADER_SIZE + ZIP64_LOCAL_EXTRA_SIZE + ZIP64_DATA_DESCRIPTOR_SIZE + CENTRAL_HEADER_SIZE
+                + ZIP64_CENTRAL_EXTRA_SIZE + EXTENDED_TIMESTAMP_EXTRA_SIZE + 2L * nameLength;
+    }
+
+    /**
+     * Writes the entry's local header followed by its compressed data.
+     */
+    void writeEntry(CompressedEntry entry) throws IOException {
+        if (finished) {
+            throw new IOException("zip has already been finished");
+        }
+        long offset = getOffset();
+        boolean zip64Sizes = entry.size >= MAX_UINT32 || entry.compressedSize >= MAX_UINT32;
+
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int version = version(entry.method, entry.size, entry.compressedSize, offset);
+        int dosTime = toDosTime(entry.time);
+
+        int localExtraSize = zip64Sizes ? ZIP64_LOCAL_EXTRA_SIZE : 0;
+        ByteBuffer local = newBuffer(LOCAL_HEADER_SIZE + name.length + localExtraSize);
+        local.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) version)
+                .putShort((short) FLAG_UTF8)
+                .putShort((short) entry.method)
+                .putInt(dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) (zip64Sizes ? MAX_UINT32 : entry.compressedSize))
+                .putInt((int) (zip64Sizes ? MAX_UINT32 : entry.size))
+                .putShort((short) name.length)
+                .putShort((short) localExtraSize)
+                .put(name);
+        if (zip64Sizes) {
+            // in the local header, the zip64 field always has both sizes, uncompressed first
+            local.putShort(ZIP64_EXTRA_ID)
+                    .putShort((short) 16)
+                    .putLong(entry.size)
+                    .putLong(entry.compressedSize);
+        }
+        out.write(local.array());
+        entry.writeDataTo(out);
+
+        writeCentralHeader(name, entry.method, entry.crc, entry.size, entry.compressedSize, dosTime, offset);
+    }
+
+    /**
+     * Adds an entry that was already written before this writer started, at the given offset, to the central
+     * directory.
+     */
+    void addWrittenEntry(String name, int method, long crc, long size, long compressedSize, long time, long offset)
+            throws IOException {
+        if (finished) {
+            throw new IOException("zip has already been finished");
+        }
+        writeCentralHeader(name.getBytes(StandardCharsets.UTF_8), method, crc, size, compressedSize, toDosTime(time),
+                offset);
+    }
+
+    private void writeCentralHeader(byte[] name, int method, long crc, long size, long compressedSize, int dosTime,
+            long offset) {
+        boolean zip64Sizes = size >= MAX_UINT32 || compressedSize >= MAX_UINT32;
+        boolean zip64Offset = offset >= MAX_UINT32;
+        int version = version(method, size, compressedSize, offset);
+
+        // in the central header, the zip64 field has only the values that overflowed, in this order
+        ByteBuffer centralExtra = newBuffer(ZIP64_CENTRAL_EXTRA_SIZE);
+        if (zip64Sizes || zip64Offset) {
+            centralExtra.putShort(ZIP64_EXTRA_ID).putShort((short) 0);
+            if (zip64Sizes) {
+                centralExtra.putLong(size).putLong(compressedSize);
+            }
+            if (zip64Offset) {
+                centralExtra.putLong(offset);
+            }
+            centralExtra.putShort(2, (short) (centralExtra.position() - 4));
+        }
+        int centralExtraSize = centralExtra.position();
+
+        ByteBuffer central = newBuffer(CENTRAL_HEADER_SIZE + name.length + centralExtraSize);
+        central.putInt(CENTRAL_HEADER_SIGNATURE)
+                .putShort((short) version) // version made by
+                .putShort((short) version) // version needed to extract
+                .putShort((short) FLAG_UTF8)
+                .putShort((short) method)
+                .putInt(dosTime)
+                .putInt((int) crc)
+                .putInt((int) (zip64Sizes ? MAX_UINT32 : compressedSize))
+                .putInt((int) (zip64Sizes ? MAX_UINT32 : size))
+                .putShort((short) name.length)
+                .putShort((short) centralExtraSize)
+                .putShort((short) 0) // comment length
+                .putShort((short) 0) // disk number start
+                .putShort((short) 0) // internal file attributes
+                .putInt(0) // external file attributes
+                .putInt((int) (zip64Offset ? MAX_UINT32 : offset))
+                .put(name)
+                .put(centralExtra.array(), 0, centralExtraSize);
+        centralDirectory.write(central.array(), 0, central.capacity());
+        entryCount++;
+    }
+
+    private static int version(int method, long size, long compressedSize, long offset) {
+        if (size >= MAX_UINT32 || compressedSize >= MAX_UINT32 || offset >= MAX_UINT32) {
+            return VERSION_ZIP64;
+        }
+        return method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+    }
+
+    /**
+     * Writes the central directory. No more entries may be written afterwards.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        long centralDirectoryOffset = getOffset();
+        long centralDirectorySize = centralDirectory.size();
+        centralDirectory.writeTo(out);
+
+        boolean zip64 = entryCount >= MAX_UINT16 || centralDirectorySize >= MAX_UINT32
+                || centralDirectoryOffset >= MAX_UINT32;
+        if (zip64) {
+            long zip64EndOffset = getOffset();
+            ByteBuffer zip64End = newBuffer(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE + ZIP64_END_LOCATOR_SIZE);
+            zip64End.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                    .putLong(ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE - 12) // size of the rest of this record
+                    .putShort((short) VERSION_ZIP64) // version made by
+                    .putShort((short) VERSION_ZIP64) // version needed to extract
+                    .putInt(0) // number of this disk
+                    .putInt(0) // disk where central directory starts
+                    .putLong(entryCount)
+                    .putLong(entryCount)
+                    .putLong(centralDirectorySize)
+                    .putLong(centralDirectoryOffset)
+                    .putInt(ZIP64_END_LOCATOR_SIGNATURE)
+                    .putInt(0) // disk with the zip64 end of central directory
+                    .putLong(zip64EndOffset)
+                    .putInt(1); // total number of disks
+            out.write(zip64End.array());
+        }
+
+        ByteBuffer end = newBuffer(END_OF_CENTRAL_DIRECTORY_SIZE);
+        end.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0) // number of this disk
+                .putShort((short) 0) // disk where central directory starts
+                .putShort((short) Math.min(entryCount, MAX_UINT16))
+                .putShort((short) Math.min(entryCount, MAX_UINT16))
+                .putInt((int) Math.min(centralDirectorySize, MAX_UINT32))
+                .putInt((int) Math.min(centralDirectoryOffset, MAX_UINT32))
+                .putShort((short) 0); // comment length
+        out.write(end.array());
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Closes the underlying stream. Call {@link #finish()} first, otherwise the zip is left incomplete.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // MS-DOS date and time in local time, as used by java.util.zip
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
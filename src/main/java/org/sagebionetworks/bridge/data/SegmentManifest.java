@@ -0,0 +1,105 @@
+package org.sagebionetworks.bridge.data;
+
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * This is the model for the manifest of a segmented upload. The manifest holds the content key, so it's only ever
+ * stored encrypted for the study.
+ */
+class SegmentManifest {
+    static final int CURRENT_VERSION = 1;
+    static final String ALGORITHM = "AES-256-CBC";
+
+    public static class SegmentInfo {
+        @SerializedName("index")
+        final int index;
+        @SerializedName("plaintextSize")
+        final long plaintextSize;
+        @SerializedName("ciphertextSize")
+        final long ciphertextSize;
+        // hex SHA-256 of the encrypted segment, as uploaded
+        @SerializedName("sha256")
+        final String sha256;
+
+        SegmentInfo(int index, long plaintextSize, long ciphertextSize, String sha256) {
+            this.index = index;
+            this.plaintextSize = plaintextSize;
+            this.ciphertextSize = ciphertextSize;
+            this.sha256 = sha256;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            SegmentInfo that = (SegmentInfo) o;
+            return index == that.index &&
+                    plaintextSize == that.plaintextSize &&
+                    ciphertextSize == that.ciphertextSize &&
+                    Objects.equal(sha256, that.sha256);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hashCode(index, plaintextSize, ciphertextSize, sha256);
+        }
+
+        @Override public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("index", index)
+                    .add("plaintextSize", plaintextSize)
+                    .add("ciphertextSize", ciphertextSize)
+                    .add("sha256", sha256)
+                    .toString();
+        }
+    }
+
+    @SerializedName("version")
+    int version = CURRENT_VERSION;
+    @SerializedName("algorithm")
+    String algorithm = ALGORITHM;
+    @SerializedName("segmentSize")
+    int segmentSize;
+    // base64 content key and IV nonce
+    @SerializedName("key")
+    String key;
+    @SerializedName("nonce")
+    String nonce;
+    @SerializedName("segments")
+    List<SegmentInfo> segments;
+
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SegmentManifest that = (SegmentManifest) o;
+        return version == that.version &&
+                segmentSize == that.segmentSize &&
+                Objects.equal(algorithm, that.algorithm) &&
+                Objects.equal(key, that.key) &&
+                Objects.equal(nonce, that.nonce) &&
+                Objects.equal(segments, that.segments);
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hashCode(version, algorithm, segmentSize, key, nonce, segments);
+    }
+
+    // leaves out the key, so manifests can be logged
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("version", version)
+                .add("algorithm", algorithm)
+                .add("segmentSize", segmentSize)
+                .add("segments", segments)
+                .toString();
+    }
+}
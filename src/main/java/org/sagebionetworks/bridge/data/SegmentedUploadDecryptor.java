@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+/**
+ * Reassembles uploads written by {@link SegmentedUploadEncryptor}, using the study's private key.
+ */
+public class SegmentedUploadDecryptor {
+    private static final String JCE_PROVIDER = CryptoProviders.BOUNCY_CASTLE_NAME;
+
+    private final X509Certificate certificate;
+    private final PrivateKey privateKey;
+    private final Provider contentCipherProvider;
+
+    /**
+     * @param certificate
+     *         study's certificate, the manifest must have been encrypted for it
+     * @param privateKey
+     *         study's private key
+     */
+    public SegmentedUploadDecryptor(X509Certificate certificate, PrivateKey privateKey) {
+        this(certificate, privateKey, JCE_PROVIDER);
+    }
+
+    /**
+     * @param certificate
+     *         study's certificate, the manifest must have been encrypted for it
+     * @param privateKey
+     *         study's private key
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES segment cipher
+     */
+    public SegmentedUploadDecryptor(X509Certificate certificate, PrivateKey privateKey,
+            String contentCipherProvider) {
+        this(certificate, privateKey, CryptoProviders.forName(contentCipherProvider));
+    }
+
+    /**
+     * @param certificate
+     *         study's certificate, the manifest must have been encrypted for it
+     * @param privateKey
+     *         study's private key
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES segment cipher, which doesn't need to be installed
+     */
+    public SegmentedUploadDecryptor(X509Certificate certificate, PrivateKey privateKey,
+            Provider contentCipherProvider) {
+        this.certificate = checkNotNull(certificate);
+        this.privateKey = checkNotNull(privateKey);
+        this.contentCipherProvider = checkNotNull(contentCipherProvider);
+    }
+
+    /**
+     * Decrypts every segment in the directory, in order, into the output stream. Each segment's size and SHA-256 are
+     * checked against the manifest before it's decrypted.
+     *
+     * @param inputDir
+     *         directory written by {@link SegmentedUploadEncryptor#encryptFile}
+     * @param os
+     *         stream to write the plaintext to, left open
+     * @throws IOException
+     *         problem reading files, or a segment doesn't match the manifest
+     * @throws GeneralSecurityException
+     *         problem with the segment cipher
+     * @throws CMSException
+     *         problem decrypting the manifest
+     */
+    public void decryptFile(File inputDir, OutputStream os)
+            throws IOException, GeneralSecurityException, CMSException {
+        SegmentManifest manifest;
+        try (InputStream is = new FileInputStream(new File(inputDir, SegmentedUploadEncryptor.MANIFEST_FILE_NAME))) {
+            manifest = readManifest(is);
+        }
+
+        SecretKey key = new SecretKeySpec(BaseEncoding.base64().decode(manifest.key), "AES");
+        byte[] nonce = BaseEncoding.base64().decode(manifest.nonce);
+        for (SegmentManifest.SegmentInfo segment : manifest.segments) {
+            File segmentFile = new File(inputDir, SegmentedUploadEncryptor.segmentFileName(segment.index));
+            verifySegment(segmentFile, segment);
+
+            Cipher cipher = SegmentedUploadEncryptor.newSegmentCipher(Cipher.DECRYPT_MODE, key, nonce,
+                    segment.index, contentCipherProvider);
+            try (InputStream is = new CipherInputStream(new FileInputStream(segmentFile), cipher)) {
+                ByteStreams.copy(is, os);
+            }
+        }
+    }
+
+    SegmentManifest readManifest(InputStream encryptedManifest) throws IOException, CMSException {
+        CMSEnvelopedDataParser parser = new CMSEnvelopedDataParser(encryptedManifest);
+        try {
+            RecipientInformation recipient = parser.getRecipientInfos().get(new JceKeyTransRecipientId(certificate));
+            if (recipient == null) {
+                throw new CMSException("manifest was not encrypted for this certificate");
+            }
+            InputStream manifestStream = recipient.getContentStream(new JceKeyTransEnvelopedRecipient(privateKey)
+                    .setProvider(CryptoProviders.bouncyCastle())).getContentStream();
+            try (Reader reader = new InputStreamReader(manifestStream, StandardCharsets.UTF_8)) {
+                SegmentManifest manifest = RestUtils.GSON.fromJson(reader, SegmentManifest.class);
+                if (manifest == null || manifest.version != SegmentManifest.CURRENT_VERSION
+                        || !SegmentManifest.ALGORITHM.equals(manifest.algorithm)) {
+                    throw new IOException("unsupported segment manifest: " + manifest);
+                }
+                return manifest;
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void verifySegment(File segmentFile, SegmentManifest.SegmentInfo segment) throws IOException {
+        try (CountingInputStream countingInput = new CountingInputStream(new FileInputStream(segmentFile));
+                HashingInputStream hashingInput = new HashingInputStream(Hashing.sha256(), countingInput)) {
+            ByteStreams.copy(hashingInput, ByteStreams.nullOutputStream());
+            if (countingInput.getCount() != segment.ciphertextSize
+                    || !hashingInput.hash().toString().equals(segment.sha256)) {
+                throw new IOException("segment " + segment.index + " does not match the manifest");
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CountingOutputStream;
+import org.bouncycastle.cms.CMSException;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+/**
+ * Encrypts large uploads as independently encrypted segments plus a manifest, instead of one CMS stream. Segments can
+ * be encrypted in parallel, retried one at a time, and uploaded as the parts of a multipart upload.
+ * <p>
+ * Every segment is AES-256-CBC under a single content key, with its own IV derived from the segment index. The
+ * manifest records the content key and the size and SHA-256 of every segment, and is itself encrypted for the study
+ * with a {@link StudyUploadEncryptor}, so only the study can recover the content key.
+ * {@link SegmentedUploadDecryptor} reassembles the plaintext.
+ */
+public class SegmentedUploadEncryptor {
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final String MANIFEST_FILE_NAME = "manifest.cms";
+
+    private static final String JCE_PROVIDER = CryptoProviders.BOUNCY_CASTLE_NAME;
+    private static final String SEGMENT_CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String IV_CIPHER = "AES/ECB/NoPadding";
+    private static final int KEY_SIZE_BITS = 256;
+    private static final int NONCE_SIZE = 8;
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private final StudyUploadEncryptor manifestEncryptor;
+    private final int segmentSize;
+    private final Provider contentCipherProvider;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param manifestEncryptor
+     *         encrypts the manifest for the study
+     * @param segmentSize
+     *         plaintext bytes per segment, every segment but the last is exactly this size
+     */
+    public SegmentedUploadEncryptor(StudyUploadEncryptor manifestEncryptor, int segmentSize) {
+        this(manifestEncryptor, segmentSize, JCE_PROVIDER);
+    }
+
+    /**
+     * @param manifestEncryptor
+     *         encrypts the manifest for the study
+     * @param segmentSize
+     *         plaintext bytes per segment, every segment but the last is exactly this size
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES segment cipher, such as
+     *         {@link StudyUploadEncryptor#PLATFORM_CONTENT_CIPHER_PROVIDER}
+     */
+    public SegmentedUploadEncryptor(StudyUploadEncryptor manifestEncryptor, int segmentSize,
+            String contentCipherProvider) {
+        this(manifestEncryptor, segmentSize, CryptoProviders.forName(contentCipherProvider));
+    }
+
+    /**
+     * @param manifestEncryptor
+     *         encrypts the manifest for the study
+     * @param segmentSize
+     *         plaintext bytes per segment, every segment but the last is exactly this size
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES segment cipher, which doesn't need to be installed
+     */
+    public SegmentedUploadEncryptor(StudyUploadEncryptor manifestEncryptor, int segmentSize,
+            Provider contentCipherProvider) {
+        checkNotNull(manifestEncryptor);
+        checkArgument(segmentSize > 0, "segmentSize must be positive");
+        checkNotNull(contentCipherProvider);
+
+        this.manifestEncryptor = manifestEncryptor;
+        this.segmentSize = segmentSize;
+        this.contentCipherProvider = contentCipherProvider;
+    }
+
+    /**
+     * @return new session with a fresh content key, for encrypting one upload
+     */
+    public Session newSession() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES", contentCipherProvider);
+        keyGenerator.init(KEY_SIZE_BITS, random);
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return new Session(keyGenerator.generateKey(), nonce);
+    }
+
+    /**
+     * Encrypts the file into the output directory as one file per segment plus {@link #MANIFEST_FILE_NAME}, with
+     * segments encrypted in parallel on the executor. If any segment fails, the others still finish and the first
+     * failure is thrown; calling this again with the same session only encrypts the segments that didn't complete.
+     *
+     * @param session
+     *         session from {@link #newSession()}, reused when resuming
+     * @param input
+     *         plaintext file
+     * @param outputDir
+     *         directory to write segments and manifest to
+     * @param executor
+     *         executor to encrypt segments on
+     * @throws IOException
+     *         problem reading or writing files
+     * @throws GeneralSecurityException
+     *         problem with the segment cipher
+     * @throws CMSException
+     *         problem encrypting the manifest
+     */
+    public void encryptFile(final Session session, File input, final File outputDir, ExecutorService executor)
+            throws IOException, GeneralSecurityException, CMSException {
+        final ByteSource source = com.google.common.io.Files.asByteSource(input);
+        long size = source.size();
+        int segmentCount = (int) Math.max(1, (size + segmentSize - 1) / segmentSize);
+
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < segmentCount; i++) {
+            if (session.isComplete(i)) {
+                continue;
+            }
+            final int index = i;
+            final long offset = (long) i * segmentSize;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override public Void call() throws IOException, GeneralSecurityException {
+                    File segmentFile = new File(outputDir, segmentFileName(index));
+                    File tempFile = new File(outputDir, segmentFileName(index) + ".tmp");
+                    try (OutputStream os = new FileOutputStream(tempFile)) {
+                        session.encryptSegment(index, source.slice(offset, segmentSize), os);
+                    }
+                    Files.move(tempFile.toPath(), segmentFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return null;
+                }
+            }));
+        }
+
+        // wait for every segment, so as many as possible are complete if we have to resume
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while encrypting segments");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            Throwables.propagateIfPossible(failure, IOException.class, GeneralSecurityException.class);
+            throw new IOException(failure);
+        }
+
+        File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+        try (OutputStream os = new FileOutputStream(manifestFile)) {
+            session.writeManifest(os);
+        }
+    }
+
+    /**
+     * @return file name of the segment with the given index, as written by
+     * {@link #encryptFile(Session, File, File, ExecutorService)}
+     */
+    public static String segmentFileName(int index) {
+        return String.format(Locale.US, "segment-%05d", index);
+    }
+
+    // IV for a segment is AES_K(nonce || index), which is unpredictable without the key and never repeats
+    static Cipher newSegmentCipher(int mode, SecretKey key, byte[] nonce, int index, Provider provider)
+            throws GeneralSecurityException {
+        Cipher ivCipher = Cipher.getInstance(IV_CIPHER, provider);
+        ivCipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] counterBlock = ByteBuffer.allocate(AES_BLOCK_SIZE).put(nonce).putLong((long) index).array();
+        byte[] iv = ivCipher.doFinal(counterBlock);
+
+        Cipher cipher = Cipher.getInstance(SEGMENT_CIPHER, provider);
+        cipher.init(mode, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    /**
+     * One upload's content key and progress. Segments may be encrypted in any order, from any thread.
+     */
+    public class Session {
+        private final SecretKey key;
+        private final byte[] nonce;
+        private final ConcurrentMap<Integer, SegmentManifest.SegmentInfo> completedSegments =
+                Maps.newConcurrentMap();
+
+        private Session(SecretKey key, byte[] nonce) {
+            this.key = key;
+            this.nonce = nonce;
+        }
+
+        /**
+         * @return true if the segment has been encrypted successfully in this session
+         */
+        public boolean isComplete(int index) {
+            return completedSegments.containsKey(index);
+        }
+
+        /**
+         * Encrypts one segment. Encrypting a segment again replaces its earlier result.
+         *
+         * @param index
+         *         segment index, from 0
+         * @param plaintext
+         *         the segment's plaintext, no more than the segment size
+         * @param os
+         *         stream to write the encrypted segment to, left open
+         * @throws IOException
+         *         problem reading or writing
+         * @throws GeneralSecurityException
+         *         problem with the segment cipher
+         */
+        public void encryptSegment(int index, ByteSource plaintext, OutputStream os)
+                throws IOException, GeneralSecurityException {
+            checkArgument(index >= 0, "index must not be negative");
+            // checked before anything is written, so an oversized segment doesn't leave a partial one behind. Files
+            // and slices of them know their size, other sources are counted without being buffered.
+            checkArgument(plaintext.size() <= segmentSize, "segment %s is larger than the segment size", index);
+
+            Cipher cipher = newSegmentCipher(Cipher.ENCRYPT_MODE, key, nonce, index, contentCipherProvider);
+            HashingOutputStream hashingOutput = new HashingOutputStream(Hashing.sha256(), os);
+            CountingOutputStream countingOutput = new CountingOutputStream(hashingOutput);
+            long plaintextSize;
+            byte[] buffer = CopyBuffers.acquire();
+            // CipherOutputStream.close() writes the final block, the shield keeps the caller's stream open
+            try (CipherOutputStream cipherOutput = new CipherOutputStream(new NonClosingOutputStream(countingOutput),
+                    cipher)) {
+                plaintextSize = Archive.copy(plaintext, cipherOutput, buffer);
+            } finally {
+                CopyBuffers.release(buffer);
+            }
+            if (plaintextSize > segmentSize) {
+                throw new IOException("segment " + index + " grew past the segment size while it was read");
+            }
+
+            completedSegments.put(index, new SegmentManifest.SegmentInfo(index, plaintextSize,
+                    countingOutput.getCount(), hashingOutput.hash().toString()));
+        }
+
+        /**
+         * Writes the manifest, encrypted for the study. Every segment from 0 to the highest one encrypted must be
+         * complete.
+         *
+         * @param os
+         *         stream to write the encrypted manifest to, left open
+         * @throws IOException
+         *         problem writing
+         * @throws CMSException
+         *         problem encrypting the manifest
+         */
+        public void writeManifest(OutputStream os) throws IOException, CMSException {
+            checkState(!completedSegments.isEmpty(), "no segments have been encrypted");
+
+            int segmentCount = completedSegments.size();
+            List<SegmentManifest.SegmentInfo> segments = Lists.newArrayListWithCapacity(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                SegmentManifest.SegmentInfo segment = completedSegments.get(i);
+                checkState(segment != null, "segment %s has not been encrypted", i);
+                segments.add(segment);
+            }
+
+            SegmentManifest manifest = new SegmentManifest();
+            manifest.segmentSize = segmentSize;
+            manifest.key = BaseEncoding.base64().encode(key.getEncoded());
+            manifest.nonce = BaseEncoding.base64().encode(nonce);
+            manifest.segments = segments;
+
+            try (OutputStream encryptedOutput = manifestEncryptor.encrypt(new NonClosingOutputStream(os))) {
+                encryptedOutput.write(RestUtils.GSON.toJson(manifest).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
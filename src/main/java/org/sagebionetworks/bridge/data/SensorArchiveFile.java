@@ -0,0 +1,504 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.google.gson.stream.JsonWriter;
+import org.joda.time.DateTime;
+
+/**
+ * Time series of sensor samples, such as accelerometer or gyroscope readings, kept in primitive columns instead of
+ * boxed objects. Each sample is a timestamp and one value per column, and appending one allocates nothing once the
+ * columns have grown large enough, so recording at a high rate doesn't churn the heap.
+ * <pre>
+ *     SensorArchiveFile accel = new SensorArchiveFile("accelerometer.bin", endDate, Encoding.BINARY, "x", "y", "z");
+ *     accel.append(timestamp, x, y, z);
+ * </pre>
+ * {@link Encoding#BINARY} writes the columns one after another, which deflates far better than JSON and takes far
+ * less CPU to produce:
+ * <pre>
+ *     "BSEN", version 1
+ *     column count, then each column name as a length and UTF-8 bytes
+ *     sample count
+ *     timestamps, the first as is and the rest as the difference from the one before, zigzag encoded
+ *     each column in turn, each value's IEEE 754 bits XORed with the bits of the value before, as 8 bytes
+ * </pre>
+ * Counts, lengths and timestamps are unsigned base 128 varints, least significant group first, and the XORed values
+ * are big-endian. Consecutive sensor readings are close together, so the XORs have mostly zero high bytes, which
+ * deflate shrinks well. {@link #decode} reads it back. {@link Encoding#JSON} writes the same samples as a JSON array
+ * of objects with a "timestamp" key and a key per column, the same as Gson writes a list of such objects. JSON
+ * can't hold NaN or infinite values, so files with those must be binary.
+ * <p>
+ * The file's contents are encoded when the archive is written, so every sample appended until then is included, and
+ * none may be appended while it's being written. Not thread safe.
+ */
+public class SensorArchiveFile implements ArchiveFile {
+    private static final byte[] MAGIC = "BSEN".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final String TIMESTAMP_KEY = "timestamp";
+
+    /**
+     * How the samples are written to the archive.
+     */
+    public enum Encoding {
+        BINARY,
+        JSON
+    }
+
+    private final String filename;
+    private final DateTime endDate;
+    private final Encoding encoding;
+    private final List<String> columnNames;
+    private long[] timestamps;
+    // one array of values per column, each the same length as timestamps
+    private final double[][] columns;
+    private int size;
+
+    /**
+     * @param filename
+     *         file name in the archive
+     * @param endDate
+     *         end of the recording
+     * @param encoding
+     *         how to write the samples
+     * @param columnNames
+     *         name of each value in a sample, such as "x", "y" and "z"
+     */
+    public SensorArchiveFile(String filename, DateTime endDate, Encoding encoding, String... columnNames) {
+        checkNotNull(filename);
+        checkNotNull(encoding);
+        checkArgument(columnNames.length > 0, "at least one column is required");
+        checkArgument(!Arrays.asList(columnNames).contains(TIMESTAMP_KEY), "timestamp is not a column");
+
+        this.filename = filename;
+        this.endDate = endDate;
+        this.encoding = encoding;
+        this.columnNames = ImmutableList.copyOf(columnNames);
+        this.timestamps = new long[DEFAULT_CAPACITY];
+        this.columns = new double[columnNames.length][DEFAULT_CAPACITY];
+    }
+
+    // for decode, which starts small and grows as samples are read, rather than trusting the file's sample count
+    private SensorArchiveFile(String filename, DateTime endDate, List<String> columnNames, int capacity) {
+        this.filename = filename;
+        this.endDate = endDate;
+        this.encoding = Encoding.BINARY;
+        this.columnNames = ImmutableList.copyOf(columnNames);
+        this.timestamps = new long[capacity];
+        this.columns = new double[columnNames.size()][capacity];
+    }
+
+    /**
+     * Grows the columns up front to hold the given number of samples, such as a session's expected length, so
+     * appending never has to.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], capacity);
+            }
+        }
+    }
+
+    public void append(long timestamp, double value) {
+        checkValueCount(1);
+        int index = nextIndex(timestamp);
+        columns[0][index] = value;
+    }
+
+    public void append(long timestamp, double value0, double value1) {
+        checkValueCount(2);
+        int index = nextIndex(timestamp);
+        columns[0][index] = value0;
+        columns[1][index] = value1;
+    }
+
+    public void append(long timestamp, double value0, double value1, double value2) {
+        checkValueCount(3);
+        int index = nextIndex(timestamp);
+        columns[0][index] = value0;
+        columns[1][index] = value1;
+        columns[2][index] = value2;
+    }
+
+    /**
+     * Appends a sample with any number of columns. The array is copied, so it can be reused for the next sample.
+     */
+    public void append(long timestamp, double[] values) {
+        checkValueCount(values.length);
+        int index = nextIndex(timestamp);
+        for (int i = 0; i < values.length; i++) {
+            columns[i][index] = values[i];
+        }
+    }
+
+    // Guava's checkArgument would box the count on every call, even when the check passes
+    private void checkValueCount(int valueCount) {
+        if (valueCount != columns.length) {
+            throw new IllegalArgumentException("expected " + columns.length + " values, got " + valueCount);
+        }
+    }
+
+    // stores the timestamp, growing the columns if they're full, and returns the new sample's index
+    private int nextIndex(long timestamp) {
+        if (size == timestamps.length) {
+            ensureCapacity(size * 2);
+        }
+        timestamps[size] = timestamp;
+        return size++;
+    }
+
+    /**
+     * @return number of samples
+     */
+    public int size() {
+        return size;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public long getTimestamp(int index) {
+        checkElementIndex(index, size);
+        return timestamps[index];
+    }
+
+    public double getValue(int index, int column) {
+        checkElementIndex(index, size);
+        checkElementIndex(column, columns.length);
+        return columns[column][index];
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public DateTime getEndDate() {
+        return endDate;
+    }
+
+    /**
+     * @return contents of the file, encoded as they're copied, which report their size only for binary encoding
+     */
+    @Override
+    public ByteSource getByteSource() {
+        return new StreamingByteSource() {
+            @Override
+            public long copyTo(OutputStream output) throws IOException {
+                return encoding == Encoding.BINARY ? writeBinary(output) : writeJson(output);
+            }
+
+            @Override
+            public Optional<Long> sizeIfKnown() {
+                return encoding == Encoding.BINARY ? Optional.of(binarySize()) : Optional.<Long>absent();
+            }
+        };
+    }
+
+    // size of the binary encoding, without encoding it
+    private long binarySize() {
+        long total = MAGIC.length + 1 + varintSize(columns.length) + varintSize(size);
+        for (String name : columnNames) {
+            int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+            total += varintSize(nameLength) + nameLength;
+        }
+        long previousTimestamp = 0;
+        for (int i = 0; i < size; i++) {
+            long delta = timestamps[i] - previousTimestamp;
+            total += varintSize((delta << 1) ^ (delta >> 63));
+            previousTimestamp = timestamps[i];
+        }
+        return total + 8L * size * columns.length;
+    }
+
+    private static int varintSize(long value) {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private long writeBinary(OutputStream output) throws IOException {
+        ChunkedOutput out = new ChunkedOutput(output);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarint(columns.length);
+        for (String name : columnNames) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(nameBytes.length);
+            out.write(nameBytes);
+        }
+        out.writeVarint(size);
+
+        long previousTimestamp = 0;
+        for (int i = 0; i < size; i++) {
+            long delta = timestamps[i] - previousTimestamp;
+            out.writeVarint((delta << 1) ^ (delta >> 63));
+            previousTimestamp = timestamps[i];
+        }
+        for (double[] column : columns) {
+            long previousBits = 0;
+            for (int i = 0; i < size; i++) {
+                long bits = Double.doubleToRawLongBits(column[i]);
+                out.writeLong(bits ^ previousBits);
+                previousBits = bits;
+            }
+        }
+        return out.finish();
+    }
+
+    private long writeJson(OutputStream output) throws IOException {
+        ChunkedOutput out = new ChunkedOutput(output);
+        // the writer is flushed but not closed, so the zip entry stays open
+        OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginArray();
+        for (int i = 0; i < size; i++) {
+            jsonWriter.beginObject();
+            jsonWriter.name(TIMESTAMP_KEY).value(timestamps[i]);
+            for (int c = 0; c < columns.length; c++) {
+                jsonWriter.name(columnNames.get(c)).value(columns[c][i]);
+            }
+            jsonWriter.endObject();
+        }
+        jsonWriter.endArray();
+        jsonWriter.flush();
+        return out.finish();
+    }
+
+    /**
+     * Reads back a file written with {@link Encoding#BINARY}.
+     *
+     * @param filename
+     *         file name for the returned file
+     * @param endDate
+     *         end date for the returned file, such as from the archive's info.json
+     * @param input
+     *         encoded file, which is read to the end of the samples but not closed
+     * @return file with the decoded samples, which encodes to the same bytes
+     * @throws IOException
+     *         problem reading, or the input isn't a binary sensor file. Memory grows with what's actually read, so a
+     *         truncated or corrupt file fails with an exception rather than running out of memory.
+     */
+    public static SensorArchiveFile decode(String filename, DateTime endDate, InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a binary sensor file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported sensor file version " + version);
+        }
+
+        // counts and lengths come from the file, so nothing is sized from them until the data behind them is read
+        int columnCount = readCount(in);
+        List<String> columnNames = Lists.newArrayList();
+        for (int c = 0; c < columnCount; c++) {
+            int nameLength = readCount(in);
+            byte[] nameBytes = ByteStreams.toByteArray(ByteStreams.limit(in, nameLength));
+            if (nameBytes.length != nameLength) {
+                throw new EOFException("column name is truncated");
+            }
+            columnNames.add(new String(nameBytes, StandardCharsets.UTF_8));
+        }
+        if (columnNames.isEmpty() || columnNames.contains(TIMESTAMP_KEY)) {
+            throw new IOException("invalid column names " + columnNames);
+        }
+        int size = readCount(in);
+
+        SensorArchiveFile file = new SensorArchiveFile(filename, endDate, columnNames,
+                Math.min(size, DEFAULT_CAPACITY));
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == file.timestamps.length) {
+                // the columns are read after the timestamps, so they're already large enough by then
+                file.ensureCapacity((int) Math.min(2L * i, size));
+            }
+            long zigzag = readVarint(in);
+            timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+            file.timestamps[i] = timestamp;
+        }
+        for (double[] column : file.columns) {
+            long bits = 0;
+            for (int i = 0; i < size; i++) {
+                bits ^= in.readLong();
+                column[i] = Double.longBitsToDouble(bits);
+            }
+        }
+        file.size = size;
+        return file;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long count = readVarint(in);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("count is too large: " + count);
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint is too long");
+    }
+
+    /**
+     * Files are equal if they have the same name, end date, encoding, columns and samples. Appending a sample changes
+     * both equality and the hash code, so don't keep a file in a hash-based collection while it's being recorded.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SensorArchiveFile that = (SensorArchiveFile) o;
+        if (size != that.size || !Objects.equal(filename, that.filename) || !Objects.equal(endDate, that.endDate)
+                || encoding != that.encoding || !columnNames.equals(that.columnNames)) {
+            return false;
+        }
+        if (!Arrays.equals(Arrays.copyOf(timestamps, size), Arrays.copyOf(that.timestamps, size))) {
+            return false;
+        }
+        for (int c = 0; c < columns.length; c++) {
+            if (!Arrays.equals(Arrays.copyOf(columns[c], size), Arrays.copyOf(that.columns[c], size))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hashCode(filename, endDate, encoding, columnNames, size);
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + Longs.hashCode(timestamps[i]);
+        }
+        for (double[] column : columns) {
+            for (int i = 0; i < size; i++) {
+                // the same bits Arrays.equals compares
+                result = 31 * result + Longs.hashCode(Double.doubleToLongBits(column[i]));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("filename", filename)
+                .add("endDate", endDate)
+                .add("encoding", encoding)
+                .add("columnNames", columnNames)
+                .add("size", size)
+                .toString();
+    }
+
+    // Batches small writes into a buffer, so encoding doesn't make a call on the output stream for every byte, and
+    // counts what was written.
+    private static class ChunkedOutput extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+        private int position;
+        private long count;
+
+        ChunkedOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void writeVarint(long value) throws IOException {
+            if (buffer.length - position < 10) {
+                flushBuffer();
+            }
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) throws IOException {
+            if (buffer.length - position < 8) {
+                flushBuffer();
+            }
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.length - position) {
+                flushBuffer();
+                if (len > buffer.length) {
+                    out.write(b, off, len);
+                    count += len;
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, position, len);
+            position += len;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            count += position;
+            position = 0;
+        }
+
+        // flushes the buffer, without flushing or closing the stream underneath, and returns the bytes written
+        long finish() throws IOException {
+            flushBuffer();
+            return count;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+/**
+ * Writes an archive to a zip file as the session goes, for sessions too long to keep every data file until the end.
+ * Each data file is compressed and appended to the zip as soon as it's added, so only one file is held in memory at
+ * a time, and the caller can let go of it. Closing the writer adds info.json and the zip's central directory, and
+ * the file is then an ordinary archive, ready to encrypt with {@link StudyUploadEncryptor#writeTo(Path, Path)}.
+ * <pre>
+ *     try (SpoolingArchiveWriter writer = Archive.Builder.forActivity(item)
+ *             .withAppVersionName(appVersion)
+ *             .withPhoneInfo(phoneInfo)
+ *             .spoolTo(zipFile)) {
+ *         writer.addDataFile(...);
+ *     }
+ * </pre>
+ * Next to the zip, a journal records the archive info and each data file once it's safely on disk. If the process
+ * dies before the writer is closed, {@link #recover(Path)} cuts the zip back to the last data file in the journal and
+ * finishes it, so the session can still be uploaded. The journal is deleted once the zip is finished.
+ * <p>
+ * Not thread safe.
+ */
+public class SpoolingArchiveWriter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolingArchiveWriter.class);
+
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private final Path zipFile;
+    private final FileChannel zipChannel;
+    private final OutputStream zipStream;
+    private final FileChannel journalChannel;
+    private final RawZipWriter writer;
+    private final ArchiveInfo archiveInfo;
+    private final CompressionPolicy defaultCompressionPolicy;
+    private final boolean fileDigests;
+    private final ArchiveMetrics metrics;
+    private final List<JournalEntry> entries = Lists.newArrayList();
+    // names of the data files in the zip, including those the builder had, which are added through this writer too
+    private final Set<String> fileNames = Sets.newHashSet();
+    // set if adding a file failed partway, after which the zip may have a partial entry on the end
+    private boolean failed;
+    private boolean closed;
+
+    private SpoolingArchiveWriter(Path zipFile, FileChannel zipChannel, FileChannel journalChannel,
+            ArchiveInfo archiveInfo, CompressionPolicy defaultCompressionPolicy, boolean fileDigests,
+            ArchiveMetrics metrics) {
+        this.zipFile = zipFile;
+        this.zipChannel = zipChannel;
+        this.zipStream = new BufferedOutputStream(Channels.newOutputStream(zipChannel),
+                StudyUploadEncryptor.FILE_BUFFER_SIZE);
+        this.journalChannel = journalChannel;
+        this.writer = new RawZipWriter(zipStream);
+        this.archiveInfo = archiveInfo;
+        this.defaultCompressionPolicy = defaultCompressionPolicy;
+        this.fileDigests = fileDigests;
+        this.metrics = metrics;
+    }
+
+    // called by Archive.Builder.spoolTo
+    static SpoolingArchiveWriter create(Path zipFile, ArchiveInfo archiveInfo,
+            CompressionPolicy defaultCompressionPolicy, boolean fileDigests, ArchiveMetrics metrics)
+            throws IOException {
+        Path journalFile = journalFileFor(zipFile);
+        if (Files.exists(journalFile)) {
+            throw new IOException(zipFile + " has an unfinished session, recover it first");
+        }
+
+        FileChannel journalChannel = FileChannel.open(journalFile, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE_NEW);
+        FileChannel zipChannel = null;
+        try {
+            zipChannel = FileChannel.open(zipFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            appendLine(journalChannel, RestUtils.GSON.toJson(new JournalHeader(archiveInfo)));
+        } catch (IOException | RuntimeException e) {
+            journalChannel.close();
+            if (zipChannel != null) {
+                zipChannel.close();
+            }
+            Files.delete(journalFile);
+            throw e;
+        }
+        return new SpoolingArchiveWriter(zipFile, zipChannel, journalChannel, archiveInfo, defaultCompressionPolicy,
+                fileDigests, metrics);
+    }
+
+    public Path getZipFile() {
+        return zipFile;
+    }
+
+    /**
+     * Compresses the data file and appends it to the zip, using the builder's compression policy. The file is on
+     * disk, and in the journal, when this returns.
+     *
+     * @throws IOException
+     *         problem reading the file, or writing the zip, after which the writer can't be used again, but what
+     *         was added before can still be recovered after closing it
+     * @throws IllegalArgumentException
+     *         if the zip already has a data file with the same name, or the file is named info.json
+     */
+    public void addDataFile(ArchiveFile file) throws IOException {
+        addDataFile(file, defaultCompressionPolicy);
+    }
+
+    /**
+     * Same as {@link #addDataFile(ArchiveFile)}, compressing the file according to the given policy.
+     */
+    public void addDataFile(ArchiveFile file, CompressionPolicy compressionPolicy) throws IOException {
+        checkNotNull(file);
+        checkNotNull(compressionPolicy);
+        checkState(!closed, "writer is closed");
+        checkState(!failed, "writer failed earlier, close it and recover the zip");
+        // checked before anything is written, so the writer can carry on
+        String filename = file.getFilename();
+        checkArgument(!fileNames.contains(filename), "archive already has a data file named %s", filename);
+        checkArgument(!Archive.ARCHIVE_INFO_FILE_NAME.equals(filename), "%s is written by the archive itself",
+                filename);
+
+        ByteSource source = file.getByteSource();
+        // nothing has been written if this fails, so the writer can carry on
+        CompressedEntry entry = CompressedEntry.compress(filename, source, compressionPolicy, fileDigests);
+
+        boolean succeeded = false;
+        try {
+            long offset = writer.getOffset();
+            writer.writeEntry(entry);
+            zipStream.flush();
+            zipChannel.force(false);
+
+            JournalEntry journalEntry = new JournalEntry(entry, file.getEndDate(), offset, writer.getOffset());
+            appendLine(journalChannel, RestUtils.GSON.toJson(journalEntry));
+            entries.add(journalEntry);
+            fileNames.add(filename);
+            succeeded = true;
+
+            if (metrics != ArchiveMetrics.NO_OP) {
+                metrics.entryWritten(entry.name, entry.size, entry.compressedSize, entry.compressNanos);
+                if (file instanceof JsonArchiveFile) {
+                    ((JsonArchiveFile) file).reportSerialized(source, metrics);
+                }
+            }
+        } finally {
+            entry.discard();
+            if (!succeeded) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * Adds info.json and finishes the zip, then deletes the journal. If adding a data file failed, the zip is left
+     * unfinished for {@link #recover(Path)} instead.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean finished = false;
+        try {
+            if (!failed) {
+                finish(writer, archiveInfo, entries);
+                zipStream.flush();
+                zipChannel.force(false);
+                finished = true;
+            }
+        } finally {
+            try {
+                journalChannel.close();
+            } finally {
+                writer.close();
+            }
+        }
+        if (finished) {
+            Files.delete(journalFileFor(zipFile));
+        }
+    }
+
+    /**
+     * @return whether the zip file was left unfinished, by a crash or a failed write, and needs
+     *         {@link #recover(Path)}
+     */
+    public static boolean needsRecovery(Path zipFile) {
+        return Files.exists(journalFileFor(zipFile));
+    }
+
+    /**
+     * Finishes a zip file whose writer was never closed. Anything after the last data file recorded in the journal
+     * is cut off, info.json is added listing the data files that made it, and the journal is deleted.
+     *
+     * @param zipFile
+     *         zip file given to {@link Archive.Builder#spoolTo(Path)}
+     * @return info.json of the recovered archive
+     * @throws IOException
+     *         problem with the files, including there being no journal
+     */
+    public static ArchiveInfo recover(Path zipFile) throws IOException {
+        Path journalFile = journalFileFor(zipFile);
+        JournalHeader header = null;
+        List<JournalEntry> entries = Lists.newArrayList();
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    if (header == null) {
+                        header = RestUtils.GSON.fromJson(line, JournalHeader.class);
+                    } else {
+                        entries.add(RestUtils.GSON.fromJson(line, JournalEntry.class));
+                    }
+                } catch (JsonParseException e) {
+                    // the process died partway through the last line
+                    LOG.warn("Ignoring the rest of " + journalFile + " after an incomplete line");
+                    break;
+                }
+            }
+        }
+        if (header == null || header.archiveInfo == null) {
+            throw new IOException(journalFile + " has no archive info");
+        }
+
+        long end = entries.isEmpty() ? 0 : entries.get(entries.size() - 1).end;
+        try (FileChannel zipChannel = FileChannel.open(zipFile, StandardOpenOption.WRITE)) {
+            if (zipChannel.size() < end) {
+                throw new IOException(zipFile + " is shorter than its journal");
+            }
+            zipChannel.truncate(end);
+            zipChannel.position(end);
+
+            OutputStream zipStream = new BufferedOutputStream(Channels.newOutputStream(zipChannel),
+                    StudyUploadEncryptor.FILE_BUFFER_SIZE);
+            RawZipWriter writer = new RawZipWriter(zipStream, end);
+            for (JournalEntry entry : entries) {
+                writer.addWrittenEntry(entry.filename, entry.method, entry.crc, entry.size, entry.compressedSize,
+                        entry.time, entry.offset);
+            }
+            ArchiveInfo recovered = finish(writer, header.archiveInfo, entries);
+            zipStream.flush();
+            zipChannel.force(false);
+
+            Files.delete(journalFile);
+            LOG.info("Recovered " + entries.size() + " data files in " + zipFile);
+            return recovered;
+        }
+    }
+
+    // writes info.json and the central directory
+    private static ArchiveInfo finish(RawZipWriter writer, ArchiveInfo archiveInfo, List<JournalEntry> entries)
+            throws IOException {
+        List<ArchiveInfo.FileInfo> fileInfos = Lists.newArrayListWithCapacity(entries.size());
+        for (JournalEntry entry : entries) {
+            fileInfos.add(new ArchiveInfo.FileInfo(entry.filename, entry.endDate, entry.sha256));
+        }
+        ArchiveInfo info = archiveInfo.withFiles(fileInfos);
+
+        byte[] infoJson = ArchiveInfoJsonWriter.toJson(info);
+        writer.writeEntry(CompressedEntry.compress(Archive.ARCHIVE_INFO_FILE_NAME, ByteSource.wrap(infoJson),
+                CompressionPolicy.DEFAULT));
+        writer.finish();
+        return info;
+    }
+
+    private static Path journalFileFor(Path zipFile) {
+        return zipFile.resolveSibling(zipFile.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    private static void appendLine(FileChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    // first line of the journal
+    private static class JournalHeader {
+        @SerializedName("archiveInfo")
+        final ArchiveInfo archiveInfo;
+
+        JournalHeader(ArchiveInfo archiveInfo) {
+            this.archiveInfo = archiveInfo;
+        }
+    }
+
+    // one line of the journal for each data file, with what the central directory needs to list it
+    private static class JournalEntry {
+        @SerializedName("filename")
+        final String filename;
+        @SerializedName("endDate")
+        final DateTime endDate;
+        @SerializedName("method")
+        final int method;
+        @SerializedName("crc")
+        final long crc;
+        @SerializedName("size")
+        final long size;
+        @SerializedName("compressedSize")
+        final long compressedSize;
+        @SerializedName("time")
+        final long time;
+        // hex, or null without file digests
+        @SerializedName("sha256")
+        final String sha256;
+        // where the entry's local header starts, and where the next one starts
+        @SerializedName("offset")
+        final long offset;
+        @SerializedName("end")
+        final long end;
+
+        JournalEntry(CompressedEntry entry, DateTime endDate, long offset, long end) {
+            this.filename = entry.name;
+            this.endDate = endDate;
+            this.method = entry.method;
+            this.crc = entry.crc;
+            this.size = entry.size;
+            this.compressedSize = entry.compressedSize;
+            this.time = entry.time;
+            this.sha256 = entry.sha256 != null ? entry.sha256.toString() : null;
+            this.offset = offset;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.sagebionetworks.bridge.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Byte source whose contents are produced by writing them out, such as an object serialized on the fly. Archives
+ * call {@link #copyTo(OutputStream)} to write these straight into the zip entry, so the contents never exist in
+ * memory as a whole.
+ * <p>
+ * {@link #openStream()} still works, but it has to write the whole contents into memory first, so callers that care
+ * about memory should prefer {@link #copyTo(OutputStream)}. {@link #size()} and {@link #readPrefix(byte[])} write the
+ * contents without keeping them.
+ */
+public abstract class StreamingByteSource extends ByteSource {
+    /**
+     * Writes the contents to the output stream, without closing it.
+     *
+     * @param output
+     *         stream to write to
+     * @return number of bytes written
+     * @throws IOException
+     *         problem producing or writing the contents
+     */
+    @Override
+    public abstract long copyTo(OutputStream output) throws IOException;
+
+    /**
+     * Counts the contents by writing them to a sink that keeps nothing, unless {@link #sizeIfKnown()} has the size.
+     */
+    @Override
+    public long size() throws IOException {
+        Optional<Long> size = sizeIfKnown();
+        if (size.isPresent()) {
+            return size.get();
+        }
+        CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+        copyTo(counter);
+        return counter.getCount();
+    }
+
+    /**
+     * Reads the start of the contents into the buffer, stopping the copy once the buffer is full, so only as much is
+     * produced as the buffer holds.
+     *
+     * @param buffer
+     *         buffer to fill
+     * @return number of bytes read, less than the buffer's length only if the contents are shorter
+     * @throws IOException
+     *         problem producing the contents
+     */
+    int readPrefix(byte[] buffer) throws IOException {
+        PrefixOutputStream prefix = new PrefixOutputStream(buffer);
+        try {
+            copyTo(prefix);
+        } catch (IOException | RuntimeException e) {
+            // the copy is stopped by throwing from the sink, which the source may have wrapped in its own exception
+            if (!prefix.isFull()) {
+                throw e;
+            }
+        }
+        return prefix.count;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copyTo(bytes);
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    // fills a buffer, then stops whatever is writing to it
+    private static final class PrefixOutputStream extends OutputStream {
+        private final byte[] buffer;
+        private int count;
+
+        PrefixOutputStream(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean isFull() {
+            return count == buffer.length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[count++] = (byte) b;
+            if (isFull()) {
+                throw new PrefixFullException();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int length = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, length);
+            count += length;
+            if (isFull()) {
+                throw new PrefixFullException();
+            }
+        }
+    }
+
+    private static final class PrefixFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PrefixFullException() {
+            super("prefix buffer is full", null);
+        }
+
+        // thrown for control flow, so the stack trace isn't worth filling in
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
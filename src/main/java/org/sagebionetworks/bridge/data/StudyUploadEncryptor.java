@@ -1,60 +1,175 @@
 package org.sagebionetworks.bridge.data;
 
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.Security;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.Provider;
+import java.security.SecureRandom;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.bouncycastle.cms.CMSAlgorithm;
 import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OutputEncryptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Encrypt data using a Study's public key under Bouncy Castle.
+ * <p>
+ * Instances are thread safe, and meant to be shared by every thread that encrypts for the same study. Each message
+ * gets its own content key and IV, whichever thread encrypts it. The {@code ...Async} methods run the same work on a
+ * caller's executor. They hold no long-held locks, only brief monitors such as the random number generator's, so they
+ * suit an executor that starts a virtual thread per task.
+ * <p>
+ * Bouncy Castle runs as a provider instance private to this library, and is never installed in
+ * {@link java.security.Security}. Provider names passed to the constructors are looked up the same way: "BC" means
+ * that instance, and any other name must be an installed provider.
  */
 public class StudyUploadEncryptor {
     private static final Logger LOG = LoggerFactory.getLogger(StudyUploadEncryptor.class);
 
-    private static final String JCE_PROVIDER = "BC"; // BouncyCastle
+    private static final String JCE_PROVIDER = CryptoProviders.BOUNCY_CASTLE_NAME;
 
-    private final Supplier<JceKeyTransRecipientInfoGenerator> recipientInfoGeneratorSupplier;
+    /**
+     * The JDK's built-in provider. Its AES runs on the CPU's AES instructions where the JVM supports them, which is
+     * several times faster than Bouncy Castle's pure-Java AES.
+     */
+    public static final String PLATFORM_CONTENT_CIPHER_PROVIDER = "SunJCE";
 
-    static {
-        // Dynamically register Cryptographic Service Provider
-        Security.insertProviderAt(new BouncyCastleProvider(), 1);
-    }
+    /**
+     * Size of the read and write buffers used by {@link #writeTo(Path, Path)}.
+     */
+    public static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+    // one per recipient certificate, or null if any of them couldn't be created
+    private final Supplier<List<JceKeyTransRecipientInfoGenerator>> recipientInfoGeneratorSupplier;
+    private final Provider contentCipherProvider;
+
+    // The CMS generator and content encryptor builder are reused from message to message, since setting them up and
+    // seeding their SecureRandom costs more than encrypting a small archive. The builder still generates a fresh
+    // content key and IV for every message. Idle states are pooled in a lock-free queue rather than kept per thread,
+    // so callers on short-lived or virtual threads reuse them too, and the pool only grows to the number of messages
+    // that were ever being set up at once.
+    private final Queue<EncryptorState> idleStates = new ConcurrentLinkedQueue<>();
 
     public StudyUploadEncryptor(final X509Certificate publicKey) {
-        this.recipientInfoGeneratorSupplier = Suppliers.memoize(new Supplier<JceKeyTransRecipientInfoGenerator>() {
-            @Override public JceKeyTransRecipientInfoGenerator get() {
-                try {
-                    return new JceKeyTransRecipientInfoGenerator(publicKey).setProvider(JCE_PROVIDER);
-                } catch (CertificateEncodingException e) {
-                    LOG.error("Unable to create recipient archiveInfo generator from public key", e);
-                }
-                return null;
-            }
-        });
+        this(ImmutableList.of(publicKey), JCE_PROVIDER);
+    }
+
+    /**
+     * @param publicKey
+     *         study's certificate
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES content cipher, such as
+     *         {@link #PLATFORM_CONTENT_CIPHER_PROVIDER}. Bouncy Castle still builds the CMS structure and wraps the
+     *         content key either way, so the output is the same format.
+     */
+    public StudyUploadEncryptor(final X509Certificate publicKey, String contentCipherProvider) {
+        this(ImmutableList.of(publicKey), contentCipherProvider);
+    }
+
+    /**
+     * Same as {@link #StudyUploadEncryptor(X509Certificate, String)}, with a provider instance, which doesn't need
+     * to be installed in {@link java.security.Security}.
+     *
+     * @param publicKey
+     *         study's certificate
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES content cipher
+     */
+    public StudyUploadEncryptor(final X509Certificate publicKey, Provider contentCipherProvider) {
+        this(ImmutableList.of(publicKey), contentCipherProvider);
+    }
+
+    /**
+     * Encrypts for several recipients at once, such as two studies, or a study plus an escrow key. The content is
+     * encrypted once under a single content key, and only that key is wrapped separately for each certificate, so
+     * adding recipients doesn't add to the cost of encrypting the content.
+     *
+     * @param publicKeys
+     *         certificates of every recipient, any of whose private keys can decrypt the output
+     */
+    public StudyUploadEncryptor(List<X509Certificate> publicKeys) {
+        this(publicKeys, JCE_PROVIDER);
+    }
+
+    /**
+     * Same as {@link #StudyUploadEncryptor(List)}, with the content cipher on the given JCA provider.
+     *
+     * @param publicKeys
+     *         certificates of every recipient
+     * @param contentCipherProvider
+     *         name of the JCA provider that runs the AES content cipher
+     */
+    public StudyUploadEncryptor(List<X509Certificate> publicKeys, String contentCipherProvider) {
+        this(publicKeys, CryptoProviders.forName(contentCipherProvider));
+    }
+
+    /**
+     * Same as {@link #StudyUploadEncryptor(List, String)}, with a provider instance, which doesn't need to be
+     * installed in {@link java.security.Security}.
+     *
+     * @param publicKeys
+     *         certificates of every recipient
+     * @param contentCipherProvider
+     *         JCA provider that runs the AES content cipher
+     */
+    public StudyUploadEncryptor(List<X509Certificate> publicKeys, Provider contentCipherProvider) {
+        checkArgument(!publicKeys.isEmpty(), "at least one recipient certificate is required");
+        checkNotNull(contentCipherProvider);
+
+        final List<X509Certificate> recipients = ImmutableList.copyOf(publicKeys);
+        this.contentCipherProvider = contentCipherProvider;
+        this.recipientInfoGeneratorSupplier = Suppliers.memoize(
+                new Supplier<List<JceKeyTransRecipientInfoGenerator>>() {
+                    @Override public List<JceKeyTransRecipientInfoGenerator> get() {
+                        List<JceKeyTransRecipientInfoGenerator> generators = Lists.newArrayList();
+                        for (X509Certificate publicKey : recipients) {
+                            try {
+                                generators.add(new JceKeyTransRecipientInfoGenerator(publicKey)
+                                        .setProvider(CryptoProviders.bouncyCastle()));
+                            } catch (CertificateEncodingException e) {
+                                LOG.error("Unable to create recipient archiveInfo generator from public key", e);
+                                return null;
+                            }
+                        }
+                        return generators;
+                    }
+                });
     }
 
     /**
@@ -67,19 +182,226 @@ public class StudyUploadEncryptor {
      *         problem with stream
      */
     public OutputStream encrypt(OutputStream stream) throws CMSException, IOException {
-        JceKeyTransRecipientInfoGenerator recipientInfoGenerator = recipientInfoGeneratorSupplier
-                .get();
-        checkState(recipientInfoGenerator != null, "RecipientInfoGenerator was not initialized successfully");
+        return encrypt(stream, ArchiveMetrics.NO_OP);
+    }
+
+    /**
+     * Same as {@link #encrypt(OutputStream)}, reporting how long the CMS header took to set up, and how long
+     * encryption took once the returned stream is closed.
+     *
+     * @param stream
+     *         plaintext stream
+     * @param metrics
+     *         listener for the timings
+     * @return encrypted stream
+     * @throws CMSException
+     *         problem with encryption
+     * @throws IOException
+     *         problem with stream
+     */
+    public OutputStream encrypt(OutputStream stream, ArchiveMetrics metrics) throws CMSException, IOException {
+        checkNotNull(metrics);
+        List<JceKeyTransRecipientInfoGenerator> recipientInfoGenerators = recipientInfoGeneratorSupplier.get();
+        checkState(recipientInfoGenerators != null, "RecipientInfoGenerator was not initialized successfully");
+
+        long start = metrics != ArchiveMetrics.NO_OP ? System.nanoTime() : 0;
+        EncryptorState state = idleStates.poll();
+        if (state == null) {
+            state = new EncryptorState(recipientInfoGenerators, contentCipherProvider);
+        }
+        OutputStream encryptedStream;
+        try {
+            // builds a new content key and IV
+            OutputEncryptor encryptor = state.contentEncryptorBuilder.build();
+            // the opened stream keeps its own copy of everything it needs from the generator
+            encryptedStream = state.generator.open(stream, encryptor);
+        } finally {
+            idleStates.offer(state);
+        }
+        if (metrics == ArchiveMetrics.NO_OP) {
+            return encryptedStream;
+        }
 
-        CMSEnvelopedDataStreamGenerator gen = new CMSEnvelopedDataStreamGenerator();
-        gen.addRecipientInfoGenerator(recipientInfoGenerator);
+        metrics.cmsSetUp(System.nanoTime() - start);
+        return EncryptionMeteringOutputStream.wrap(encryptedStream, metrics);
+    }
 
-        // Generate encrypted input stream in AES-256-CBC format, output is DER, not S/MIME or PEM
-        OutputEncryptor encryptor =
-                new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES256_CBC).setProvider(JCE_PROVIDER)
-                        .build();
+    private static class EncryptorState {
+        final CMSEnvelopedDataStreamGenerator generator;
+        final JceCMSContentEncryptorBuilder contentEncryptorBuilder;
 
-        return gen.open(stream, encryptor);
+        EncryptorState(List<JceKeyTransRecipientInfoGenerator> recipientInfoGenerators,
+                Provider contentCipherProvider) {
+            generator = new CMSEnvelopedDataStreamGenerator();
+            for (JceKeyTransRecipientInfoGenerator recipientInfoGenerator : recipientInfoGenerators) {
+                generator.addRecipientInfoGenerator(recipientInfoGenerator);
+            }
+
+            // Generate encrypted input stream in AES-256-CBC format, output is DER, not S/MIME or PEM
+            contentEncryptorBuilder = new JceCMSContentEncryptorBuilder(CMSAlgorithm.AES256_CBC)
+                    .setProvider(contentCipherProvider)
+                    .setSecureRandom(new SecureRandom());
+        }
+    }
+
+    /**
+     * Encrypts the input file to the output file, replacing it if it exists. The file is read through a
+     * {@link FileChannel} in {@link #FILE_BUFFER_SIZE} blocks and the output is written through a buffer of the same
+     * size, so large files take few system calls. Batch callers should keep one encryptor and call this for every file,
+     * so the certificate is parsed only once.
+     *
+     * @param inputFile
+     *         plaintext file
+     * @param outputFile
+     *         file to write the encrypted data to
+     * @throws IOException
+     *         problem with io
+     * @throws CMSException
+     *         problem with encryption
+     */
+    public void writeTo(Path inputFile, Path outputFile) throws IOException, CMSException {
+        writeFile(inputFile, outputFile, false);
+    }
+
+    /**
+     * Same as {@link #writeTo(Path, Path)}, also computing the SHA-256 of the input file, and the MD5 and SHA-256 of
+     * the encrypted output, while the file is encrypted, so neither file has to be read again to upload it.
+     *
+     * @param inputFile
+     *         plaintext file
+     * @param outputFile
+     *         file to write the encrypted data to
+     * @return digests of the output, with the input file's SHA-256 under its file name
+     * @throws IOException
+     *         problem with io
+     * @throws CMSException
+     *         problem with encryption
+     */
+    public UploadDigests writeWithDigestsTo(Path inputFile, Path outputFile) throws IOException, CMSException {
+        return writeFile(inputFile, outputFile, true);
+    }
+
+    /**
+     * Same as {@link #writeTo(Path, Path)}, run on the given executor. It holds no long-held locks, so it can run on
+     * virtual threads, one per file.
+     *
+     * @param inputFile
+     *         plaintext file
+     * @param outputFile
+     *         file to write the encrypted data to
+     * @param executor
+     *         executor to encrypt the file on
+     * @return future that completes when the file is written, or fails with the {@link IOException} or
+     *         {@link CMSException} that {@link #writeTo(Path, Path)} would have thrown
+     */
+    public ListenableFuture<Void> writeToAsync(final Path inputFile, final Path outputFile, Executor executor) {
+        checkNotNull(inputFile);
+        checkNotNull(outputFile);
+        return AsyncTasks.submit(executor, new Callable<Void>() {
+            @Override public Void call() throws IOException, CMSException {
+                writeFile(inputFile, outputFile, false);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #writeWithDigestsTo(Path, Path)}, run on the given executor.
+     *
+     * @param inputFile
+     *         plaintext file
+     * @param outputFile
+     *         file to write the encrypted data to
+     * @param executor
+     *         executor to encrypt the file on
+     * @return future for the digests of the output, with the input file's SHA-256 under its file name
+     * @see #writeToAsync(Path, Path, Executor)
+     */
+    public ListenableFuture<UploadDigests> writeWithDigestsToAsync(final Path inputFile, final Path outputFile,
+            Executor executor) {
+        checkNotNull(inputFile);
+        checkNotNull(outputFile);
+        return AsyncTasks.submit(executor, new Callable<UploadDigests>() {
+            @Override public UploadDigests call() throws IOException, CMSException {
+                return writeFile(inputFile, outputFile, true);
+            }
+        });
+    }
+
+    /**
+     * Encrypts the whole source to the stream on the given executor. The stream gets the complete CMS message, and is
+     * left open.
+     *
+     * @param plaintext
+     *         data to encrypt
+     * @param stream
+     *         stream to write the encrypted data to
+     * @param executor
+     *         executor to encrypt on
+     * @return future for the number of plaintext bytes encrypted
+     */
+    public ListenableFuture<Long> encryptAsync(final ByteSource plaintext, final OutputStream stream,
+            Executor executor) {
+        checkNotNull(plaintext);
+        checkNotNull(stream);
+        return AsyncTasks.submit(executor, new Callable<Long>() {
+            @Override public Long call() throws IOException, CMSException {
+                // closing the encrypted stream writes the CMS trailer, but doesn't close the stream underneath
+                try (OutputStream os = encrypt(stream)) {
+                    return plaintext.copyTo(os);
+                }
+            }
+        });
+    }
+
+    // returns the digests if asked for, or null otherwise
+    private UploadDigests writeFile(Path inputFile, Path outputFile, boolean computeDigests)
+            throws IOException, CMSException {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+        try (FileChannel inputChannel = FileChannel.open(inputFile, StandardOpenOption.READ);
+                FileChannel outputChannel = FileChannel.open(outputFile, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                OutputStream bos = new BufferedOutputStream(Channels.newOutputStream(outputChannel),
+                        FILE_BUFFER_SIZE)) {
+            UploadDigests.Recorder recorder = computeDigests ? new UploadDigests.Recorder(bos) : null;
+            HashingOutputStream plaintextHash = null;
+            // closing the encrypted stream writes the CMS trailer, but doesn't flush or close bos
+            try (OutputStream os = encrypt(recorder != null ? recorder.stream() : bos)) {
+                OutputStream plaintextOutput = os;
+                if (computeDigests) {
+                    plaintextHash = new HashingOutputStream(Hashing.sha256(), os);
+                    plaintextOutput = plaintextHash;
+                }
+                while (inputChannel.read(buffer) >= 0) {
+                    plaintextOutput.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            if (!computeDigests) {
+                return null;
+            }
+            return recorder.finish(ImmutableMap.of(inputFile.getFileName().toString(), plaintextHash.hash()));
+        }
+    }
+
+    /**
+     * Util method to encrypt input file to given output file path using an already parsed certificate.
+     *
+     * @param cert
+     *         study's certificate
+     * @param inputFile
+     *         plaintext file
+     * @param outputFile
+     *         file to write the encrypted data to
+     * @throws IOException
+     *         problem with io
+     * @throws CMSException
+     *         problem with encryption
+     * @see #writeTo(Path, Path)
+     */
+    public static void writeTo(X509Certificate cert, Path inputFile, Path outputFile)
+            throws IOException, CMSException {
+        new StudyUploadEncryptor(cert).writeTo(inputFile, outputFile);
     }
 
     /**
@@ -103,21 +425,8 @@ public class StudyUploadEncryptor {
         InputStream in = new ByteArrayInputStream(certStr.getBytes(StandardCharsets.UTF_8));
         CertificateFactory factory = CertificateFactory.getInstance("X.509");
         X509Certificate cert = (X509Certificate) factory.generateCertificate(in);
-
-        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
         in.close();
 
-        byte[] buffer = new byte[1024];
-        File inputFile = new File(inputFilePath);
-        try (FileOutputStream fos = new FileOutputStream(outputFilePath);
-                OutputStream os = encryptor.encrypt(fos);
-                FileInputStream fis = new FileInputStream(inputFile)) {
-
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
-            }
-            os.flush();
-        }
+        writeTo(cert, Paths.get(inputFilePath), Paths.get(outputFilePath));
     }
 }
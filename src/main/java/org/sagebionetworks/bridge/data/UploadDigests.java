@@ -0,0 +1,114 @@
+package org.sagebionetworks.bridge.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Digests computed while an upload was written, so the uploader doesn't have to read it back. The content digests
+ * are of the bytes as written, that is the ciphertext for encrypted uploads, and the file digests are of each
+ * plaintext file.
+ */
+public final class UploadDigests {
+    private final ImmutableMap<String, HashCode> fileSha256s;
+    private final HashCode contentMd5;
+    private final HashCode contentSha256;
+    private final long contentLength;
+
+    UploadDigests(Map<String, HashCode> fileSha256s, HashCode contentMd5, HashCode contentSha256,
+            long contentLength) {
+        this.fileSha256s = ImmutableMap.copyOf(fileSha256s);
+        this.contentMd5 = checkNotNull(contentMd5);
+        this.contentSha256 = checkNotNull(contentSha256);
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * @return SHA-256 of each plaintext file, by file name, in the order they were written
+     */
+    public Map<String, HashCode> getFileSha256s() {
+        return fileSha256s;
+    }
+
+    public HashCode getContentMd5() {
+        return contentMd5;
+    }
+
+    /**
+     * @return MD5 of the content in base 64, as the Content-MD5 header expects it
+     */
+    public String getContentMd5Base64() {
+        return BaseEncoding.base64().encode(contentMd5.asBytes());
+    }
+
+    public HashCode getContentSha256() {
+        return contentSha256;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        UploadDigests that = (UploadDigests) o;
+        return contentLength == that.contentLength &&
+                Objects.equal(fileSha256s, that.fileSha256s) &&
+                Objects.equal(contentMd5, that.contentMd5) &&
+                Objects.equal(contentSha256, that.contentSha256);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(fileSha256s, contentMd5, contentSha256, contentLength);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("fileSha256s", fileSha256s)
+                .add("contentMd5", contentMd5)
+                .add("contentSha256", contentSha256)
+                .add("contentLength", contentLength)
+                .toString();
+    }
+
+    /**
+     * Tees everything written to a stream through MD5 and SHA-256, and counts it. Closing the recorder's stream
+     * closes the underlying stream.
+     */
+    static class Recorder {
+        private final HashingOutputStream md5Output;
+        private final HashingOutputStream sha256Output;
+        private final CountingOutputStream countingOutput;
+
+        Recorder(OutputStream os) {
+            sha256Output = new HashingOutputStream(Hashing.sha256(), checkNotNull(os));
+            md5Output = new HashingOutputStream(Hashing.md5(), sha256Output);
+            countingOutput = new CountingOutputStream(md5Output);
+        }
+
+        OutputStream stream() {
+            return countingOutput;
+        }
+
+        /**
+         * Call once everything has been written to {@link #stream()}.
+         */
+        UploadDigests finish(Map<String, HashCode> fileSha256s) {
+            return new UploadDigests(fileSha256s, md5Output.hash(), sha256Output.hash(), countingOutput.getCount());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+public class ArchiveInfoJsonWriterTest {
+    private static final DateTime END_DATE_UTC = new DateTime(2017, 3, 1, 10, 0, 0, 123, DateTimeZone.UTC);
+    private static final DateTime END_DATE_PACIFIC = new DateTime(2017, 3, 1, 2, 30, 15, 0,
+            DateTimeZone.forOffsetHours(-8));
+    private static final String SHA256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Test
+    public void golden() throws IOException {
+        ArchiveInfo info = new ArchiveInfo();
+        info.appVersion = "version 1.0.2, build 7";
+        // quotes, HTML characters, control characters and non-ASCII all need escaping or encoding
+        info.phoneInfo = "iPhone \"9\" <beta> & 'co' = caf\u00e9 \ud83d\ude00\u0001\t\n\u2028";
+        info.item = "Tapping Activity";
+        info.schemaRevision = 3;
+        info.files = ImmutableList.of(
+                new ArchiveInfo.FileInfo("tapping_left.json", END_DATE_UTC),
+                new ArchiveInfo.FileInfo("tapping_right.json", END_DATE_UTC, SHA256),
+                new ArchiveInfo.FileInfo("accel.bin", END_DATE_PACIFIC),
+                new ArchiveInfo.FileInfo("no-date.csv", null));
+
+        byte[] golden = Files.readAllBytes(Paths.get("./src/test/java/resources/json/info.json"));
+        assertEquals(ArchiveInfoJsonWriter.toJson(info), golden);
+        assertEquals(new String(golden, StandardCharsets.UTF_8), RestUtils.GSON.toJson(info));
+    }
+
+    @Test
+    public void survey() {
+        ArchiveInfo info = new ArchiveInfo();
+        info.appVersion = "version 1.0";
+        info.phoneInfo = "test-phone-info";
+        info.surveyGuid = "test-survey-guid";
+        info.surveyCreatedOn = END_DATE_PACIFIC;
+        info.files = ImmutableList.of(new ArchiveInfo.FileInfo("answers.json", END_DATE_PACIFIC));
+        assertMatchesGson(info);
+    }
+
+    @Test
+    public void emptyAndNull() {
+        ArchiveInfo info = new ArchiveInfo();
+        assertMatchesGson(info);
+
+        info.files = ImmutableList.of();
+        assertMatchesGson(info);
+
+        List<ArchiveInfo.FileInfo> files = Lists.newArrayList();
+        files.add(null);
+        info.files = files;
+        assertMatchesGson(info);
+    }
+
+    @Test
+    public void manyFiles() {
+        ArchiveInfo info = new ArchiveInfo();
+        info.appVersion = "version 1.0";
+        info.phoneInfo = "test-phone-info";
+        info.item = "test-item";
+        List<ArchiveInfo.FileInfo> files = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            // some timestamps repeat, so some come from the writer's cache
+            files.add(new ArchiveInfo.FileInfo("file-" + i, END_DATE_UTC.plusSeconds(i % 10),
+                    i % 2 == 0 ? SHA256 : null));
+        }
+        info.files = files;
+        assertMatchesGson(info);
+    }
+
+    @Test
+    public void jsonSize() {
+        ArchiveInfo.FileInfo fileInfo = new ArchiveInfo.FileInfo("caf\u00e9.json", END_DATE_PACIFIC, SHA256);
+        assertEquals(ArchiveInfoJsonWriter.jsonSize(fileInfo),
+                RestUtils.GSON.toJson(fileInfo).getBytes(StandardCharsets.UTF_8).length);
+
+        ArchiveInfo info = new ArchiveInfo();
+        info.appVersion = "version 1.0";
+        info.files = ImmutableList.of(fileInfo);
+        assertEquals(ArchiveInfoJsonWriter.jsonSize(info),
+                RestUtils.GSON.toJson(info).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void archiveInfoEntry() throws IOException {
+        Archive archive = Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info")
+                .withFileDigests()
+                .addDataFile(new ByteSourceArchiveFile("test", END_DATE_UTC,
+                        ByteSource.wrap("test".getBytes(StandardCharsets.UTF_8))))
+                .build();
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        archive.writeTo(zipOutput);
+
+        Map<String, byte[]> entries = ArchiveTest.unzip(zipOutput.toByteArray());
+        String infoJson = new String(entries.get("info.json"), StandardCharsets.UTF_8);
+        ArchiveInfo info = RestUtils.GSON.fromJson(infoJson, ArchiveInfo.class);
+        assertEquals(info.getFiles().get(0).getSha256(), SHA256);
+        assertEquals(infoJson, RestUtils.GSON.toJson(info));
+    }
+
+    private static void assertMatchesGson(ArchiveInfo info) {
+        assertEquals(new String(ArchiveInfoJsonWriter.toJson(info), StandardCharsets.UTF_8),
+                RestUtils.GSON.toJson(info));
+    }
+}
@@ -6,6 +6,6 @@ import org.testng.annotations.Test;
 public class ArchiveInfoTest {
     @Test
     public void equalsVerifier() {
-        EqualsVerifier.forClass(Archive.class).allFieldsShouldBeUsed().verify();
+        EqualsVerifier.forClass(Archive.class).allFieldsShouldBeUsedExcept("metrics").verify();
     }
 }
@@ -0,0 +1,161 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.internal.junit.ArrayAsserts.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+
+public class ArchivePipelineTest {
+    private static final int ARCHIVE_COUNT = 20;
+    private static final int FAILING_ARCHIVE = 7;
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private X509Certificate cert;
+    private BcCmsEncryptor decryptor;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void before() {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        decryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        final Map<Integer, ByteArrayOutputStream> outputs = new ConcurrentHashMap<>();
+        final Set<Integer> succeeded = Sets.newConcurrentHashSet();
+        final Map<Integer, Exception> failed = new ConcurrentHashMap<>();
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+
+        ArchivePipeline.Sink<Integer> sink = new ArchivePipeline.Sink<Integer>() {
+            @Override public OutputStream open(Integer key) {
+                int nowOpen = open.incrementAndGet();
+                while (true) {
+                    int max = maxOpen.get();
+                    if (nowOpen <= max || maxOpen.compareAndSet(max, nowOpen)) {
+                        break;
+                    }
+                }
+                ByteArrayOutputStream output = new ByteArrayOutputStream() {
+                    @Override public void close() {
+                        open.decrementAndGet();
+                    }
+                };
+                outputs.put(key, output);
+                return output;
+            }
+
+            @Override public void onSuccess(Integer key) {
+                succeeded.add(key);
+            }
+
+            @Override public void onFailure(Integer key, Exception e) {
+                failed.put(key, e);
+            }
+        };
+
+        ArchivePipeline<Integer> pipeline = new ArchivePipeline<>(executor, MAX_IN_FLIGHT,
+                new StudyUploadEncryptor(cert), sink);
+        for (int i = 0; i < ARCHIVE_COUNT; i++) {
+            pipeline.submit(i, buildArchive(i));
+        }
+        pipeline.awaitCompletion();
+
+        // the failing archive is isolated, every other archive is delivered
+        assertEquals(ARCHIVE_COUNT - 1, succeeded.size());
+        assertEquals(1, failed.size());
+        assertTrue(failed.get(FAILING_ARCHIVE) instanceof IOException);
+
+        assertTrue(maxOpen.get() <= MAX_IN_FLIGHT, "at most " + MAX_IN_FLIGHT + " archives in flight");
+        assertEquals(0, open.get());
+
+        for (int key : succeeded) {
+            byte[] zipBytes = decryptor.decrypt(outputs.get(key).toByteArray());
+            Map<String, byte[]> entries = ArchiveTest.unzip(zipBytes);
+            assertArrayEquals(new byte[]{(byte) key}, entries.get("file"));
+        }
+    }
+
+    @Test
+    public void testSinkOpenFailureIsIsolated() throws Exception {
+        final Set<Integer> succeeded = Sets.newConcurrentHashSet();
+        final Set<Integer> failed = Sets.newConcurrentHashSet();
+
+        ArchivePipeline<Integer> pipeline = new ArchivePipeline<>(executor, MAX_IN_FLIGHT,
+                new StudyUploadEncryptor(cert), new ArchivePipeline.Sink<Integer>() {
+                    @Override public OutputStream open(Integer key) throws IOException {
+                        if (key == 0) {
+                            throw new IOException("can't open output");
+                        }
+                        return new ByteArrayOutputStream();
+                    }
+
+                    @Override public void onSuccess(Integer key) {
+                        succeeded.add(key);
+                    }
+
+                    @Override public void onFailure(Integer key, Exception e) {
+                        failed.add(key);
+                    }
+                });
+        pipeline.submit(0, buildArchive(0));
+        pipeline.submit(1, buildArchive(1));
+        pipeline.awaitCompletion();
+
+        assertEquals(Sets.newHashSet(1), succeeded);
+        assertEquals(Sets.newHashSet(0), failed);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidMaxInFlight() {
+        new ArchivePipeline<>(executor, 0, new StudyUploadEncryptor(cert), null);
+    }
+
+    private static Archive buildArchive(int key) {
+        ByteSource source = ByteSource.wrap(new byte[]{(byte) key});
+        if (key == FAILING_ARCHIVE) {
+            source = new ByteSource() {
+                @Override public InputStream openStream() throws IOException {
+                    throw new IOException("unreadable data file");
+                }
+            };
+        }
+        return Archive.Builder.forActivity("pipeline-test")
+                .withAppVersionName("version 1.0, build 1")
+                .withPhoneInfo("phone")
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), source))
+                .build();
+    }
+}
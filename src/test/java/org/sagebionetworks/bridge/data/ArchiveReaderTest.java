@@ -0,0 +1,279 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import org.bouncycastle.cms.CMSException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+import org.sagebionetworks.bridge.crypto.PemUtils;
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+public class ArchiveReaderTest {
+    private static final String APP_VERSION_NAME = "version 1.0, build 9";
+    private static final String TEST_ITEM_NAME = "test-item";
+    private static final String TEST_PHONE_INFO = "test-phone-info";
+    private static final DateTime END_DATE_1 = new DateTime(2017, 3, 1, 10, 0, DateTimeZone.UTC);
+    private static final DateTime END_DATE_2 = new DateTime(2017, 3, 1, 11, 0, DateTimeZone.UTC);
+
+    private KeyPair keyPair;
+    private X509Certificate cert;
+
+    @BeforeClass
+    public void setupKeys() {
+        keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+    }
+
+    @Test
+    public void readEncryptedArchive() throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        buildTestArchive().writeEncryptedTo(encrypted, new StudyUploadEncryptor(cert));
+
+        try (ArchiveReader reader = ArchiveReader.openEncrypted(new ByteArrayInputStream(encrypted.toByteArray()),
+                cert, keyPair.getPrivate())) {
+            ArchiveFile file1 = reader.nextFile();
+            assertEquals(file1.getFilename(), "file1.json");
+            assertEquals(file1.getByteSource().asCharSource(StandardCharsets.UTF_8).read(), "{\"key\":\"value\"}");
+            // info.json comes last, so timestamps aren't known yet
+            assertNull(file1.getEndDate());
+
+            ArchiveFile file2 = reader.nextFile();
+            assertEquals(file2.getFilename(), "file2.txt");
+            assertEquals(file2.getByteSource().read(), "hello".getBytes(StandardCharsets.UTF_8));
+
+            assertNull(reader.nextFile());
+
+            ArchiveInfo info = reader.getArchiveInfo();
+            assertEquals(info.getItem(), TEST_ITEM_NAME);
+            assertEquals(info.getAppVersion(), APP_VERSION_NAME);
+            assertEquals(info.getPhoneInfo(), TEST_PHONE_INFO);
+            assertEquals(info.getFiles().size(), 2);
+            assertEquals(info.getFiles().get(0).getFilename(), "file1.json");
+            assertEquals(info.getFiles().get(0).getTimestamp().getMillis(), END_DATE_1.getMillis());
+            assertEquals(info.getFiles().get(1).getTimestamp().getMillis(), END_DATE_2.getMillis());
+
+            // files read before info.json know their end dates once it has been read
+            assertEquals(file1.getEndDate().getMillis(), END_DATE_1.getMillis());
+            assertEquals(file2.getEndDate().getMillis(), END_DATE_2.getMillis());
+        }
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void archiveInfoFilesAreImmutable() throws Exception {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        buildTestArchive().writeTo(zipBytes);
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            reader.getArchiveInfo().getFiles().clear();
+        }
+    }
+
+    @Test
+    public void infoFirstGivesEndDates() throws Exception {
+        ArchiveInfo info = new ArchiveInfo();
+        info.item = TEST_ITEM_NAME;
+        info.appVersion = APP_VERSION_NAME;
+        info.phoneInfo = TEST_PHONE_INFO;
+        info.files = Arrays.asList(new ArchiveInfo.FileInfo("data.csv", END_DATE_1));
+
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+            zos.putNextEntry(new ZipEntry("info.json"));
+            zos.write(RestUtils.GSON.toJson(info).getBytes(StandardCharsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("data.csv"));
+            zos.write("a,b\n1,2\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            ArchiveFile data = reader.nextFile();
+            assertEquals(data.getFilename(), "data.csv");
+            assertEquals(data.getEndDate().getMillis(), END_DATE_1.getMillis());
+            assertEquals(reader.getArchiveInfo(), info);
+            assertNull(reader.nextFile());
+        }
+    }
+
+    @Test
+    public void getArchiveInfoSkipsAhead() throws Exception {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        buildTestArchive().writeTo(zipBytes);
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            assertEquals(reader.getArchiveInfo().getFiles().size(), 2);
+            assertNull(reader.nextFile());
+        }
+    }
+
+    @Test
+    public void skipsUnreadEntries() throws Exception {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        buildTestArchive().writeTo(zipBytes);
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            ArchiveFile file1 = reader.nextFile();
+            InputStream staleStream = file1.getByteSource().openStream();
+            ArchiveFile file2 = reader.nextFile();
+            assertEquals(file2.getFilename(), "file2.txt");
+
+            // the first file's stream must not read the second file's data
+            try {
+                staleStream.read();
+                fail("expected exception");
+            } catch (IOException ex) {
+                // expected
+            }
+            try {
+                file1.getByteSource().openStream();
+                fail("expected exception");
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void byteSourceCanOnlyBeReadOnce() throws Exception {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        buildTestArchive().writeTo(zipBytes);
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            ByteSource source = reader.nextFile().getByteSource();
+            source.read();
+            source.read();
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void missingArchiveInfo() throws Exception {
+        ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+            zos.putNextEntry(new ZipEntry("data.csv"));
+            zos.write(1);
+        }
+
+        try (ArchiveReader reader = new ArchiveReader(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+            reader.getArchiveInfo();
+        }
+    }
+
+    @Test(expectedExceptions = CMSException.class)
+    public void wrongCertificate() throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        buildTestArchive().writeEncryptedTo(encrypted, new StudyUploadEncryptor(cert));
+
+        // recipients are told apart by issuer and serial number, so the other cert comes from a different issuer
+        X509Certificate otherCert = PemUtils.loadCertificateFromPem(new String(Files.readAllBytes(Paths.get(
+                "./src/test/java/resources/cms/rsacert.pem")), StandardCharsets.UTF_8));
+        PrivateKey otherPrivateKey = PemUtils.loadPrivateKeyFromPem(new String(Files.readAllBytes(Paths.get(
+                "./src/test/java/resources/cms/rsaprivkey.pem")), StandardCharsets.UTF_8));
+        ArchiveReader.openEncrypted(new ByteArrayInputStream(encrypted.toByteArray()), otherCert, otherPrivateKey);
+    }
+
+    @Test
+    public void largeArchiveInBoundedMemory() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("per-thread allocation counters are not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        long threadId = Thread.currentThread().getId();
+
+        final long size = 128L * 1024 * 1024;
+        final Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("large-file", DateTime.now(),
+                        ArchiveTest.syntheticByteSource(size)))
+                .build();
+
+        // the archive is written on another thread, so only the reader's allocations are counted
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        PipedInputStream pipeIn = new PipedInputStream(pipeOut, 64 * 1024);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> writer = executor.submit(new Callable<Void>() {
+                @Override public Void call() throws IOException {
+                    archive.writeTo(pipeOut);
+                    return null;
+                }
+            });
+
+            long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+            long read = 0;
+            try (ArchiveReader reader = new ArchiveReader(pipeIn)) {
+                ArchiveFile file = reader.nextFile();
+                byte[] buffer = new byte[8 * 1024];
+                try (InputStream is = file.getByteSource().openStream()) {
+                    int length;
+                    while ((length = is.read(buffer)) != -1) {
+                        read += length;
+                    }
+                }
+                assertEquals(reader.getArchiveInfo().getFiles().size(), 1);
+            }
+            long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            writer.get();
+
+            assertEquals(read, size);
+            assertTrue(allocated < 4 * 1024 * 1024, "allocated " + allocated + " bytes");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeEarly() throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        buildTestArchive().writeEncryptedTo(encrypted, new StudyUploadEncryptor(cert));
+
+        ArchiveReader reader = ArchiveReader.openEncrypted(new ByteArrayInputStream(encrypted.toByteArray()), cert,
+                keyPair.getPrivate());
+        assertEquals(reader.nextFile().getFilename(), "file1.json");
+        reader.close();
+        assertNull(reader.nextFile());
+    }
+
+    private static Archive buildTestArchive() {
+        return Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new JsonArchiveFile("file1.json", END_DATE_1, ImmutableMap.of("key", "value")))
+                .addDataFile(new ByteSourceArchiveFile("file2.txt", END_DATE_2,
+                        ByteSource.wrap("hello".getBytes(StandardCharsets.UTF_8))))
+                .build();
+    }
+}
@@ -3,23 +3,59 @@ package org.sagebionetworks.bridge.data;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 import static org.testng.internal.junit.ArrayAsserts.assertArrayEquals;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import nl.jqno.equalsverifier.EqualsVerifier;
+import org.bouncycastle.cms.CMSException;
 import org.joda.time.DateTime;
+import org.testng.SkipException;
 import org.testng.annotations.Test;
 import org.testng.collections.Maps;
 
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
 import org.sagebionetworks.bridge.rest.RestUtils;
 
 public class ArchiveTest {
@@ -192,9 +228,631 @@ public class ArchiveTest {
         assertFileInfoForFile(file2, info2, bytes2.toByteArray());
     }
 
+    @Test
+    public void testWriteToStreamsLargeFile() throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("per-thread allocation counters are not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        long threadId = Thread.currentThread().getId();
+
+        long size = 256L * 1024 * 1024;
+        ArchiveFile largeFile = new ByteSourceArchiveFile("large-file", DateTime.now(), syntheticByteSource(size));
+
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(largeFile)
+                .build();
+
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        archive.writeTo(ByteStreams.nullOutputStream());
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // a few KB of copy buffer plus zip bookkeeping, nowhere near the size of the file
+        assertTrue(allocated < 4 * 1024 * 1024, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    public void testWriteEncryptedTo() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+        buildTestArchive().writeEncryptedTo(encryptedOutput, new StudyUploadEncryptor(cert));
+
+        byte[] zipBytes = new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encryptedOutput.toByteArray());
+        assertTestArchiveContents(zipBytes);
+    }
+
+    @Test
+    public void testWriteEncryptedToAndroid() throws IOException, org.spongycastle.cms.CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+        buildTestArchive().writeEncryptedTo(encryptedOutput, new AndroidStudyUploadEncryptor(cert));
+
+        byte[] zipBytes = new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encryptedOutput.toByteArray());
+        assertTestArchiveContents(zipBytes);
+    }
+
+    @Test
+    public void testWriteToParallel() throws IOException {
+        Random random = new Random(42);
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO);
+        List<byte[]> contents = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            // mix of empty, tiny and multi-buffer files
+            byte[] bytes = new byte[i == 0 ? 0 : random.nextInt(100_000)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) random.nextInt(16);
+            }
+            contents.add(bytes);
+            builder.addDataFile(new ByteSourceArchiveFile("file" + i, DateTime.now(), ByteSource.wrap(bytes)));
+        }
+        Archive archive = builder.build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        try {
+            archive.writeTo(zipOutput, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipOutput.toByteArray()))) {
+            for (int i = 0; i < contents.size(); i++) {
+                ZipEntry entry = zis.getNextEntry();
+                assertEquals("file" + i, entry.getName());
+                assertArrayEquals(contents.get(i), ByteStreams.toByteArray(zis));
+            }
+            assertEquals("info.json", zis.getNextEntry().getName());
+            ArchiveInfo info = RestUtils.GSON.fromJson(new String(ByteStreams.toByteArray(zis), "UTF-8"),
+                    ArchiveInfo.class);
+            assertEquals(contents.size(), info.files.size());
+            assertEquals(null, zis.getNextEntry());
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "test exception")
+    public void testWriteToParallelPropagatesIOException() throws IOException {
+        ByteSource failingSource = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("test exception");
+            }
+        };
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), failingSource))
+                .build();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            archive.writeTo(new ByteArrayOutputStream(), executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteToParallelSpillsLargeEntries() throws IOException {
+        byte[] large = new byte[CompressedEntry.SPILL_THRESHOLD + 100_000];
+        new Random(42).nextBytes(large);
+        ByteSource failingSource = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("test exception");
+            }
+        };
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("large", DateTime.now(), ByteSource.wrap(large)),
+                        CompressionPolicy.STORED);
+        List<String> tempFilesBefore = spilledEntryFiles();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+            builder.build().writeTo(zipOutput, executor);
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipOutput.toByteArray()))) {
+                assertEquals("large", zis.getNextEntry().getName());
+                assertArrayEquals(large, ByteStreams.toByteArray(zis));
+            }
+            assertEquals(tempFilesBefore, spilledEntryFiles());
+
+            // a failure after a spilled entry was compressed still deletes its temp file
+            builder.addDataFile(new ByteSourceArchiveFile("failing", DateTime.now(), failingSource));
+            try {
+                builder.build().writeTo(new ByteArrayOutputStream(), executor);
+                fail("expected exception");
+            } catch (IOException e) {
+                assertEquals("test exception", e.getMessage());
+            }
+            assertEquals(tempFilesBefore, spilledEntryFiles());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // needs more than 4 GB of temp space, so it's left out of the default build, see the large-tests profile
+    @Test(groups = "large")
+    public void testWriteToParallelZip64StoredEntry() throws Exception {
+        // more than 4 GB even once compressed, so it can't be held in an array
+        final long size = (1L << 32) + 1000;
+        final Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("large", DateTime.now(), syntheticByteSource(size)),
+                        CompressionPolicy.STORED)
+                .addDataFile(new ByteSourceArchiveFile("after", DateTime.now(),
+                        ByteSource.wrap("after".getBytes(StandardCharsets.UTF_8))))
+                .build();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        // streamed straight into ZipInputStream, which checks the sizes and CRC in the local headers against the data
+        final PipedOutputStream zipOutput = new PipedOutputStream();
+        PipedInputStream zipInput = new PipedInputStream(zipOutput, 1024 * 1024);
+        try {
+            Future<Void> write = writerThread.submit(new Callable<Void>() {
+                @Override public Void call() throws IOException {
+                    archive.writeTo(zipOutput, executor);
+                    return null;
+                }
+            });
+            try (ZipInputStream zis = new ZipInputStream(zipInput)) {
+                assertEquals("large", zis.getNextEntry().getName());
+                assertEquals(size, ByteStreams.copy(zis, ByteStreams.nullOutputStream()));
+                assertEquals("after", zis.getNextEntry().getName());
+                assertEquals("after", new String(ByteStreams.toByteArray(zis), StandardCharsets.UTF_8));
+                assertEquals("info.json", zis.getNextEntry().getName());
+                ByteStreams.copy(zis, ByteStreams.nullOutputStream());
+                assertNull(zis.getNextEntry());
+            }
+            write.get();
+        } finally {
+            writerThread.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    // temp files that compressed entries were moved to, sorted
+    private static List<String> spilledEntryFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("CompressedEntry");
+            }
+        });
+        List<String> sorted = Lists.newArrayList(names);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void testWriteToWithCompressionPolicies() throws IOException {
+        byte[] randomBytes = new byte[32 * 1024];
+        new Random(42).nextBytes(randomBytes);
+        byte[] textBytes = Strings.repeat("accelerometer,", 2000).getBytes(StandardCharsets.UTF_8);
+
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withCompressionPolicy(CompressionPolicy.adaptive(Deflater.BEST_SPEED))
+                .addDataFile(new ByteSourceArchiveFile("audio", DateTime.now(), ByteSource.wrap(randomBytes)))
+                .addDataFile(new ByteSourceArchiveFile("text", DateTime.now(), ByteSource.wrap(textBytes)))
+                .addDataFile(new ByteSourceArchiveFile("image", DateTime.now(), ByteSource.wrap(textBytes)),
+                        CompressionPolicy.STORED)
+                .build();
+
+        ByteArrayOutputStream sequentialOutput = new ByteArrayOutputStream();
+        archive.writeTo(sequentialOutput);
+        assertCompressionMethods(sequentialOutput.toByteArray(), randomBytes, textBytes);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ByteArrayOutputStream parallelOutput = new ByteArrayOutputStream();
+        try {
+            archive.writeTo(parallelOutput, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertCompressionMethods(parallelOutput.toByteArray(), randomBytes, textBytes);
+    }
+
+    private static void assertCompressionMethods(byte[] zipBytes, byte[] randomBytes, byte[] textBytes)
+            throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+            ZipEntry audio = zis.getNextEntry();
+            assertArrayEquals(randomBytes, ByteStreams.toByteArray(zis));
+            assertEquals(ZipEntry.STORED, audio.getMethod());
+
+            ZipEntry text = zis.getNextEntry();
+            assertArrayEquals(textBytes, ByteStreams.toByteArray(zis));
+            assertEquals(ZipEntry.DEFLATED, text.getMethod());
+
+            ZipEntry image = zis.getNextEntry();
+            assertArrayEquals(textBytes, ByteStreams.toByteArray(zis));
+            assertEquals(ZipEntry.STORED, image.getMethod());
+
+            ZipEntry info = zis.getNextEntry();
+            assertEquals("info.json", info.getName());
+            assertEquals(ZipEntry.DEFLATED, info.getMethod());
+        }
+    }
+
+    @Test
+    public void testWriteToWithLazyJson() throws IOException {
+        ArchiveInfo lazyObject = new ArchiveInfo();
+        lazyObject.item = "lazy-item";
+        lazyObject.appVersion = APP_VERSION_NAME;
+
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(JsonArchiveFile.lazy("lazy.json", DateTime.now(), lazyObject))
+                .addDataFile(JsonArchiveFile.lazy("stored.json", DateTime.now(), lazyObject),
+                        CompressionPolicy.STORED)
+                .build();
+
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        archive.writeTo(zipOutput);
+
+        Map<String, byte[]> entries = unzip(zipOutput.toByteArray());
+        String expectedJson = RestUtils.GSON.toJson(lazyObject);
+        assertEquals(expectedJson, new String(entries.get("lazy.json"), StandardCharsets.UTF_8));
+        assertEquals(expectedJson, new String(entries.get("stored.json"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long copied = Archive.copy(ByteSource.wrap(new byte[]{1, 2, 3, 4, 5}), output, new byte[2]);
+
+        assertEquals(5, copied);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, output.toByteArray());
+    }
+
+    @Test
+    public void testBuildPartsUncompressedLimit() throws IOException {
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withMaxUncompressedSize(2500);
+        for (int i = 0; i < 5; i++) {
+            builder.addDataFile(new ByteSourceArchiveFile("file" + i, DateTime.now(),
+                    ByteSource.wrap(new byte[1000])));
+        }
+        List<Archive> parts = builder.buildParts();
+
+        // two 1000 byte files plus info.json fit in each part
+        assertEquals(3, parts.size());
+        List<String> filenames = Lists.newArrayList();
+        for (Archive part : parts) {
+            ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+            part.writeTo(zipOutput);
+            Map<String, byte[]> entries = unzip(zipOutput.toByteArray());
+
+            long uncompressedSize = 0;
+            for (byte[] contents : entries.values()) {
+                uncompressedSize += contents.length;
+            }
+            assertTrue(uncompressedSize <= 2500, "part is " + uncompressedSize + " bytes");
+
+            // each part's info.json describes only that part's files
+            ArchiveInfo info = RestUtils.GSON.fromJson(new String(entries.get("info.json"), StandardCharsets.UTF_8),
+                    ArchiveInfo.class);
+            assertEquals(TEST_ITEM_NAME, info.item);
+            assertEquals(TEST_SCHEMA_REVISION, info.schemaRevision);
+            assertEquals(APP_VERSION_NAME, info.appVersion);
+            assertEquals(entries.size() - 1, info.files.size());
+            for (ArchiveInfo.FileInfo fileInfo : info.files) {
+                assertTrue(entries.containsKey(fileInfo.filename));
+                filenames.add(fileInfo.filename);
+            }
+        }
+        assertEquals(ImmutableList.of("file0", "file1", "file2", "file3", "file4"), filenames);
+    }
+
+    @Test
+    public void testBuildPartsCompressedLimit() throws IOException {
+        long maxSize = 40 * 1024;
+        Random random = new Random(42);
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withMaxCompressedSize(maxSize);
+        for (int i = 0; i < 10; i++) {
+            // random bytes barely compress
+            byte[] contents = new byte[10 * 1024];
+            random.nextBytes(contents);
+            builder.addDataFile(new ByteSourceArchiveFile("random" + i, DateTime.now(), ByteSource.wrap(contents)),
+                    i % 2 == 0 ? CompressionPolicy.STORED : CompressionPolicy.DEFAULT);
+        }
+        List<Archive> parts = builder.buildParts();
+
+        assertTrue(parts.size() > 1);
+        int fileCount = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (Archive part : parts) {
+                ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+                part.writeTo(zipOutput);
+                assertTrue(zipOutput.size() <= maxSize, "part is " + zipOutput.size() + " bytes");
+                fileCount += unzip(zipOutput.toByteArray()).size() - 1;
+
+                ByteArrayOutputStream parallelOutput = new ByteArrayOutputStream();
+                part.writeTo(parallelOutput, executor);
+                assertTrue(parallelOutput.size() <= maxSize, "part is " + parallelOutput.size() + " bytes");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(10, fileCount);
+    }
+
+    @Test
+    public void testBuildPartsOversizedFile() throws IOException {
+        List<Archive> parts = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withMaxUncompressedSize(1000)
+                .addDataFile(new ByteSourceArchiveFile("small1", DateTime.now(), ByteSource.wrap(new byte[10])))
+                .addDataFile(new ByteSourceArchiveFile("huge", DateTime.now(), ByteSource.wrap(new byte[5000])))
+                .addDataFile(new ByteSourceArchiveFile("small2", DateTime.now(), ByteSource.wrap(new byte[10])))
+                .buildParts();
+
+        // files aren't split, so the oversized one gets an archive to itself
+        assertEquals(3, parts.size());
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        parts.get(1).writeTo(zipOutput);
+        Map<String, byte[]> entries = unzip(zipOutput.toByteArray());
+        assertEquals(2, entries.size());
+        assertEquals(5000, entries.get("huge").length);
+    }
+
+    @Test
+    public void testBuildPartsWithoutLimit() throws IOException {
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), ByteSource.wrap(BYTES)));
+
+        assertEquals(ImmutableList.of(builder.build()), builder.buildParts());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testBuildWithLimit() {
+        Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withMaxCompressedSize(1024)
+                .build();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testDuplicateFilename() {
+        Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), ByteSource.wrap(new byte[1])))
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), ByteSource.wrap(new byte[2])),
+                        CompressionPolicy.STORED);
+    }
+
+    @Test
+    public void testWriteWithDigests() throws IOException {
+        byte[] text = "a,b\n1,2\n".getBytes(StandardCharsets.UTF_8);
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withFileDigests()
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), ByteSource.wrap(BYTES)))
+                .addDataFile(new ByteSourceArchiveFile("text", DateTime.now(), ByteSource.wrap(text)),
+                        CompressionPolicy.STORED)
+                .build();
+
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        UploadDigests digests = archive.writeWithDigestsTo(zipOutput);
+        byte[] zipBytes = zipOutput.toByteArray();
+
+        assertEquals(digests.getFileSha256s(), ImmutableMap.of("file", Hashing.sha256().hashBytes(BYTES),
+                "text", Hashing.sha256().hashBytes(text)));
+        assertEquals(digests.getContentMd5(), Hashing.md5().hashBytes(zipBytes));
+        assertEquals(digests.getContentMd5Base64(), BaseEncoding.base64().encode(Hashing.md5().hashBytes(zipBytes)
+                .asBytes()));
+        assertEquals(digests.getContentSha256(), Hashing.sha256().hashBytes(zipBytes));
+        assertEquals(digests.getContentLength(), zipBytes.length);
+
+        ArchiveInfo info = RestUtils.GSON.fromJson(new String(unzip(zipBytes).get("info.json"), "UTF-8"),
+                ArchiveInfo.class);
+        assertEquals(info.files.get(0).getSha256(), Hashing.sha256().hashBytes(BYTES).toString());
+        assertEquals(info.files.get(1).getSha256(), Hashing.sha256().hashBytes(text).toString());
+
+        // the digests don't change what is written
+        ByteArrayOutputStream plainOutput = new ByteArrayOutputStream();
+        archive.writeTo(plainOutput);
+        assertEquals(unzip(plainOutput.toByteArray()).get("info.json"), unzip(zipBytes).get("info.json"));
+    }
+
+    @Test
+    public void testWriteWithDigestsParallel() throws IOException {
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withFileDigests();
+        Random random = new Random(7);
+        for (int i = 0; i < 10; i++) {
+            byte[] bytes = new byte[random.nextInt(100_000)];
+            random.nextBytes(bytes);
+            builder.addDataFile(new ByteSourceArchiveFile("file" + i, DateTime.now(), ByteSource.wrap(bytes)));
+        }
+        Archive archive = builder.build();
+
+        UploadDigests sequential = archive.writeWithDigestsTo(ByteStreams.nullOutputStream());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        UploadDigests parallel;
+        try {
+            parallel = archive.writeWithDigestsTo(zipOutput, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(parallel.getFileSha256s(), sequential.getFileSha256s());
+        assertEquals(ImmutableList.copyOf(parallel.getFileSha256s().keySet()).get(9), "file9");
+        assertEquals(parallel.getContentSha256(), Hashing.sha256().hashBytes(zipOutput.toByteArray()));
+
+        ArchiveInfo info = RestUtils.GSON.fromJson(new String(unzip(zipOutput.toByteArray()).get("info.json"),
+                "UTF-8"), ArchiveInfo.class);
+        for (ArchiveInfo.FileInfo fileInfo : info.files) {
+            assertEquals(fileInfo.getSha256(), sequential.getFileSha256s().get(fileInfo.filename).toString());
+        }
+    }
+
+    @Test
+    public void testWriteEncryptedWithDigests() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+        UploadDigests digests = buildTestArchive().writeEncryptedWithDigestsTo(encryptedOutput,
+                new StudyUploadEncryptor(cert));
+        byte[] encrypted = encryptedOutput.toByteArray();
+
+        assertEquals(digests.getFileSha256s(), ImmutableMap.of("file", Hashing.sha256().hashBytes(BYTES)));
+        assertEquals(digests.getContentMd5(), Hashing.md5().hashBytes(encrypted));
+        assertEquals(digests.getContentSha256(), Hashing.sha256().hashBytes(encrypted));
+        assertEquals(digests.getContentLength(), encrypted.length);
+
+        // the archive wasn't built with file digests, so info.json doesn't list them
+        byte[] zipBytes = new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted);
+        assertTestArchiveContents(zipBytes);
+        assertFalse(new String(unzip(zipBytes).get("info.json"), "UTF-8").contains("sha256"));
+    }
+
+    @Test
+    public void testWriteEncryptedWithDigestsAndroid() throws IOException, org.spongycastle.cms.CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+        UploadDigests digests = buildTestArchive().writeEncryptedWithDigestsTo(encryptedOutput,
+                new AndroidStudyUploadEncryptor(cert));
+
+        assertEquals(digests.getContentMd5(), Hashing.md5().hashBytes(encryptedOutput.toByteArray()));
+        assertTestArchiveContents(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(
+                encryptedOutput.toByteArray()));
+    }
+
+    @Test
+    public void testWriteAsync() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+            assertNull(buildTestArchive().writeToAsync(zipOutput, executor).get());
+            assertTestArchiveContents(zipOutput.toByteArray());
+
+            zipOutput = new ByteArrayOutputStream();
+            UploadDigests digests = buildTestArchive().writeWithDigestsToAsync(zipOutput, executor).get();
+            assertEquals(digests.getFileSha256s(), ImmutableMap.of("file", Hashing.sha256().hashBytes(BYTES)));
+            assertEquals(digests.getContentMd5(), Hashing.md5().hashBytes(zipOutput.toByteArray()));
+            assertTestArchiveContents(zipOutput.toByteArray());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteEncryptedAsync() throws Exception {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
+        BcCmsEncryptor decryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        // many uploads at once, all sharing the one encryptor
+        int uploadCount = 32;
+        List<ByteArrayOutputStream> outputs = Lists.newArrayList();
+        List<ListenableFuture<UploadDigests>> futures = Lists.newArrayList();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < uploadCount; i++) {
+                ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+                outputs.add(encryptedOutput);
+                futures.add(buildTestArchive().writeEncryptedWithDigestsToAsync(encryptedOutput, encryptor, executor));
+            }
+            List<UploadDigests> digests = Futures.allAsList(futures).get();
+            for (int i = 0; i < uploadCount; i++) {
+                byte[] encrypted = outputs.get(i).toByteArray();
+                assertEquals(digests.get(i).getContentMd5(), Hashing.md5().hashBytes(encrypted));
+                assertTestArchiveContents(decryptor.decrypt(encrypted));
+            }
+
+            ByteArrayOutputStream encryptedOutput = new ByteArrayOutputStream();
+            buildTestArchive().writeEncryptedToAsync(encryptedOutput, encryptor, executor).get();
+            assertTestArchiveContents(decryptor.decrypt(encryptedOutput.toByteArray()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteAsyncPropagatesIOException() throws InterruptedException {
+        ByteSource failingSource = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("test exception");
+            }
+        };
+        Archive archive = Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), failingSource))
+                .build();
+
+        try {
+            archive.writeToAsync(new ByteArrayOutputStream(), MoreExecutors.directExecutor()).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals(e.getCause().getMessage(), "test exception");
+        }
+    }
+
+    @Test
+    public void testBuildPartsWithFileDigests() throws IOException {
+        // each file's info.json entry grows by its digest, so fewer files fit under the same limit
+        Archive.Builder builder = Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .withFileDigests();
+        for (int i = 0; i < 10; i++) {
+            builder.addDataFile(new ByteSourceArchiveFile("file" + i, DateTime.now(), ByteSource.wrap(BYTES)));
+        }
+        List<Archive> parts = builder.withMaxUncompressedSize(1000).buildParts();
+
+        for (Archive part : parts) {
+            ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+            UploadDigests digests = part.writeWithDigestsTo(zipOutput);
+            long uncompressedSize = 0;
+            for (byte[] entry : unzip(zipOutput.toByteArray()).values()) {
+                uncompressedSize += entry.length;
+            }
+            assertTrue(uncompressedSize <= 1000, "part is " + uncompressedSize + " bytes");
+            assertFalse(digests.getFileSha256s().isEmpty());
+        }
+        assertTrue(parts.size() > 1);
+    }
+
     @Test
     public void equalsVerifier() {
-        EqualsVerifier.forClass(Archive.class).allFieldsShouldBeUsed().verify();
+        EqualsVerifier.forClass(Archive.class).allFieldsShouldBeUsedExcept("metrics").verify();
     }
 
     private void assertFileInfoForFile(ArchiveFile file, ArchiveInfo.FileInfo info, byte[] contents) throws IOException {
@@ -202,4 +860,53 @@ public class ArchiveTest {
         assertTrue(file.getEndDate().isEqual(info.timestamp));
         assertArrayEquals(file.getByteSource().read(), contents);
     }
+
+    private static Archive buildTestArchive() {
+        return Archive.Builder.forActivity(TEST_ITEM_NAME, TEST_SCHEMA_REVISION)
+                .withAppVersionName(APP_VERSION_NAME)
+                .withPhoneInfo(TEST_PHONE_INFO)
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), ByteSource.wrap(BYTES)))
+                .build();
+    }
+
+    private static void assertTestArchiveContents(byte[] zipBytes) throws IOException {
+        Map<String, byte[]> entries = unzip(zipBytes);
+        assertArrayEquals(BYTES, entries.get("file"));
+
+        ArchiveInfo info = RestUtils.GSON.fromJson(new String(entries.get("info.json"), "UTF-8"), ArchiveInfo.class);
+        assertEquals(TEST_ITEM_NAME, info.item);
+        assertEquals(1, info.files.size());
+    }
+
+    static Map<String, byte[]> unzip(byte[] zipBytes) throws IOException {
+        Map<String, byte[]> map = Maps.newHashMap();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null) {
+                map.put(zipEntry.getName(), ByteStreams.toByteArray(zis));
+                zis.closeEntry();
+            }
+        }
+        return map;
+    }
+
+    // Byte source of the given size whose contents are generated on the fly, so the test itself holds no data.
+    static ByteSource syntheticByteSource(final long size) {
+        return new ByteSource() {
+            @Override
+            public InputStream openStream() {
+                return ByteStreams.limit(new InputStream() {
+                    @Override
+                    public int read() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) {
+                        return len;
+                    }
+                }, size);
+            }
+        };
+    }
 }
@@ -0,0 +1,161 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+
+public class BatchEncryptorTest {
+    private static final int FILE_COUNT = 5;
+
+    private BcCmsEncryptor decryptor;
+    private StudyUploadEncryptor encryptor;
+    private ForkJoinPool pool;
+    private Path tempDir;
+    private Path inputDir;
+    private Path outputDir;
+
+    @BeforeClass
+    public void setupKeys() {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        encryptor = new StudyUploadEncryptor(cert);
+        decryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+    }
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        pool = new ForkJoinPool(3);
+        tempDir = Files.createTempDirectory("BatchEncryptorTest");
+        inputDir = Files.createDirectory(tempDir.resolve("input"));
+        outputDir = tempDir.resolve("output");
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Files.write(inputDir.resolve("file" + i), fileContent(i));
+        }
+        // not a regular file, so it's left alone
+        Files.createDirectory(inputDir.resolve("subdir"));
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        pool.shutdownNow();
+        deleteRecursively(tempDir.toFile());
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    public void encryptsEveryFile() throws Exception {
+        BatchEncryptor.Result result = new BatchEncryptor(encryptor, pool).encryptDirectory(inputDir, outputDir);
+
+        assertEquals(result.getEncryptedCount(), FILE_COUNT);
+        assertEquals(result.getSkippedCount(), 0);
+        assertEquals(result.getFailedCount(), 0);
+        long expectedBytes = 0;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            expectedBytes += fileContent(i).length;
+            byte[] encrypted = Files.readAllBytes(outputDir.resolve("file" + i));
+            assertEquals(decryptor.decrypt(encrypted), fileContent(i));
+        }
+        assertEquals(result.getEncryptedBytes(), expectedBytes);
+        assertFalse(Files.exists(outputDir.resolve("subdir")));
+        // no temp files are left behind
+        assertEquals(outputDir.toFile().list().length, FILE_COUNT);
+
+        assertTrue(result.getLatencyPercentileMillis(50) > 0);
+        assertTrue(result.getLatencyPercentileMillis(50) <= result.getLatencyPercentileMillis(100));
+    }
+
+    @Test
+    public void skipsUpToDateOutputs() throws Exception {
+        BatchEncryptor batchEncryptor = new BatchEncryptor(encryptor, pool);
+        batchEncryptor.encryptDirectory(inputDir, outputDir);
+
+        // nothing changed
+        BatchEncryptor.Result result = batchEncryptor.encryptDirectory(inputDir, outputDir);
+        assertEquals(result.getEncryptedCount(), 0);
+        assertEquals(result.getSkippedCount(), FILE_COUNT);
+        assertEquals(result.getLatencyPercentileMillis(99), 0.0);
+
+        // an input that's newer than its output is encrypted again
+        Path changedInput = inputDir.resolve("file2");
+        Files.write(changedInput, "changed".getBytes(StandardCharsets.UTF_8));
+        FileTime outputTime = Files.getLastModifiedTime(outputDir.resolve("file2"));
+        Files.setLastModifiedTime(changedInput, FileTime.fromMillis(outputTime.toMillis()
+                + TimeUnit.SECONDS.toMillis(10)));
+
+        result = batchEncryptor.encryptDirectory(inputDir, outputDir);
+        assertEquals(result.getEncryptedCount(), 1);
+        assertEquals(result.getSkippedCount(), FILE_COUNT - 1);
+        assertEquals(new String(decryptor.decrypt(Files.readAllBytes(outputDir.resolve("file2"))),
+                StandardCharsets.UTF_8), "changed");
+    }
+
+    @Test
+    public void failedFileDoesNotStopOthers() throws Exception {
+        Files.createDirectories(outputDir);
+        // a non-empty directory where file1's output goes makes that file fail
+        Files.createDirectory(outputDir.resolve("file1"));
+        Files.createFile(outputDir.resolve("file1").resolve("child"));
+
+        BatchEncryptor.Result result = new BatchEncryptor(encryptor, pool).encryptDirectory(inputDir, outputDir);
+        assertEquals(result.getEncryptedCount(), FILE_COUNT - 1);
+        assertEquals(result.getFailedCount(), 1);
+        assertTrue(Files.isDirectory(outputDir.resolve("file1")));
+        // the failed file's temp output is deleted
+        assertEquals(outputDir.toFile().list().length, FILE_COUNT);
+    }
+
+    @Test
+    public void inputNamedLikeTempFile() throws Exception {
+        Files.write(inputDir.resolve("file0.tmp"), "not a temp file".getBytes(StandardCharsets.UTF_8));
+
+        BatchEncryptor.Result result = new BatchEncryptor(encryptor, pool).encryptDirectory(inputDir, outputDir);
+        assertEquals(result.getEncryptedCount(), FILE_COUNT + 1);
+        assertEquals(result.getFailedCount(), 0);
+        assertEquals(decryptor.decrypt(Files.readAllBytes(outputDir.resolve("file0"))), fileContent(0));
+        assertEquals(new String(decryptor.decrypt(Files.readAllBytes(outputDir.resolve("file0.tmp"))),
+                StandardCharsets.UTF_8), "not a temp file");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void sameInputAndOutputDir() throws Exception {
+        new BatchEncryptor(encryptor, pool).encryptDirectory(inputDir, inputDir);
+    }
+
+    private static byte[] fileContent(int index) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000 * (index + 1); i++) {
+            builder.append("line ").append(i).append(" of file ").append(index).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
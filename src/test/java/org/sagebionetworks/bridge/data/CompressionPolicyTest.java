@@ -0,0 +1,147 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+public class CompressionPolicyTest {
+    private static final byte[] RANDOM_BYTES = new byte[64 * 1024];
+    private static final byte[] REPETITIVE_BYTES = new byte[64 * 1024];
+
+    static {
+        new Random(42).nextBytes(RANDOM_BYTES);
+        for (int i = 0; i < REPETITIVE_BYTES.length; i++) {
+            REPETITIVE_BYTES[i] = (byte) (i % 7);
+        }
+    }
+
+    @Test
+    public void testFixedPolicies() throws IOException {
+        byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+
+        assertEquals(ZipEntry.STORED, CompressionPolicy.STORED.chooseMethod(ByteSource.wrap(REPETITIVE_BYTES),
+                buffer));
+        assertEquals(ZipEntry.DEFLATED, CompressionPolicy.DEFAULT.chooseMethod(ByteSource.wrap(RANDOM_BYTES),
+                buffer));
+        assertEquals(ZipEntry.DEFLATED, CompressionPolicy.deflated(Deflater.BEST_SPEED)
+                .chooseMethod(ByteSource.wrap(RANDOM_BYTES), buffer));
+    }
+
+    @Test
+    public void testAdaptiveStoresIncompressibleData() throws IOException {
+        CompressionPolicy policy = CompressionPolicy.adaptive(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+
+        assertEquals(ZipEntry.STORED, policy.chooseMethod(ByteSource.wrap(RANDOM_BYTES), buffer));
+        assertEquals(ZipEntry.DEFLATED, policy.chooseMethod(ByteSource.wrap(REPETITIVE_BYTES), buffer));
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel());
+    }
+
+    @Test
+    public void testAdaptiveStoresSmallFilesWithoutSampling() throws IOException {
+        CompressionPolicy policy = CompressionPolicy.adaptive(Deflater.DEFAULT_COMPRESSION);
+        byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+        final byte[] smallBytes = Arrays.copyOf(REPETITIVE_BYTES, (int) CompressionPolicy.SMALL_FILE_SIZE - 1);
+
+        // a failing stream proves the source is never opened when its size is known
+        ByteSource knownSize = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("should not be sampled");
+            }
+
+            @Override
+            public Optional<Long> sizeIfKnown() {
+                return Optional.of((long) smallBytes.length);
+            }
+        };
+        assertEquals(ZipEntry.STORED, policy.chooseMethod(knownSize, buffer));
+        assertEquals(ZipEntry.STORED, policy.chooseMethod(ByteSource.empty(), buffer));
+
+        // without a size hint, the same bytes are sampled and found compressible
+        ByteSource unknownSize = new ByteSource() {
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(smallBytes);
+            }
+        };
+        assertEquals(ZipEntry.DEFLATED, policy.chooseMethod(unknownSize, buffer));
+    }
+
+    @Test
+    public void testAdaptiveSamplesStreamingSourceWithoutBuffering() throws IOException {
+        CompressionPolicy policy = CompressionPolicy.adaptive(Deflater.DEFAULT_COMPRESSION);
+        byte[] buffer = new byte[Archive.COPY_BUFFER_SIZE];
+
+        CountingStreamingSource random = new CountingStreamingSource(RANDOM_BYTES);
+        assertEquals(ZipEntry.STORED, policy.chooseMethod(random, buffer));
+        // the copy is stopped once the sample is full, rather than writing out all 64 KB
+        assertTrue(random.bytesWritten <= buffer.length + CountingStreamingSource.PIECE_SIZE,
+                "wrote " + random.bytesWritten);
+
+        CountingStreamingSource repetitive = new CountingStreamingSource(REPETITIVE_BYTES);
+        assertEquals(ZipEntry.DEFLATED, policy.chooseMethod(repetitive, buffer));
+        assertTrue(repetitive.bytesWritten <= buffer.length + CountingStreamingSource.PIECE_SIZE);
+
+        // lazy JSON wraps the stopped copy in exceptions of its own
+        List<Integer> values = Lists.newArrayList();
+        for (int i = 0; i < 100000; i++) {
+            values.add(i % 7);
+        }
+        assertEquals(ZipEntry.DEFLATED, policy.chooseMethod(JsonArchiveFile.lazy("values.json", DateTime.now(),
+                values).getByteSource(), buffer));
+    }
+
+    @Test
+    public void testStreamingSourceSize() throws IOException {
+        CountingStreamingSource source = new CountingStreamingSource(RANDOM_BYTES);
+        assertEquals(source.size(), RANDOM_BYTES.length);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        CompressionPolicy.deflated(10);
+    }
+
+    // writes its contents in small pieces, and fails if it's opened as a stream, which would buffer all of it
+    private static class CountingStreamingSource extends StreamingByteSource {
+        static final int PIECE_SIZE = 1024;
+
+        private final byte[] contents;
+        long bytesWritten;
+
+        CountingStreamingSource(byte[] contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        public long copyTo(OutputStream output) throws IOException {
+            for (int i = 0; i < contents.length; i += PIECE_SIZE) {
+                int length = Math.min(PIECE_SIZE, contents.length - i);
+                output.write(contents, i, length);
+                bytesWritten += length;
+            }
+            return contents.length;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            throw new IOException("should not be opened");
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.testng.annotations.Test;
+
+public class CopyBuffersTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        byte[] buffer = CopyBuffers.acquire();
+        assertEquals(buffer.length, Archive.COPY_BUFFER_SIZE);
+        CopyBuffers.release(buffer);
+
+        // other tests may have left buffers in the pool, so look for this one among everything pooled
+        List<byte[]> acquired = Lists.newArrayList();
+        boolean reused = false;
+        for (int i = 0; i <= CopyBuffers.MAX_POOLED_BUFFERS && !reused; i++) {
+            byte[] next = CopyBuffers.acquire();
+            acquired.add(next);
+            reused = next == buffer;
+        }
+        for (byte[] next : acquired) {
+            CopyBuffers.release(next);
+        }
+        assertTrue(reused);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() {
+        CopyBuffers.release(new byte[16]);
+    }
+}
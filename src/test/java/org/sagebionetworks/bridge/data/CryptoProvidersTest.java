@@ -0,0 +1,117 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.bouncycastle.cms.CMSException;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+
+public class CryptoProvidersTest {
+    private static final byte[] TEXT = "test text".getBytes(StandardCharsets.UTF_8);
+
+    private KeyPair keyPair;
+    private X509Certificate cert;
+
+    @BeforeClass
+    public void setupKeys() {
+        keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+    }
+
+    @Test
+    public void forName() {
+        assertSame(CryptoProviders.forName("BC"), CryptoProviders.bouncyCastle());
+        assertSame(CryptoProviders.forName("SC"), CryptoProviders.spongyCastle());
+        assertEquals(CryptoProviders.bouncyCastle().getName(), "BC");
+        assertEquals(CryptoProviders.spongyCastle().getName(), "SC");
+        assertSame(CryptoProviders.forName("SunJCE"), Security.getProvider("SunJCE"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void forNameNotInstalled() {
+        CryptoProviders.forName("NoSuchProvider");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void encryptorWithProviderNotInstalled() {
+        new StudyUploadEncryptor(cert, "NoSuchProvider");
+    }
+
+    @Test
+    public void globalProvidersUnchanged() throws IOException, CMSException, org.spongycastle.cms.CMSException {
+        List<String> providersBefore = providerNames();
+
+        byte[] encrypted = encrypt(new StudyUploadEncryptor(cert));
+        assertEquals(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted), TEXT);
+
+        ByteArrayOutputStream androidEncrypted = new ByteArrayOutputStream();
+        try (OutputStream os = new AndroidStudyUploadEncryptor(cert).encrypt(androidEncrypted)) {
+            os.write(TEXT);
+        }
+        assertEquals(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(androidEncrypted.toByteArray()), TEXT);
+
+        Archive archive = Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info")
+                .addDataFile(new ByteSourceArchiveFile("text", DateTime.now(), ByteSource.wrap(TEXT)))
+                .build();
+        ByteArrayOutputStream encryptedArchive = new ByteArrayOutputStream();
+        archive.writeEncryptedTo(encryptedArchive, new StudyUploadEncryptor(cert));
+        try (ArchiveReader reader = ArchiveReader.openEncrypted(
+                new ByteArrayInputStream(encryptedArchive.toByteArray()), cert, keyPair.getPrivate())) {
+            assertEquals(reader.nextFile().getByteSource().read(), TEXT);
+        }
+
+        assertEquals(providerNames(), providersBefore);
+    }
+
+    @Test
+    public void providerInstance() throws IOException, CMSException {
+        // a provider that was never installed
+        Provider provider = new org.bouncycastle.jce.provider.BouncyCastleProvider();
+        byte[] encrypted = encrypt(new StudyUploadEncryptor(cert, provider));
+        assertEquals(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted), TEXT);
+
+        Provider platformProvider = Security.getProvider(StudyUploadEncryptor.PLATFORM_CONTENT_CIPHER_PROVIDER);
+        assertNotNull(platformProvider);
+        encrypted = encrypt(new StudyUploadEncryptor(cert, platformProvider));
+        assertEquals(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted), TEXT);
+    }
+
+    private static byte[] encrypt(StudyUploadEncryptor encryptor) throws IOException, CMSException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream os = encryptor.encrypt(encrypted)) {
+            os.write(TEXT);
+        }
+        return encrypted.toByteArray();
+    }
+
+    private static List<String> providerNames() {
+        List<String> names = Lists.newArrayList();
+        for (Provider provider : Security.getProviders()) {
+            names.add(provider.getName());
+        }
+        return names;
+    }
+}
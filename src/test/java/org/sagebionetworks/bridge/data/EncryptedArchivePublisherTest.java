@@ -0,0 +1,405 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bouncycastle.cms.CMSException;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+public class EncryptedArchivePublisherTest {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private X509Certificate cert;
+    private BcCmsEncryptor decryptor;
+    private StudyUploadEncryptor encryptor;
+    private byte[] randomBytes;
+
+    @BeforeClass
+    public void setup() {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        decryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+        encryptor = new StudyUploadEncryptor(cert);
+        // random bytes don't compress, so they span many chunks
+        randomBytes = new byte[300 * 1024];
+        new Random(42).nextBytes(randomBytes);
+    }
+
+    @Test
+    public void publishesArchive() throws IOException, CMSException {
+        byte[] text = "some text".getBytes(StandardCharsets.UTF_8);
+        Archive archive = builder()
+                .withFileDigests()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), ByteSource.wrap(randomBytes)))
+                .addDataFile(new ByteSourceArchiveFile("text", DateTime.now(), ByteSource.wrap(text)),
+                        CompressionPolicy.STORED)
+                .addDataFile(new ByteSourceArchiveFile("streamed", DateTime.now(), streamingSource(text)))
+                .build();
+        DirectBufferPool pool = new DirectBufferPool(CHUNK_SIZE, 4);
+        CollectingSubscriber subscriber = new CollectingSubscriber(1, true);
+        archive.toEncryptedPublisher(encryptor, pool, MoreExecutors.directExecutor()).subscribe(subscriber);
+
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+        // every chunk but the last is full
+        for (int i = 0; i < subscriber.chunkSizes.size() - 1; i++) {
+            assertEquals(subscriber.chunkSizes.get(i).intValue(), CHUNK_SIZE);
+        }
+        // chunks were released as they were consumed, so only a couple were ever allocated
+        assertTrue(subscriber.chunkSizes.size() > 10);
+        assertTrue(pool.getAllocatedCount() <= 2, "allocated " + pool.getAllocatedCount());
+
+        Map<String, byte[]> entries = ArchiveTest.unzip(decryptor.decrypt(subscriber.bytes.toByteArray()));
+        assertEquals(entries.get("random"), randomBytes);
+        assertEquals(entries.get("text"), text);
+        assertEquals(entries.get("streamed"), text);
+        ArchiveInfo info = RestUtils.GSON.fromJson(new String(entries.get("info.json"), StandardCharsets.UTF_8),
+                ArchiveInfo.class);
+        assertEquals(info.getFiles().get(0).getSha256(), Hashing.sha256().hashBytes(randomBytes).toString());
+        assertEquals(info.getFiles().get(2).getSha256(), Hashing.sha256().hashBytes(text).toString());
+    }
+
+    @Test
+    public void matchesWriteEncryptedTo() throws IOException, CMSException {
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), ByteSource.wrap(randomBytes)))
+                .build();
+        CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE, false);
+        archive.toEncryptedPublisher(encryptor, MoreExecutors.directExecutor()).subscribe(subscriber);
+        assertTrue(subscriber.completed);
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        archive.writeEncryptedTo(written, encryptor);
+        // each has its own content key, and the zips their own modification times, so only the entries compare equal
+        Map<String, byte[]> published = ArchiveTest.unzip(decryptor.decrypt(subscriber.bytes.toByteArray()));
+        Map<String, byte[]> expected = ArchiveTest.unzip(decryptor.decrypt(written.toByteArray()));
+        assertEquals(published.keySet(), expected.keySet());
+        for (String name : expected.keySet()) {
+            assertEquals(published.get(name), expected.get(name), name);
+        }
+    }
+
+    @Test
+    public void producesOnlyWhatIsRequested() {
+        CountingByteSource source = new CountingByteSource(ByteSource.wrap(randomBytes));
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), source))
+                .build();
+        CollectingSubscriber subscriber = new CollectingSubscriber(0, false);
+        archive.toEncryptedPublisher(encryptor, new DirectBufferPool(CHUNK_SIZE, 4), MoreExecutors.directExecutor())
+                .subscribe(subscriber);
+        assertEquals(source.bytesRead.get(), 0);
+
+        subscriber.subscription.request(1);
+        assertEquals(subscriber.chunkSizes.size(), 1);
+        // the deflater holds some input back before it has output, but the rest of the file hasn't been read
+        long readForOneChunk = source.bytesRead.get();
+        assertTrue(readForOneChunk <= 3 * CHUNK_SIZE, "read " + readForOneChunk);
+
+        subscriber.subscription.request(2);
+        assertEquals(subscriber.chunkSizes.size(), 3);
+        assertTrue(source.bytesRead.get() <= readForOneChunk + 2 * CHUNK_SIZE + Archive.COPY_BUFFER_SIZE,
+                "read " + source.bytesRead);
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed);
+        assertEquals(source.bytesRead.get(), randomBytes.length);
+    }
+
+    @Test
+    public void streamedFileIsPublishedAsRequested() throws IOException, CMSException {
+        // past the spill threshold, so it's spooled to a temp file, and zeros, so it deflates to a few chunks
+        byte[] zeros = new byte[CompressedEntry.SPILL_THRESHOLD + 1024 * 1024];
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), streamingSource(randomBytes)))
+                .addDataFile(new ByteSourceArchiveFile("zeros", DateTime.now(), streamingSource(zeros)))
+                .build();
+        Set<String> tempFiles = spoolFiles();
+        DirectBufferPool pool = new DirectBufferPool(CHUNK_SIZE, 4);
+        CollectingSubscriber subscriber = new CollectingSubscriber(0, false);
+        archive.toEncryptedPublisher(encryptor, pool, MoreExecutors.directExecutor()).subscribe(subscriber);
+
+        // the whole file was written out at once, but only a chunk's worth of the archive was produced from it
+        subscriber.subscription.request(1);
+        assertEquals(subscriber.chunkSizes.size(), 1);
+        assertTrue(pool.getAllocatedCount() <= 2, "allocated " + pool.getAllocatedCount());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed);
+        Map<String, byte[]> entries = ArchiveTest.unzip(decryptor.decrypt(subscriber.bytes.toByteArray()));
+        assertEquals(entries.get("random"), randomBytes);
+        assertEquals(entries.get("zeros"), zeros);
+        assertEquals(spoolFiles(), tempFiles);
+    }
+
+    @Test
+    public void noSignalsUntilOnSubscribeReturns() {
+        final AtomicBoolean inOnSubscribe = new AtomicBoolean();
+        final AtomicBoolean signalledInOnSubscribe = new AtomicBoolean();
+        CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE, false) {
+            @Override public void onSubscribe(EncryptedArchivePublisher.Subscription subscription) {
+                inOnSubscribe.set(true);
+                // on the direct executor, draining here would signal before this returns
+                super.onSubscribe(subscription);
+                inOnSubscribe.set(false);
+            }
+
+            @Override public void onNext(ByteBuffer chunk) {
+                signalledInOnSubscribe.compareAndSet(false, inOnSubscribe.get());
+                super.onNext(chunk);
+            }
+
+            @Override public void onComplete() {
+                signalledInOnSubscribe.compareAndSet(false, inOnSubscribe.get());
+                super.onComplete();
+            }
+        };
+        testArchive().toEncryptedPublisher(encryptor, MoreExecutors.directExecutor()).subscribe(subscriber);
+        assertTrue(subscriber.completed);
+        assertFalse(signalledInOnSubscribe.get());
+    }
+
+    @Test
+    public void cancelClosesDataFile() {
+        CountingByteSource source = new CountingByteSource(ByteSource.wrap(randomBytes));
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), source))
+                .build();
+        DirectBufferPool pool = new DirectBufferPool(CHUNK_SIZE, 4);
+        CollectingSubscriber subscriber = new CollectingSubscriber(0, false);
+        archive.toEncryptedPublisher(encryptor, pool, MoreExecutors.directExecutor()).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertFalse(source.closed.get());
+
+        subscriber.subscription.cancel();
+        assertTrue(source.closed.get());
+        // the partly filled chunk went back to the pool
+        assertEquals(pool.getPooledCount(), 1);
+
+        subscriber.subscription.request(1);
+        assertEquals(subscriber.chunkSizes.size(), 1);
+        assertFalse(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void nonPositiveRequestIsAnError() {
+        CollectingSubscriber subscriber = new CollectingSubscriber(0, false);
+        testArchive().toEncryptedPublisher(encryptor, MoreExecutors.directExecutor()).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void secondSubscriberIsAnError() {
+        EncryptedArchivePublisher publisher = testArchive().toEncryptedPublisher(encryptor,
+                MoreExecutors.directExecutor());
+        CollectingSubscriber first = new CollectingSubscriber(Long.MAX_VALUE, false);
+        publisher.subscribe(first);
+        assertTrue(first.completed);
+
+        CollectingSubscriber second = new CollectingSubscriber(Long.MAX_VALUE, false);
+        publisher.subscribe(second);
+        assertNotNull(second.subscription);
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void readErrorIsSignalled() {
+        ByteSource failingSource = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("test exception");
+            }
+        };
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(), failingSource))
+                .build();
+        CollectingSubscriber subscriber = new CollectingSubscriber(Long.MAX_VALUE, false);
+        archive.toEncryptedPublisher(encryptor, MoreExecutors.directExecutor()).subscribe(subscriber);
+        assertTrue(subscriber.error instanceof IOException);
+        assertEquals(subscriber.error.getMessage(), "test exception");
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void publishesOnExecutor() throws Exception {
+        Archive archive = builder()
+                .addDataFile(new ByteSourceArchiveFile("random", DateTime.now(), ByteSource.wrap(randomBytes)))
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            CollectingSubscriber subscriber = new CollectingSubscriber(1, true) {
+                @Override public void onComplete() {
+                    super.onComplete();
+                    done.countDown();
+                }
+            };
+            archive.toEncryptedPublisher(encryptor, new DirectBufferPool(CHUNK_SIZE, 4), executor)
+                    .subscribe(subscriber);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            Map<String, byte[]> entries = ArchiveTest.unzip(decryptor.decrypt(subscriber.bytes.toByteArray()));
+            assertEquals(entries.get("random"), randomBytes);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Archive.Builder builder() {
+        return Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info");
+    }
+
+    private static Archive testArchive() {
+        return builder()
+                .addDataFile(new ByteSourceArchiveFile("file", DateTime.now(),
+                        ByteSource.wrap("test".getBytes(StandardCharsets.UTF_8))))
+                .build();
+    }
+
+    // temp files FileBackedOutputStream has spooled to
+    private static Set<String> spoolFiles() {
+        Set<String> names = Sets.newHashSet();
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+        if (files != null) {
+            for (String name : files) {
+                if (name.startsWith("FileBackedOutputStream")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static StreamingByteSource streamingSource(final byte[] bytes) {
+        return new StreamingByteSource() {
+            @Override
+            public long copyTo(OutputStream output) throws IOException {
+                output.write(bytes);
+                return bytes.length;
+            }
+        };
+    }
+
+    /**
+     * Requests a batch of chunks up front, and another chunk after each one it receives unless the batch is 0, the way
+     * an HTTP client writing one chunk at a time would.
+     */
+    private static class CollectingSubscriber implements EncryptedArchivePublisher.Subscriber {
+        private final long initialRequest;
+        private final boolean release;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Integer> chunkSizes = Lists.newArrayList();
+        volatile EncryptedArchivePublisher.Subscription subscription;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        CollectingSubscriber(long initialRequest, boolean release) {
+            this.initialRequest = initialRequest;
+            this.release = release;
+        }
+
+        @Override
+        public void onSubscribe(EncryptedArchivePublisher.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer chunk) {
+            chunkSizes.add(chunk.remaining());
+            byte[] copy = new byte[chunk.remaining()];
+            chunk.get(copy);
+            bytes.write(copy, 0, copy.length);
+            if (release) {
+                subscription.release(chunk);
+            }
+            if (initialRequest > 0 && initialRequest != Long.MAX_VALUE) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private static class CountingByteSource extends ByteSource {
+        private final ByteSource delegate;
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        CountingByteSource(ByteSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FilterInputStream(delegate.openStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int length = super.read(b, off, len);
+                    if (length > 0) {
+                        bytesRead.addAndGet(length);
+                    }
+                    return length;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed.set(true);
+                    super.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.cms.CMSException;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+
+public class InMemoryArchiveMetricsTest {
+    private static final byte[] TEXT = Strings.repeat("abcdefgh", 1000).getBytes(StandardCharsets.UTF_8);
+
+    private KeyPair keyPair;
+    private X509Certificate cert;
+
+    @BeforeClass
+    public void setupKeys() {
+        keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+    }
+
+    @Test
+    public void histogram() {
+        InMemoryArchiveMetrics.Histogram histogram = new InMemoryArchiveMetrics.Histogram();
+        assertEquals(histogram.getCount(), 0);
+        assertEquals(histogram.getMean(), 0.0);
+        assertEquals(histogram.getPercentile(50), 0.0);
+
+        for (int i = 100; i >= 1; i--) {
+            histogram.record(i);
+        }
+        assertEquals(histogram.getCount(), 100);
+        assertEquals(histogram.getSum(), 5050.0);
+        assertEquals(histogram.getMean(), 50.5);
+        assertEquals(histogram.getMin(), 1.0);
+        assertEquals(histogram.getPercentile(50), 50.0);
+        assertEquals(histogram.getPercentile(99), 99.0);
+        assertEquals(histogram.getMax(), 100.0);
+        // in the order recorded
+        assertEquals(histogram.getValues()[0], 100.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void histogramPercentileOutOfRange() {
+        new InMemoryArchiveMetrics.Histogram().getPercentile(101);
+    }
+
+    @Test
+    public void writeTo() throws IOException {
+        InMemoryArchiveMetrics metrics = new InMemoryArchiveMetrics();
+        buildArchive(metrics).writeTo(new ByteArrayOutputStream());
+        assertArchiveMetrics(metrics);
+        assertEquals(metrics.getCmsSetUpNanos().getCount(), 0);
+    }
+
+    @Test
+    public void writeToParallel() throws IOException {
+        InMemoryArchiveMetrics metrics = new InMemoryArchiveMetrics();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            buildArchive(metrics).writeTo(new ByteArrayOutputStream(), executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertArchiveMetrics(metrics);
+    }
+
+    @Test
+    public void writeEncryptedTo() throws IOException, CMSException {
+        InMemoryArchiveMetrics metrics = new InMemoryArchiveMetrics();
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        buildArchive(metrics).writeEncryptedTo(encrypted, new StudyUploadEncryptor(cert));
+
+        assertArchiveMetrics(metrics);
+        assertEquals(metrics.getCmsSetUpNanos().getCount(), 1);
+        assertEquals(metrics.getEncryptedBytes().getCount(), 1);
+        // the whole zip went through the encrypted stream
+        byte[] zipBytes = new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted.toByteArray());
+        assertEquals(metrics.getEncryptedBytes().getMax(), (double) zipBytes.length);
+        assertTrue(metrics.getEncryptionBytesPerSecond().getMax() > 0);
+    }
+
+    @Test
+    public void encryptAndroid() throws IOException, org.spongycastle.cms.CMSException {
+        InMemoryArchiveMetrics metrics = new InMemoryArchiveMetrics();
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream os = new AndroidStudyUploadEncryptor(cert).encrypt(encrypted, metrics)) {
+            os.write(TEXT);
+        }
+
+        assertEquals(metrics.getCmsSetUpNanos().getCount(), 1);
+        assertEquals(metrics.getEncryptedBytes().getValues()[0], (double) TEXT.length);
+        assertEquals(new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(encrypted.toByteArray()), TEXT);
+    }
+
+    @Test
+    public void noOpWrapsNothing() throws IOException, CMSException {
+        OutputStream os = ByteStreams.nullOutputStream();
+        assertTrue(EncryptionMeteringOutputStream.wrap(os, ArchiveMetrics.NO_OP) == os);
+        assertTrue(new StudyUploadEncryptor(cert).encrypt(os, new InMemoryArchiveMetrics())
+                instanceof EncryptionMeteringOutputStream);
+        assertTrue(!(new StudyUploadEncryptor(cert).encrypt(os) instanceof EncryptionMeteringOutputStream));
+    }
+
+    private static Archive buildArchive(ArchiveMetrics metrics) {
+        return Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info")
+                .withMetrics(metrics)
+                .addDataFile(new ByteSourceArchiveFile("text", DateTime.now(), ByteSource.wrap(TEXT)))
+                .addDataFile(new ByteSourceArchiveFile("stored", DateTime.now(), ByteSource.wrap(TEXT)),
+                        CompressionPolicy.STORED)
+                .addDataFile(new JsonArchiveFile("eager.json", DateTime.now(), ImmutableMap.of("key", "value")))
+                .addDataFile(JsonArchiveFile.lazy("lazy.json", DateTime.now(), ImmutableMap.of("key", "value")))
+                // read once for the CRC, or sampled, before the copy into the zip
+                .addDataFile(JsonArchiveFile.lazy("lazy-stored.json", DateTime.now(), ImmutableMap.of("key", "value")),
+                        CompressionPolicy.STORED)
+                .addDataFile(JsonArchiveFile.lazy("lazy-adaptive.json", DateTime.now(),
+                        ImmutableMap.of("key", "value")), CompressionPolicy.adaptive(Deflater.DEFAULT_COMPRESSION))
+                .build();
+    }
+
+    private static void assertArchiveMetrics(InMemoryArchiveMetrics metrics) {
+        assertEquals(metrics.getEntryRawBytes().getValues(),
+                new double[] { TEXT.length, TEXT.length, 15, 15, 15, 15 });
+        double[] compressedBytes = metrics.getEntryCompressedBytes().getValues();
+        assertTrue(compressedBytes[0] < TEXT.length / 10);
+        assertEquals(compressedBytes[1], (double) TEXT.length);
+        assertEquals(metrics.getCompressionRatios().getCount(), 6);
+        assertEquals(metrics.getCompressionRatios().getValues()[1], 1.0);
+        assertTrue(metrics.getCompressionRatios().getValues()[0] > 10);
+        assertEquals(metrics.getCompressNanos().getCount(), 6);
+        // once for each JSON file, however many times it was read
+        assertEquals(metrics.getJsonSerializationNanos().getCount(), 4);
+    }
+}
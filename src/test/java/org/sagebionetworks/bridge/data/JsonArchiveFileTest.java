@@ -2,10 +2,19 @@ package org.sagebionetworks.bridge.data;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.gson.reflect.TypeToken;
 import org.joda.time.DateTime;
 import org.testng.annotations.Test;
 
@@ -35,6 +44,24 @@ public class JsonArchiveFileTest {
         assertEquals(JSON, archiveFile.getByteSource().asCharSource(Charsets.UTF_8).read());
     }
 
+    @Test
+    public void testByteSourceReportsSize() throws IOException {
+        JsonArchiveFile archiveFile = new JsonArchiveFile(FILENAME, END_DATE, "{\"caf\u00e9\" : 1}");
+
+        ByteSource byteSource = archiveFile.getByteSource();
+        assertEquals(Optional.of((long) byteSource.read().length), byteSource.sizeIfKnown());
+        assertFalse(JsonArchiveFile.lazy(FILENAME, END_DATE, TEST_OBJECT).getByteSource().sizeIfKnown().isPresent());
+    }
+
+    @Test
+    public void testEquals() {
+        assertEquals(new JsonArchiveFile(FILENAME, END_DATE, JSON), new JsonArchiveFile(FILENAME, END_DATE, JSON));
+        assertEquals(new JsonArchiveFile(FILENAME, END_DATE, JSON).hashCode(),
+                new JsonArchiveFile(FILENAME, END_DATE, JSON).hashCode());
+        assertFalse(new JsonArchiveFile(FILENAME, END_DATE, JSON)
+                .equals(new JsonArchiveFile(FILENAME, END_DATE, "{}")));
+    }
+
     @Test
     public void testCreationFromObject() throws IOException {
         JsonArchiveFile archiveFile = new JsonArchiveFile(FILENAME, END_DATE, TEST_OBJECT);
@@ -57,4 +84,37 @@ public class JsonArchiveFileTest {
         assertEquals(TEST_OBJECT, RestUtils.GSON.fromJson(json, ArchiveInfo.class));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testLazyFromObject() throws IOException {
+        JsonArchiveFile archiveFile = JsonArchiveFile.lazy(FILENAME, END_DATE, TEST_OBJECT);
+
+        assertEquals(FILENAME, archiveFile.getFilename());
+        assertEquals(END_DATE, archiveFile.getEndDate());
+
+        ByteSource byteSource = archiveFile.getByteSource();
+        assertTrue(byteSource instanceof StreamingByteSource);
+        assertEquals(RestUtils.GSON.toJson(TEST_OBJECT), byteSource.asCharSource(Charsets.UTF_8).read());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long count = byteSource.copyTo(output);
+        assertEquals(output.size(), count);
+        assertEquals(TEST_OBJECT, RestUtils.GSON.fromJson(output.toString("UTF-8"), ArchiveInfo.class));
+    }
+
+    @Test
+    public void testLazyFromObjectWithType() throws IOException {
+        List<String> list = ImmutableList.of("a", "\u00e9");
+        Type type = new TypeToken<List<String>>() {}.getType();
+        JsonArchiveFile archiveFile = JsonArchiveFile.lazy(FILENAME, END_DATE, list, type);
+
+        String json = archiveFile.getByteSource().asCharSource(Charsets.UTF_8).read();
+        assertEquals(RestUtils.GSON.toJson(list, type), json);
+    }
+
+    @Test
+    public void testLazyNull() throws IOException {
+        JsonArchiveFile archiveFile = JsonArchiveFile.lazy(FILENAME, END_DATE, null);
+
+        assertEquals("null", archiveFile.getByteSource().asCharSource(Charsets.UTF_8).read());
+    }
+}
@@ -0,0 +1,252 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTime;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OffHeapArchiveFileTest {
+    private static final DateTime END_DATE = DateTime.now();
+
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("OffHeapArchiveFileTest");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException {
+        Files.delete(dir);
+    }
+
+    @Test
+    public void pooledRoundTrip() throws IOException {
+        // small buffers, so the contents span many of them
+        DirectBufferPool pool = new DirectBufferPool(100, 10);
+        byte[] contents = randomBytes(1050);
+
+        OffHeapArchiveFile file;
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("audio.m4a", END_DATE, pool)) {
+            writer.write(contents[0]);
+            writer.write(contents, 1, 499);
+            writer.write(contents, 500, 550);
+            assertEquals(writer.size(), 1050);
+            file = writer.finish();
+        }
+
+        assertEquals(file.getFilename(), "audio.m4a");
+        assertEquals(file.getEndDate(), END_DATE);
+        assertEquals(file.size(), 1050);
+        assertEquals(file.getByteSource().sizeIfKnown().get().longValue(), 1050);
+        assertEquals(file.getByteSource().read(), contents);
+        // the source can be read again, and sliced
+        assertEquals(file.getByteSource().slice(990, 20).read(), Arrays.copyOfRange(contents, 990, 1010));
+        assertEquals(pool.getAllocatedCount(), 11);
+
+        file.close();
+        assertEquals(pool.getPooledCount(), 10);
+        try {
+            file.getByteSource().openStream();
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void openStreamKeepsBuffersUntilClosed() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool(100, 10);
+        OffHeapArchiveFile file;
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("audio.m4a", END_DATE, pool)) {
+            writer.write(randomBytes(1050));
+            file = writer.finish();
+        }
+
+        InputStream stream = file.getByteSource().openStream();
+        stream.read(new byte[150]);
+        file.close();
+        // the open stream still holds the contents, so none of them can be handed out again
+        assertEquals(pool.getPooledCount(), 0);
+        try {
+            stream.read();
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        stream.close();
+        assertEquals(pool.getPooledCount(), 10);
+        // closing twice doesn't release them twice
+        stream.close();
+        assertEquals(pool.getPooledCount(), 10);
+    }
+
+    @Test
+    public void poolReusesBuffers() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool(64, 4);
+        for (int i = 0; i < 3; i++) {
+            OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("file", END_DATE, pool);
+            writer.write(new byte[200]);
+            writer.finish().close();
+        }
+        assertEquals(pool.getAllocatedCount(), 4);
+    }
+
+    @Test
+    public void unfinishedWriterReleasesBuffers() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool(64, 4);
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("file", END_DATE, pool)) {
+            writer.write(new byte[200]);
+        }
+        assertEquals(pool.getPooledCount(), 4);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void writeAfterFinish() throws IOException {
+        OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("file", END_DATE, new DirectBufferPool(64, 4));
+        writer.finish();
+        writer.write(1);
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        OffHeapArchiveFile pooledFile = OffHeapArchiveFile.newWriter("file", END_DATE, new DirectBufferPool(64, 4))
+                .finish();
+        assertTrue(pooledFile.getByteSource().isEmpty());
+        assertEquals(pooledFile.getByteSource().read().length, 0);
+
+        Path tempFile = dir.resolve("empty.tmp");
+        OffHeapArchiveFile mappedFile = OffHeapArchiveFile.newMappedWriter("file", END_DATE, tempFile).finish();
+        assertEquals(mappedFile.getByteSource().read().length, 0);
+        mappedFile.close();
+        assertFalse(Files.exists(tempFile));
+    }
+
+    @Test
+    public void mappedRoundTrip() throws IOException {
+        byte[] contents = randomBytes(100_000);
+        Path tempFile = dir.resolve("audio.tmp");
+
+        OffHeapArchiveFile file;
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newMappedWriter("audio.m4a", END_DATE, tempFile)) {
+            writer.write(contents);
+            file = writer.finish();
+        }
+        assertEquals(file.size(), contents.length);
+        assertEquals(file.getByteSource().read(), contents);
+
+        file.close();
+        assertFalse(Files.exists(tempFile));
+    }
+
+    @Test
+    public void unfinishedMappedWriterDeletesFile() throws IOException {
+        Path tempFile = dir.resolve("audio.tmp");
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newMappedWriter("audio.m4a", END_DATE, tempFile)) {
+            writer.write(randomBytes(100));
+            assertTrue(Files.exists(tempFile));
+        }
+        assertFalse(Files.exists(tempFile));
+    }
+
+    @Test
+    public void writeArchive() throws IOException {
+        byte[] pooledContents = randomBytes(300_000);
+        byte[] mappedContents = new byte[200_000];
+        OffHeapArchiveFile.Writer pooledWriter = OffHeapArchiveFile.newWriter("pooled", END_DATE,
+                new DirectBufferPool(DirectBufferPool.DEFAULT_BUFFER_SIZE, 8));
+        pooledWriter.write(pooledContents);
+        OffHeapArchiveFile.Writer mappedWriter = OffHeapArchiveFile.newMappedWriter("mapped", END_DATE,
+                dir.resolve("mapped.tmp"));
+        mappedWriter.write(mappedContents);
+
+        try (OffHeapArchiveFile pooledFile = pooledWriter.finish();
+                OffHeapArchiveFile mappedFile = mappedWriter.finish()) {
+            Archive archive = Archive.Builder.forActivity("test-item")
+                    .withAppVersionName("version 1.0")
+                    .withPhoneInfo("test-phone-info")
+                    .addDataFile(pooledFile)
+                    .addDataFile(mappedFile)
+                    .build();
+
+            ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+            archive.writeTo(sequential);
+            Map<String, byte[]> entries = ArchiveTest.unzip(sequential.toByteArray());
+            assertEquals(entries.get("pooled"), pooledContents);
+            assertEquals(entries.get("mapped"), mappedContents);
+
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                archive.writeTo(parallel, executor);
+            } finally {
+                executor.shutdown();
+            }
+            entries = ArchiveTest.unzip(parallel.toByteArray());
+            assertEquals(entries.get("pooled"), pooledContents);
+            assertEquals(entries.get("mapped"), mappedContents);
+        }
+    }
+
+    @Test
+    public void largeFileStaysOffHeap() throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("per-thread allocation counters are not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        long threadId = Thread.currentThread().getId();
+
+        long size = 64L * 1024 * 1024;
+        OffHeapArchiveFile file;
+        try (OffHeapArchiveFile.Writer writer = OffHeapArchiveFile.newWriter("large-file", END_DATE,
+                new DirectBufferPool(DirectBufferPool.DEFAULT_BUFFER_SIZE, 0))) {
+            try (InputStream is = ArchiveTest.syntheticByteSource(size).openStream()) {
+                ByteStreams.copy(is, writer);
+            }
+            file = writer.finish();
+        }
+        Archive archive = Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info")
+                .addDataFile(file, CompressionPolicy.STORED)
+                .build();
+
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        OutputStream zipOutput = ByteStreams.nullOutputStream();
+        archive.writeTo(zipOutput).close();
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        file.close();
+
+        // copying the contents onto the heap would allocate at least their size
+        assertTrue(allocated < size / 16, "allocated " + allocated + " bytes");
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,175 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.internal.junit.ArrayAsserts.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.Test;
+
+public class RawZipWriterTest {
+    private static final byte[] FIRST = "first entry".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SECOND = "second entry, with a non-ASCII name".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testCentralDirectoryIsReadable() throws IOException {
+        File zip = File.createTempFile("RawZipWriterTest", ".zip");
+        try {
+            try (RawZipWriter writer = new RawZipWriter(new FileOutputStream(zip))) {
+                writer.writeEntry(CompressedEntry.compress("first", ByteSource.wrap(FIRST),
+                        CompressionPolicy.DEFAULT));
+                writer.writeEntry(CompressedEntry.compress("s\u00e9cond", ByteSource.wrap(SECOND),
+                        CompressionPolicy.STORED));
+                writer.finish();
+            }
+
+            // ZipFile reads the central directory, unlike ZipInputStream which only reads local headers
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+                ZipEntry first = entries.nextElement();
+                assertEquals("first", first.getName());
+                assertEquals(FIRST.length, first.getSize());
+                assertArrayEquals(FIRST, ByteStreams.toByteArray(zipFile.getInputStream(first)));
+
+                ZipEntry second = entries.nextElement();
+                assertEquals("s\u00e9cond", second.getName());
+                assertEquals(ZipEntry.STORED, second.getMethod());
+                assertEquals(SECOND.length, second.getCompressedSize());
+                assertArrayEquals(SECOND, ByteStreams.toByteArray(zipFile.getInputStream(second)));
+
+                assertFalse(entries.hasMoreElements());
+            }
+        } finally {
+            assertEquals(true, zip.delete());
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testWriteAfterFinish() throws IOException {
+        RawZipWriter writer = new RawZipWriter(ByteStreams.nullOutputStream());
+        writer.finish();
+        writer.writeEntry(CompressedEntry.compress("late", ByteSource.wrap(FIRST), CompressionPolicy.DEFAULT));
+    }
+
+    @Test
+    public void testZip64ManyEntries() throws IOException {
+        // more entries than the original format's 16-bit count can hold
+        int entryCount = 70000;
+        File zip = File.createTempFile("RawZipWriterTest", ".zip");
+        try {
+            try (RawZipWriter writer = new RawZipWriter(new FileOutputStream(zip))) {
+                CompressedEntry entry = CompressedEntry.compress("entry", ByteSource.wrap(FIRST),
+                        CompressionPolicy.STORED);
+                for (int i = 0; i < entryCount; i++) {
+                    writer.writeEntry(entry);
+                }
+                writer.finish();
+            }
+
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                assertEquals(entryCount, zipFile.size());
+            }
+        } finally {
+            assertEquals(true, zip.delete());
+        }
+    }
+
+    @Test
+    public void testZip64Headers() throws IOException {
+        // sizes past what the original format's 32-bit fields hold, without writing 4 GB of data for them
+        long size = (1L << 32) + 1000;
+        long crc = 0x89abcdefL;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (RawZipWriter writer = new RawZipWriter(output)) {
+            writer.writeEntry(CompressedEntry.withHeaderValues("large", ZipEntry.STORED, crc, size, size,
+                    new byte[0]));
+            writer.writeEntry(CompressedEntry.compress("after", ByteSource.wrap(FIRST), CompressionPolicy.STORED));
+            writer.finish();
+        }
+        byte[] zip = output.toByteArray();
+
+        // the local header has both sizes in its zip64 field, and the marker value in the original ones
+        ByteBuffer local = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x04034b50, local.getInt(0));
+        assertEquals(45, local.getShort(4));
+        assertEquals((int) crc, local.getInt(14));
+        assertEquals(0xffffffff, local.getInt(18));
+        assertEquals(0xffffffff, local.getInt(22));
+        assertEquals(5, local.getShort(26));
+        assertEquals(20, local.getShort(28));
+        assertEquals(1, local.getShort(35));
+        assertEquals(16, local.getShort(37));
+        assertEquals(size, local.getLong(39));
+        assertEquals(size, local.getLong(47));
+
+        // the central directory has them too, and the next entry's offset is right
+        File zipFile = File.createTempFile("RawZipWriterTest", ".zip");
+        try {
+            Files.write(zipFile.toPath(), zip);
+            try (ZipFile reader = new ZipFile(zipFile)) {
+                ZipEntry large = reader.getEntry("large");
+                assertEquals(size, large.getSize());
+                assertEquals(size, large.getCompressedSize());
+                assertEquals(crc, large.getCrc());
+                assertArrayEquals(FIRST, ByteStreams.toByteArray(reader.getInputStream(reader.getEntry("after"))));
+            }
+        } finally {
+            assertEquals(true, zipFile.delete());
+        }
+    }
+
+    // writes and reads back more than 4 GB, so it's left out of the default build, see the large-tests profile
+    @Test(groups = "large")
+    public void testZip64LargeEntry() throws IOException {
+        // larger than 4 GB uncompressed, but it's all zeros, so it deflates to a few megabytes
+        long size = (1L << 32) + 1000;
+        File zip = File.createTempFile("RawZipWriterTest", ".zip");
+        try {
+            try (RawZipWriter writer = new RawZipWriter(new FileOutputStream(zip))) {
+                CompressedEntry large = CompressedEntry.compress("large", ArchiveTest.syntheticByteSource(size),
+                        CompressionPolicy.deflated(Deflater.BEST_SPEED));
+                try {
+                    writer.writeEntry(large);
+                } finally {
+                    // its data is big enough to have gone to a temp file
+                    large.discard();
+                }
+                writer.writeEntry(CompressedEntry.compress("after", ByteSource.wrap(FIRST),
+                        CompressionPolicy.STORED));
+                writer.finish();
+            }
+
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                ZipEntry large = zipFile.getEntry("large");
+                assertEquals(size, large.getSize());
+                assertArrayEquals(FIRST, ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("after"))));
+            }
+
+            // ZipInputStream checks the sizes and CRC in the local header against the data
+            try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zip))) {
+                assertEquals("large", zis.getNextEntry().getName());
+                assertEquals(size, ByteStreams.copy(zis, ByteStreams.nullOutputStream()));
+                assertEquals("after", zis.getNextEntry().getName());
+            }
+        } finally {
+            assertEquals(true, zip.delete());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.io.ByteSource;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.crypto.BcCertificateFactory;
+import org.sagebionetworks.bridge.crypto.CertificateInfo;
+import org.sagebionetworks.bridge.crypto.KeyPairFactory;
+
+public class SegmentedUploadEncryptorTest {
+    private static final int SEGMENT_SIZE = 1000;
+
+    private KeyPair keyPair;
+    private X509Certificate cert;
+    private SegmentedUploadEncryptor encryptor;
+    private SegmentedUploadDecryptor decryptor;
+    private ExecutorService executor;
+    private File tempDir;
+
+    @BeforeClass
+    public void setupKeys() {
+        keyPair = KeyPairFactory.newRsa2048();
+        cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        encryptor = new SegmentedUploadEncryptor(new StudyUploadEncryptor(cert), SEGMENT_SIZE);
+        decryptor = new SegmentedUploadDecryptor(cert, keyPair.getPrivate());
+    }
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        tempDir = Files.createTempDirectory("SegmentedUploadEncryptorTest").toFile();
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        executor.shutdownNow();
+        deleteRecursively(tempDir);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.delete(file.toPath());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        // 3 full segments plus a partial one
+        byte[] plaintext = randomBytes(3 * SEGMENT_SIZE + 123);
+        File input = writeInput(plaintext);
+        File outputDir = newOutputDir();
+
+        encryptor.encryptFile(encryptor.newSession(), input, outputDir, executor);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(outputDir, SegmentedUploadEncryptor.segmentFileName(i)).isFile());
+        }
+        assertFalse(new File(outputDir, SegmentedUploadEncryptor.segmentFileName(4)).exists());
+        assertTrue(new File(outputDir, SegmentedUploadEncryptor.MANIFEST_FILE_NAME).isFile());
+
+        assertEquals(decrypt(outputDir), plaintext);
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        File input = writeInput(new byte[0]);
+        File outputDir = newOutputDir();
+
+        encryptor.encryptFile(encryptor.newSession(), input, outputDir, executor);
+
+        // still one (padding-only) segment, so the manifest is never empty
+        assertTrue(new File(outputDir, SegmentedUploadEncryptor.segmentFileName(0)).isFile());
+        assertEquals(decrypt(outputDir), new byte[0]);
+    }
+
+    @Test
+    public void resumeAfterFailure() throws Exception {
+        byte[] plaintext = randomBytes(3 * SEGMENT_SIZE);
+        File input = writeInput(plaintext);
+        File outputDir = newOutputDir();
+
+        // a directory where segment 1's temp file goes makes that segment fail
+        File blocker = new File(outputDir, SegmentedUploadEncryptor.segmentFileName(1) + ".tmp");
+        assertTrue(blocker.mkdir());
+
+        SegmentedUploadEncryptor.Session session = encryptor.newSession();
+        try {
+            encryptor.encryptFile(session, input, outputDir, executor);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertTrue(session.isComplete(0));
+        assertFalse(session.isComplete(1));
+        assertTrue(session.isComplete(2));
+        assertFalse(new File(outputDir, SegmentedUploadEncryptor.MANIFEST_FILE_NAME).exists());
+
+        // resuming only encrypts the missing segment, the finished ones are left alone
+        File segment0 = new File(outputDir, SegmentedUploadEncryptor.segmentFileName(0));
+        byte[] segment0Bytes = Files.readAllBytes(segment0.toPath());
+        assertTrue(blocker.delete());
+        assertTrue(segment0.setLastModified(0));
+
+        encryptor.encryptFile(session, input, outputDir, executor);
+
+        assertEquals(segment0.lastModified(), 0);
+        assertEquals(Files.readAllBytes(segment0.toPath()), segment0Bytes);
+        assertEquals(decrypt(outputDir), plaintext);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void manifestWithMissingSegment() throws Exception {
+        SegmentedUploadEncryptor.Session session = encryptor.newSession();
+        session.encryptSegment(0, ByteSource.wrap(randomBytes(SEGMENT_SIZE)), new ByteArrayOutputStream());
+        session.encryptSegment(2, ByteSource.wrap(randomBytes(SEGMENT_SIZE)), new ByteArrayOutputStream());
+        session.writeManifest(new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void segmentTooLarge() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            encryptor.newSession().encryptSegment(0, ByteSource.wrap(randomBytes(SEGMENT_SIZE + 1)), output);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(output.size(), 0);
+    }
+
+    @Test
+    public void tamperedSegment() throws Exception {
+        File input = writeInput(randomBytes(2 * SEGMENT_SIZE));
+        File outputDir = newOutputDir();
+        encryptor.encryptFile(encryptor.newSession(), input, outputDir, executor);
+
+        File segment1 = new File(outputDir, SegmentedUploadEncryptor.segmentFileName(1));
+        byte[] segmentBytes = Files.readAllBytes(segment1.toPath());
+        segmentBytes[0] ^= 1;
+        Files.write(segment1.toPath(), segmentBytes);
+
+        try {
+            decrypt(outputDir);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("segment 1"));
+        }
+    }
+
+    private byte[] decrypt(File outputDir) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        decryptor.decryptFile(outputDir, bos);
+        return bos.toByteArray();
+    }
+
+    private File writeInput(byte[] plaintext) throws IOException {
+        File input = new File(tempDir, "input");
+        Files.write(input.toPath(), plaintext);
+        return input;
+    }
+
+    private File newOutputDir() {
+        File outputDir = new File(tempDir, "output");
+        assertTrue(outputDir.mkdir());
+        return outputDir;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,218 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.data.SensorArchiveFile.Encoding;
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+public class SensorArchiveFileTest {
+    private static final DateTime END_DATE = DateTime.now();
+    private static final long START_TIME = 1_500_000_000_000L;
+
+    // the way samples reach JsonArchiveFile without SensorArchiveFile
+    static class Sample {
+        Long timestamp;
+        Double x;
+        Double y;
+        Double z;
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        SensorArchiveFile file = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z");
+        file.append(START_TIME, 0.5, -1.25, 9.81);
+        // timestamps can go backwards
+        file.append(START_TIME - 3, Double.NaN, Double.NEGATIVE_INFINITY, -0.0);
+        file.append(Long.MAX_VALUE, Double.MIN_VALUE, Double.MAX_VALUE, 0.0);
+        file.append(Long.MIN_VALUE, 1.0, 2.0, 3.0);
+
+        ByteSource source = file.getByteSource();
+        byte[] encoded = source.read();
+        assertEquals(source.sizeIfKnown().get().longValue(), encoded.length);
+
+        SensorArchiveFile decoded = SensorArchiveFile.decode("accel.bin", END_DATE,
+                new ByteArrayInputStream(encoded));
+        assertEquals(decoded, file);
+        assertEquals(decoded.size(), 4);
+        assertEquals(decoded.getTimestamp(3), Long.MIN_VALUE);
+        assertTrue(Double.isNaN(decoded.getValue(1, 0)));
+        assertEquals(Double.doubleToRawLongBits(decoded.getValue(1, 2)), Double.doubleToRawLongBits(-0.0));
+        assertEquals(decoded.getByteSource().read(), encoded);
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        SensorArchiveFile file = new SensorArchiveFile("heart-rate.bin", END_DATE, Encoding.BINARY, "bpm");
+        byte[] encoded = file.getByteSource().read();
+        assertEquals(SensorArchiveFile.decode("heart-rate.bin", END_DATE, new ByteArrayInputStream(encoded)), file);
+
+        SensorArchiveFile jsonFile = new SensorArchiveFile("heart-rate.json", END_DATE, Encoding.JSON, "bpm");
+        assertEquals(jsonFile.getByteSource().asCharSource(StandardCharsets.UTF_8).read(), "[]");
+    }
+
+    @Test
+    public void jsonMatchesGson() throws IOException {
+        Random random = new Random(42);
+        SensorArchiveFile file = new SensorArchiveFile("accel.json", END_DATE, Encoding.JSON, "x", "y", "z");
+        List<Sample> samples = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            Sample sample = new Sample();
+            sample.timestamp = START_TIME + i * 10L;
+            sample.x = random.nextGaussian();
+            sample.y = random.nextGaussian();
+            sample.z = (double) i;
+            samples.add(sample);
+            file.append(sample.timestamp, sample.x, sample.y, sample.z);
+        }
+
+        assertEquals(file.getByteSource().asCharSource(StandardCharsets.UTF_8).read(),
+                RestUtils.GSON.toJson(samples));
+        assertTrue(!file.getByteSource().sizeIfKnown().isPresent());
+    }
+
+    @Test
+    public void manyColumns() throws IOException {
+        SensorArchiveFile file = new SensorArchiveFile("attitude.bin", END_DATE, Encoding.BINARY, "w", "x", "y",
+                "z");
+        double[] values = new double[4];
+        for (int i = 0; i < 1000; i++) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] = i * c;
+            }
+            file.append(START_TIME + i, values);
+        }
+
+        // more samples than the columns start with
+        assertEquals(file.size(), 1000);
+        assertEquals(file.getValue(999, 3), 999.0 * 3);
+        assertEquals(SensorArchiveFile.decode("attitude.bin", END_DATE,
+                new ByteArrayInputStream(file.getByteSource().read())), file);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void wrongValueCount() {
+        new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z").append(START_TIME, 1.0, 2.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void timestampColumn() {
+        new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "timestamp", "x");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void decodeNotBinary() throws IOException {
+        SensorArchiveFile.decode("accel.json", END_DATE, new ByteArrayInputStream(
+                "[{\"timestamp\":1}]".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void decodeTruncatedWithHugeSampleCount() throws IOException {
+        // one column named x, then a sample count of Integer.MAX_VALUE followed by only two timestamps
+        byte[] encoded = { 'B', 'S', 'E', 'N', 1, 1, 1, 'x', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7,
+                2, 2 };
+        SensorArchiveFile.decode("accel.bin", END_DATE, new ByteArrayInputStream(encoded));
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void decodeTruncatedWithHugeColumnName() throws IOException {
+        // one column, whose name is Integer.MAX_VALUE bytes long but ends after one
+        byte[] encoded = { 'B', 'S', 'E', 'N', 1, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7, 'x' };
+        SensorArchiveFile.decode("accel.bin", END_DATE, new ByteArrayInputStream(encoded));
+    }
+
+    @Test
+    public void hashCodeIncludesValues() {
+        SensorArchiveFile file = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x");
+        file.append(1, 1.0);
+        SensorArchiveFile other = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x");
+        other.append(1, 2.0);
+        assertFalse(file.equals(other));
+        assertFalse(file.hashCode() == other.hashCode());
+    }
+
+    @Test
+    public void appendDoesNotAllocate() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("per-thread allocation counters are not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        long threadId = Thread.currentThread().getId();
+
+        SensorArchiveFile file = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z");
+        int sampleCount = 100_000;
+        file.ensureCapacity(sampleCount);
+        // warm up, so the loop is compiled and escape analysis has had its chance
+        for (int i = 0; i < sampleCount; i++) {
+            file.append(START_TIME + i, i, i, i);
+        }
+        file = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z");
+        file.ensureCapacity(sampleCount);
+
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < sampleCount; i++) {
+            file.append(START_TIME + i, i, i, i);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // boxing a Long and three Doubles per sample would be several megabytes
+        assertTrue(allocated < 64 * 1024, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    public void binaryDeflatesSmallerThanJson() throws IOException {
+        // a smooth signal sampled at 100 Hz, like a phone at rest
+        SensorArchiveFile binaryFile = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z");
+        SensorArchiveFile jsonFile = new SensorArchiveFile("accel.json", END_DATE, Encoding.JSON, "x", "y", "z");
+        for (int i = 0; i < 10_000; i++) {
+            long timestamp = START_TIME + i * 10L;
+            double x = Math.sin(i / 100.0) * 0.01;
+            double y = Math.cos(i / 100.0) * 0.01;
+            double z = 9.81 + Math.sin(i / 7.0) * 0.001;
+            binaryFile.append(timestamp, x, y, z);
+            jsonFile.append(timestamp, x, y, z);
+        }
+
+        long binarySize = CompressedEntry.compressedSize(binaryFile.getByteSource(), CompressionPolicy.DEFAULT);
+        long jsonSize = CompressedEntry.compressedSize(jsonFile.getByteSource(), CompressionPolicy.DEFAULT);
+        assertTrue(binarySize < jsonSize, "binary " + binarySize + " bytes, JSON " + jsonSize + " bytes");
+    }
+
+    @Test
+    public void writeToArchive() throws IOException {
+        SensorArchiveFile file = new SensorArchiveFile("accel.bin", END_DATE, Encoding.BINARY, "x", "y", "z");
+        for (int i = 0; i < 500; i++) {
+            file.append(START_TIME + i * 10L, i, -i, 0.5 * i);
+        }
+        Archive archive = Archive.Builder.forActivity("test-item")
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info")
+                .addDataFile(file)
+                .build();
+
+        ByteArrayOutputStream zipOutput = new ByteArrayOutputStream();
+        archive.writeTo(zipOutput);
+        Map<String, byte[]> entries = ArchiveTest.unzip(zipOutput.toByteArray());
+        assertEquals(SensorArchiveFile.decode("accel.bin", END_DATE, new ByteArrayInputStream(
+                entries.get("accel.bin"))), file);
+    }
+}
@@ -0,0 +1,225 @@
+package org.sagebionetworks.bridge.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+public class SpoolingArchiveWriterTest {
+    private static final String TEST_ITEM_NAME = "test-item";
+    private static final DateTime END_DATE_1 = new DateTime(2017, 3, 1, 10, 0, DateTimeZone.UTC);
+    private static final DateTime END_DATE_2 = new DateTime(2017, 3, 1, 11, 0, DateTimeZone.UTC);
+    private static final DateTime END_DATE_3 = new DateTime(2017, 3, 1, 12, 0, DateTimeZone.UTC);
+    private static final byte[] ACCEL = "t,x,y,z\n0,1,2,3\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GYRO = "t,x,y,z\n0,4,5,6\n".getBytes(StandardCharsets.UTF_8);
+
+    private Path dir;
+    private Path zipFile;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("SpoolingArchiveWriterTest");
+        zipFile = dir.resolve("session.zip");
+    }
+
+    @AfterMethod
+    public void deleteDir() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void spoolAndClose() throws IOException {
+        try (SpoolingArchiveWriter writer = newBuilder()
+                .addDataFile(new ByteSourceArchiveFile("accel.csv", END_DATE_1, ByteSource.wrap(ACCEL)))
+                .spoolTo(zipFile)) {
+            assertTrue(SpoolingArchiveWriter.needsRecovery(zipFile));
+            writer.addDataFile(new ByteSourceArchiveFile("gyro.csv", END_DATE_2, ByteSource.wrap(GYRO)),
+                    CompressionPolicy.STORED);
+            writer.addDataFile(JsonArchiveFile.lazy("answers.json", END_DATE_3, ImmutableMap.of("q", "a")));
+        }
+        assertFalse(SpoolingArchiveWriter.needsRecovery(zipFile));
+
+        Map<String, byte[]> entries = ArchiveTest.unzip(Files.readAllBytes(zipFile));
+        assertEquals(entries.get("accel.csv"), ACCEL);
+        assertEquals(entries.get("gyro.csv"), GYRO);
+        assertEquals(new String(entries.get("answers.json"), StandardCharsets.UTF_8), "{\"q\":\"a\"}");
+
+        ArchiveInfo info = readInfo(entries);
+        assertEquals(info.getItem(), TEST_ITEM_NAME);
+        assertEquals(info.getFiles().size(), 3);
+        assertEquals(info.getFiles().get(1).getFilename(), "gyro.csv");
+        assertEquals(info.getFiles().get(1).getTimestamp().getMillis(), END_DATE_2.getMillis());
+        assertNull(info.getFiles().get(1).getSha256());
+
+        // the central directory is valid too
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(zip.size(), 4);
+        }
+    }
+
+    @Test
+    public void recoverAfterCrash() throws IOException {
+        Path crashedZip = dir.resolve("crashed.zip");
+        Path crashedJournal = dir.resolve("crashed.zip" + SpoolingArchiveWriter.JOURNAL_SUFFIX);
+        try (SpoolingArchiveWriter writer = newBuilder().withFileDigests().spoolTo(zipFile)) {
+            writer.addDataFile(new ByteSourceArchiveFile("accel.csv", END_DATE_1, ByteSource.wrap(ACCEL)));
+            writer.addDataFile(new ByteSourceArchiveFile("gyro.csv", END_DATE_2, ByteSource.wrap(GYRO)));
+
+            // what's on disk if the process dies now
+            Files.copy(zipFile, crashedZip);
+            Files.copy(dir.resolve("session.zip" + SpoolingArchiveWriter.JOURNAL_SUFFIX), crashedJournal);
+        }
+
+        // and if it died partway through writing the next file, and its journal line
+        Files.write(crashedZip, new byte[] { 0x50, 0x4b, 0x03, 0x04, 1, 2, 3 }, StandardOpenOption.APPEND);
+        Files.write(crashedJournal, "{\"filename\":\"ma".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        assertTrue(SpoolingArchiveWriter.needsRecovery(crashedZip));
+
+        ArchiveInfo recovered = SpoolingArchiveWriter.recover(crashedZip);
+        assertFalse(SpoolingArchiveWriter.needsRecovery(crashedZip));
+        assertEquals(recovered.getFiles().size(), 2);
+
+        // the same archive as if the writer had been closed
+        assertEquals(Files.readAllBytes(crashedZip).length, Files.readAllBytes(zipFile).length);
+        Map<String, byte[]> entries = ArchiveTest.unzip(Files.readAllBytes(crashedZip));
+        assertEquals(entries.get("accel.csv"), ACCEL);
+        assertEquals(entries.get("gyro.csv"), GYRO);
+        ArchiveInfo info = readInfo(entries);
+        assertEquals(info, recovered);
+        assertEquals(info, readInfo(ArchiveTest.unzip(Files.readAllBytes(zipFile))));
+        assertEquals(info.getFiles().get(0).getSha256(), Hashing.sha256().hashBytes(ACCEL).toString());
+        try (ZipFile zip = new ZipFile(crashedZip.toFile())) {
+            assertEquals(zip.size(), 3);
+        }
+    }
+
+    @Test
+    public void recoverWithNoDataFiles() throws IOException {
+        Path crashedZip = dir.resolve("crashed.zip");
+        try (SpoolingArchiveWriter writer = newBuilder().spoolTo(zipFile)) {
+            Files.copy(zipFile, crashedZip);
+            Files.copy(dir.resolve("session.zip" + SpoolingArchiveWriter.JOURNAL_SUFFIX),
+                    dir.resolve("crashed.zip" + SpoolingArchiveWriter.JOURNAL_SUFFIX));
+        }
+
+        assertTrue(SpoolingArchiveWriter.recover(crashedZip).getFiles().isEmpty());
+        assertEquals(Files.readAllBytes(crashedZip), Files.readAllBytes(zipFile));
+    }
+
+    @Test
+    public void failedReadDoesNotStopWriter() throws IOException {
+        ByteSource failingSource = new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("test exception");
+            }
+        };
+
+        SpoolingArchiveWriter writer = newBuilder().spoolTo(zipFile);
+        writer.addDataFile(new ByteSourceArchiveFile("accel.csv", END_DATE_1, ByteSource.wrap(ACCEL)));
+        try {
+            writer.addDataFile(new ByteSourceArchiveFile("broken.csv", END_DATE_2, failingSource));
+            fail("expected exception");
+        } catch (IOException e) {
+            // expected
+        }
+        // reading failed before anything was written, so the writer carries on
+        writer.addDataFile(new ByteSourceArchiveFile("gyro.csv", END_DATE_2, ByteSource.wrap(GYRO)));
+        writer.close();
+
+        assertEquals(readInfo(ArchiveTest.unzip(Files.readAllBytes(zipFile))).getFiles().size(), 2);
+    }
+
+    @Test
+    public void duplicateFilenameIsRejected() throws IOException {
+        SpoolingArchiveWriter writer = newBuilder()
+                .addDataFile(new ByteSourceArchiveFile("accel.csv", END_DATE_1, ByteSource.wrap(ACCEL)))
+                .spoolTo(zipFile);
+        writer.addDataFile(new ByteSourceArchiveFile("gyro.csv", END_DATE_2, ByteSource.wrap(GYRO)));
+        // added to the builder, added to the writer, and written by the archive itself
+        for (String filename : new String[] { "accel.csv", "gyro.csv", Archive.ARCHIVE_INFO_FILE_NAME }) {
+            try {
+                writer.addDataFile(new ByteSourceArchiveFile(filename, END_DATE_3, ByteSource.wrap(GYRO)));
+                fail("expected exception");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // nothing was written, so the writer carries on
+        writer.addDataFile(new ByteSourceArchiveFile("other.csv", END_DATE_3, ByteSource.wrap(GYRO)));
+        writer.close();
+
+        Map<String, byte[]> entries = ArchiveTest.unzip(Files.readAllBytes(zipFile));
+        assertEquals(entries.get("gyro.csv"), GYRO);
+        assertEquals(readInfo(entries).getFiles().size(), 3);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(zip.size(), 4);
+        }
+    }
+
+    @Test
+    public void unfinishedSessionMustBeRecovered() throws IOException {
+        Path crashedJournal = dir.resolve("session.zip" + SpoolingArchiveWriter.JOURNAL_SUFFIX);
+        Files.write(crashedJournal, new byte[0]);
+        try {
+            newBuilder().spoolTo(zipFile);
+            fail("expected exception");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            // an empty journal has nothing to recover from
+            SpoolingArchiveWriter.recover(zipFile);
+            fail("expected exception");
+        } catch (IOException e) {
+            // expected
+        }
+        Files.delete(crashedJournal);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void closedWriter() throws IOException {
+        SpoolingArchiveWriter writer = newBuilder().spoolTo(zipFile);
+        writer.close();
+        writer.addDataFile(new ByteSourceArchiveFile("accel.csv", END_DATE_1, ByteSource.wrap(ACCEL)));
+    }
+
+    private static Archive.Builder newBuilder() {
+        return Archive.Builder.forActivity(TEST_ITEM_NAME)
+                .withAppVersionName("version 1.0")
+                .withPhoneInfo("test-phone-info");
+    }
+
+    private static ArchiveInfo readInfo(Map<String, byte[]> entries) {
+        return RestUtils.GSON.fromJson(new String(entries.get("info.json"), StandardCharsets.UTF_8),
+                ArchiveInfo.class);
+    }
+}
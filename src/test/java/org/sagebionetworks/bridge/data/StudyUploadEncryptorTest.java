@@ -1,20 +1,46 @@
 package org.sagebionetworks.bridge.data;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.bouncycastle.cms.CMSException;
 import org.testng.annotations.Test;
 
@@ -55,6 +81,153 @@ public class StudyUploadEncryptorTest {
         }
     }
 
+    @Test
+    public void testPlatformContentCipher() throws IOException, CMSException {
+        CertificateFactory certFactory = new BcCertificateFactory();
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = certFactory.newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert,
+                StudyUploadEncryptor.PLATFORM_CONTENT_CIPHER_PROVIDER);
+        BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (OutputStream os = encryptor.encrypt(bos)) {
+            os.write(TEST_DATA.getBytes(Charset.forName("UTF-8")));
+        }
+
+        // same CMS format, so it decrypts exactly like the Bouncy Castle cipher's output
+        String decryptedData = new String(correctEncryptor.decrypt(bos.toByteArray()), Charset.forName("UTF-8"));
+        assertEquals(TEST_DATA, decryptedData);
+    }
+
+    @Test
+    public void testFreshContentKeyPerMessage() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
+
+        // same plaintext, same thread, so the same reused generator: the ciphertexts must still differ
+        byte[] first = encrypt(encryptor, TEST_DATA);
+        byte[] second = encrypt(encryptor, TEST_DATA);
+        assertFalse(Arrays.equals(first, second));
+
+        BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+        assertEquals(TEST_DATA, new String(correctEncryptor.decrypt(first), StandardCharsets.UTF_8));
+        assertEquals(TEST_DATA, new String(correctEncryptor.decrypt(second), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testConcurrentEncryption() throws Exception {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        final StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
+        final BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        int threadCount = 8;
+        final int messagesPerThread = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Set<String>>> futures = Lists.newArrayList();
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Set<String>>() {
+                    @Override public Set<String> call() throws Exception {
+                        start.await();
+                        Set<String> ciphertexts = Sets.newHashSet();
+                        for (int i = 0; i < messagesPerThread; i++) {
+                            String message = TEST_DATA + " " + thread + " " + i;
+                            byte[] encrypted = encrypt(encryptor, message);
+                            assertEquals(message, new String(correctEncryptor.decrypt(encrypted),
+                                    StandardCharsets.UTF_8));
+                            ciphertexts.add(BaseEncoding.base64().encode(encrypted));
+                        }
+                        return ciphertexts;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Set<String> allCiphertexts = Sets.newHashSet();
+            for (Future<Set<String>> future : futures) {
+                allCiphertexts.addAll(future.get());
+            }
+            assertEquals(threadCount * messagesPerThread, allCiphertexts.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEncryptAsync() throws Exception {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
+        BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        // more messages in flight than a fixed pool would have threads, each on its own short-lived thread
+        int messageCount = 64;
+        List<ByteArrayOutputStream> outputs = Lists.newArrayList();
+        List<ListenableFuture<Long>> futures = Lists.newArrayList();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                outputs.add(bos);
+                futures.add(encryptor.encryptAsync(ByteSource.wrap((TEST_DATA + " " + i).getBytes(
+                        StandardCharsets.UTF_8)), bos, executor));
+            }
+            List<Long> lengths = Futures.allAsList(futures).get();
+
+            Set<String> ciphertexts = Sets.newHashSet();
+            for (int i = 0; i < messageCount; i++) {
+                String message = TEST_DATA + " " + i;
+                assertEquals(message.length(), lengths.get(i).intValue());
+                byte[] encrypted = outputs.get(i).toByteArray();
+                assertEquals(message, new String(correctEncryptor.decrypt(encrypted), StandardCharsets.UTF_8));
+                ciphertexts.add(BaseEncoding.base64().encode(encrypted));
+            }
+            assertEquals(messageCount, ciphertexts.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultipleRecipients() throws IOException, CMSException {
+        CertificateFactory certFactory = new BcCertificateFactory();
+        KeyPair studyKeyPair = KeyPairFactory.newRsa2048();
+        X509Certificate studyCert = certFactory.newCertificate(studyKeyPair, new CertificateInfo.Builder().build());
+        // recipients are told apart by issuer and serial number, so the escrow cert comes from a different issuer
+        X509Certificate escrowCert = PemUtils.loadCertificateFromPem(new String(Files.readAllBytes(Paths.get(
+                "./src/test/java/resources/cms/rsacert.pem")), StandardCharsets.UTF_8));
+        PrivateKey escrowPrivateKey = PemUtils.loadPrivateKeyFromPem(new String(Files.readAllBytes(Paths.get(
+                "./src/test/java/resources/cms/rsaprivkey.pem")), StandardCharsets.UTF_8));
+
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(ImmutableList.of(studyCert, escrowCert));
+        byte[] encrypted = encrypt(encryptor, TEST_DATA);
+
+        // either recipient can decrypt the same ciphertext
+        BcCmsEncryptor studyDecryptor = new BcCmsEncryptor(studyCert, studyKeyPair.getPrivate());
+        assertEquals(TEST_DATA, new String(studyDecryptor.decrypt(encrypted), StandardCharsets.UTF_8));
+        BcCmsEncryptor escrowDecryptor = new BcCmsEncryptor(escrowCert, escrowPrivateKey);
+        assertEquals(TEST_DATA, new String(escrowDecryptor.decrypt(encrypted), StandardCharsets.UTF_8));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoRecipients() {
+        new StudyUploadEncryptor(ImmutableList.<X509Certificate>of());
+    }
+
+    private static byte[] encrypt(StudyUploadEncryptor encryptor, String message) throws IOException, CMSException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (OutputStream os = encryptor.encrypt(bos)) {
+            os.write(message.getBytes(StandardCharsets.UTF_8));
+        }
+        return bos.toByteArray();
+    }
+
     @Test
     public void testWriteTo() throws CertificateException, CMSException, IOException {
         // first write a test input file
@@ -78,4 +251,121 @@ public class StudyUploadEncryptorTest {
 
         assertEquals(TEST_DATA, decryptedData.trim());
     }
+
+    @Test
+    public void testWriteToPath() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        // several read buffers' worth, ending partway through one
+        byte[] input = new byte[2 * StudyUploadEncryptor.FILE_BUFFER_SIZE + 17];
+        new Random(42).nextBytes(input);
+        Path inputFile = Files.createTempFile("StudyUploadEncryptorTest", ".in");
+        Path outputFile = Files.createTempFile("StudyUploadEncryptorTest", ".out");
+        try {
+            Files.write(inputFile, input);
+
+            // the output file already exists, and is truncated
+            Files.write(outputFile, new byte[5 * StudyUploadEncryptor.FILE_BUFFER_SIZE]);
+            new StudyUploadEncryptor(cert).writeTo(inputFile, outputFile);
+            assertTrue(Arrays.equals(input, correctEncryptor.decrypt(Files.readAllBytes(outputFile))));
+
+            StudyUploadEncryptor.writeTo(cert, inputFile, outputFile);
+            assertTrue(Arrays.equals(input, correctEncryptor.decrypt(Files.readAllBytes(outputFile))));
+        } finally {
+            Files.delete(inputFile);
+            Files.delete(outputFile);
+        }
+    }
+
+    @Test
+    public void testWriteWithDigestsToPath() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        byte[] input = new byte[StudyUploadEncryptor.FILE_BUFFER_SIZE + 17];
+        new Random(42).nextBytes(input);
+        Path inputFile = Files.createTempFile("StudyUploadEncryptorTest", ".in");
+        Path outputFile = Files.createTempFile("StudyUploadEncryptorTest", ".out");
+        try {
+            Files.write(inputFile, input);
+            UploadDigests digests = new StudyUploadEncryptor(cert).writeWithDigestsTo(inputFile, outputFile);
+
+            byte[] output = Files.readAllBytes(outputFile);
+            assertEquals(ImmutableMap.of(inputFile.getFileName().toString(), Hashing.sha256().hashBytes(input)),
+                    digests.getFileSha256s());
+            assertEquals(Hashing.md5().hashBytes(output), digests.getContentMd5());
+            assertEquals(Hashing.sha256().hashBytes(output), digests.getContentSha256());
+            assertEquals(output.length, digests.getContentLength());
+            assertTrue(Arrays.equals(input, new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(output)));
+        } finally {
+            Files.delete(inputFile);
+            Files.delete(outputFile);
+        }
+    }
+
+    @Test
+    public void testWriteToPathEmptyFile() throws IOException, CMSException {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        Path inputFile = Files.createTempFile("StudyUploadEncryptorTest", ".in");
+        Path outputFile = Files.createTempFile("StudyUploadEncryptorTest", ".out");
+        try {
+            StudyUploadEncryptor.writeTo(cert, inputFile, outputFile);
+            byte[] decrypted = new BcCmsEncryptor(cert, keyPair.getPrivate()).decrypt(Files.readAllBytes(outputFile));
+            assertEquals(0, decrypted.length);
+        } finally {
+            Files.delete(inputFile);
+            Files.delete(outputFile);
+        }
+    }
+
+    @Test
+    public void testWriteToPathAsync() throws Exception {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+        StudyUploadEncryptor encryptor = new StudyUploadEncryptor(cert);
+        BcCmsEncryptor correctEncryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        byte[] input = new byte[StudyUploadEncryptor.FILE_BUFFER_SIZE + 17];
+        new Random(42).nextBytes(input);
+        Path inputFile = Files.createTempFile("StudyUploadEncryptorTest", ".in");
+        Path outputFile = Files.createTempFile("StudyUploadEncryptorTest", ".out");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Files.write(inputFile, input);
+            encryptor.writeToAsync(inputFile, outputFile, executor).get();
+            assertTrue(Arrays.equals(input, correctEncryptor.decrypt(Files.readAllBytes(outputFile))));
+
+            UploadDigests digests = encryptor.writeWithDigestsToAsync(inputFile, outputFile, executor).get();
+            byte[] output = Files.readAllBytes(outputFile);
+            assertEquals(ImmutableMap.of(inputFile.getFileName().toString(), Hashing.sha256().hashBytes(input)),
+                    digests.getFileSha256s());
+            assertEquals(Hashing.md5().hashBytes(output), digests.getContentMd5());
+            assertTrue(Arrays.equals(input, correctEncryptor.decrypt(output)));
+        } finally {
+            executor.shutdown();
+            Files.delete(inputFile);
+            Files.delete(outputFile);
+        }
+    }
+
+    @Test
+    public void testWriteToPathAsyncMissingFile() throws Exception {
+        KeyPair keyPair = KeyPairFactory.newRsa2048();
+        X509Certificate cert = new BcCertificateFactory().newCertificate(keyPair, new CertificateInfo.Builder().build());
+
+        Path outputFile = Files.createTempFile("StudyUploadEncryptorTest", ".out");
+        Path missingFile = outputFile.resolveSibling(outputFile.getFileName() + ".missing");
+        try {
+            new StudyUploadEncryptor(cert).writeToAsync(missingFile, outputFile, MoreExecutors.directExecutor()).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoSuchFileException);
+        } finally {
+            Files.delete(outputFile);
+        }
+    }
 }